@@ -0,0 +1,249 @@
+import java.util.AbstractList;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * The species of a simulation, kept in one bucket per activity class:
+ * the creatures active at any hour (white walkers), the creatures only
+ * active by day, and the plants. A step only goes through the buckets
+ * awake at its hour, so at night the day-only creatures cost nothing.
+ *
+ * As a list it holds every species, bucket after bucket. Adding a species
+ * puts it at the end of its own bucket, so the list can also receive the
+ * newborns of a step.
+ *
+ * With a PlantLedger the plants are also added to the ledger, which makes
+ * them act; the plant bucket is then never stepped, and only compacted
+ * once as many plants died as it holds living ones.
+ */
+public class ActivityBuckets extends AbstractList<Species> implements RandomAccess
+{
+    // The activity classes.
+    public static final int ALWAYS_ACTIVE = 0;
+    public static final int DAY_ONLY = 1;
+    public static final int PLANTS = 2;
+    // The number of activity classes.
+    public static final int BUCKETS = 3;
+
+    // The buckets awake by day and at night, in the order they act.
+    private static final int[] DAY_BUCKETS = {ALWAYS_ACTIVE, DAY_ONLY, PLANTS};
+    private static final int[] NIGHT_BUCKETS = {ALWAYS_ACTIVE, PLANTS};
+    // The same without the plants, when a ledger makes them act.
+    private static final int[] DAY_CREATURES = {ALWAYS_ACTIVE, DAY_ONLY};
+    private static final int[] NIGHT_CREATURES = {ALWAYS_ACTIVE};
+
+    // The species of each activity class.
+    private final EntityList[] buckets;
+    // The species awake by day and at night.
+    private List<Species> dayView, nightView;
+    // The ledger making the plants act, or null.
+    private PlantLedger ledger;
+    // The plants known to be dead in the plant bucket.
+    private int deadPlants;
+
+    /**
+     * Create empty buckets.
+     */
+    public ActivityBuckets()
+    {
+        buckets = new EntityList[BUCKETS];
+        for(int b = 0; b < BUCKETS; b++) {
+            buckets[b] = new EntityList();
+        }
+        dayView = new View(DAY_BUCKETS);
+        nightView = new View(NIGHT_BUCKETS);
+    }
+
+    /**
+     * @param species A species.
+     * @return Its activity class.
+     */
+    public static int activityOf(Species species)
+    {
+        if(species instanceof Plant) {
+            return PLANTS;
+        }
+        return Simulator.isAwake(species, 0) ? ALWAYS_ACTIVE : DAY_ONLY;
+    }
+
+    /**
+     * Let a ledger make the plants act from now on, also after a clear.
+     * The plants already in the bucket are added to it.
+     * @param ledger The ledger of the plants.
+     */
+    public void setPlantLedger(PlantLedger ledger)
+    {
+        this.ledger = ledger;
+        EntityList plants = buckets[PLANTS];
+        for(int i = 0; i < plants.size(); i++) {
+            if(plants.get(i).isActive()) {
+                ledger.add((Plant) plants.get(i));
+            }
+        }
+        dayView = new View(DAY_CREATURES);
+        nightView = new View(NIGHT_CREATURES);
+    }
+
+    /**
+     * @param night True for a night hour.
+     * @return The activity classes stepped at that hour, in the order they act.
+     *         The array is shared and must not be modified.
+     */
+    public int[] awakeBuckets(boolean night)
+    {
+        if(ledger != null) {
+            return night ? NIGHT_CREATURES : DAY_CREATURES;
+        }
+        return night ? NIGHT_BUCKETS : DAY_BUCKETS;
+    }
+
+    /**
+     * @param bucket An activity class.
+     * @return The species of that class.
+     */
+    public EntityList bucket(int bucket)
+    {
+        return buckets[bucket];
+    }
+
+    /**
+     * @param night True for a night hour.
+     * @return A list of the species stepped at that hour, bucket after bucket.
+     *         It follows the buckets as they change.
+     */
+    public List<Species> awake(boolean night)
+    {
+        return night ? nightView : dayView;
+    }
+
+    /**
+     * @param index The position of a species, counting bucket after bucket.
+     * @return The species at that position.
+     */
+    public Species get(int index)
+    {
+        for(EntityList bucket : buckets) {
+            if(index < bucket.size()) {
+                return bucket.get(index);
+            }
+            index -= bucket.size();
+        }
+        throw new IndexOutOfBoundsException("Index: " + index);
+    }
+
+    /**
+     * @return The number of species in all the buckets, dead or alive.
+     */
+    public int size()
+    {
+        int size = 0;
+        for(EntityList bucket : buckets) {
+            size += bucket.size();
+        }
+        return size;
+    }
+
+    /**
+     * Add a species at the end of its bucket.
+     * @param species The species to add.
+     * @return Always true.
+     */
+    public boolean add(Species species)
+    {
+        int bucket = activityOf(species);
+        buckets[bucket].add(species);
+        if(bucket == PLANTS && ledger != null) {
+            ledger.add((Plant) species);
+        }
+        modCount++;
+        return true;
+    }
+
+    /**
+     * Remove every dead species from the buckets, in one pass each.
+     * @return The number of species removed.
+     */
+    public int compact()
+    {
+        int removed = 0;
+        for(int b = 0; b < BUCKETS; b++) {
+            if(b == PLANTS && ledger != null) {
+                removed += compactPlants();
+            }
+            else {
+                removed += buckets[b].compact();
+            }
+        }
+        if(removed > 0) {
+            modCount++;
+        }
+        return removed;
+    }
+
+    /**
+     * Compact the plant bucket once as many plants died as are left alive,
+     * so the plants cost nothing on most steps.
+     * @return The number of plants removed.
+     */
+    private int compactPlants()
+    {
+        EntityList plants = buckets[PLANTS];
+        int dead = ledger.takeDeaths() + deadPlants;
+        if(2 * dead < plants.size()) {
+            deadPlants = dead;
+            return 0;
+        }
+        deadPlants = 0;
+        return plants.compact();
+    }
+
+    /**
+     * Empty the buckets.
+     */
+    public void clear()
+    {
+        for(EntityList bucket : buckets) {
+            bucket.clear();
+        }
+        if(ledger != null) {
+            ledger.clear();
+        }
+        deadPlants = 0;
+        modCount++;
+    }
+
+    /**
+     * The species of some of the buckets, bucket after bucket.
+     */
+    private class View extends AbstractList<Species> implements RandomAccess
+    {
+        // The buckets seen.
+        private final int[] seen;
+
+        View(int[] seen)
+        {
+            this.seen = seen;
+        }
+
+        public Species get(int index)
+        {
+            for(int b : seen) {
+                EntityList bucket = buckets[b];
+                if(index < bucket.size()) {
+                    return bucket.get(index);
+                }
+                index -= bucket.size();
+            }
+            throw new IndexOutOfBoundsException("Index: " + index);
+        }
+
+        public int size()
+        {
+            int size = 0;
+            for(int b : seen) {
+                size += buckets[b].size();
+            }
+            return size;
+        }
+    }
+}
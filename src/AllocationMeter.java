@@ -0,0 +1,71 @@
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Reads the counters of bytes allocated that the JVM keeps for each thread.
+ * The simulation thread is read alone when it steps by itself; with a
+ * parallel engine the threads of its pool are read with it.
+ *
+ * The counters are those of com.sun.management.ThreadMXBean; on a JVM
+ * without them every read returns -1.
+ */
+public class AllocationMeter
+{
+    // The thread bean with allocation counters, or null if there is none.
+    private static final com.sun.management.ThreadMXBean threads = counters();
+
+    /**
+     * @return True if the JVM counts the bytes allocated by each thread.
+     */
+    public static boolean isSupported()
+    {
+        return threads != null;
+    }
+
+    /**
+     * @return The bytes allocated so far by the current thread, or -1.
+     */
+    public static long currentThread()
+    {
+        return threads == null ? -1 : threads.getCurrentThreadAllocatedBytes();
+    }
+
+    /**
+     * Return the bytes allocated so far by the current thread and the given
+     * threads. A thread that ended takes its bytes with it; the read itself
+     * allocates nothing.
+     * @param ids The ids of the other threads, such as the workers of a TiledStepEngine.
+     * @return The bytes, or -1.
+     */
+    public static long withThreads(long[] ids)
+    {
+        if(threads == null) {
+            return -1;
+        }
+        long bytes = threads.getCurrentThreadAllocatedBytes();
+        for(long id : ids) {
+            long allocated = threads.getThreadAllocatedBytes(id);
+            if(allocated > 0) {
+                bytes += allocated;
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * @return The thread bean, with its allocation counters turned on, or null.
+     */
+    private static com.sun.management.ThreadMXBean counters()
+    {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if(!(bean instanceof com.sun.management.ThreadMXBean)) {
+            return null;
+        }
+        com.sun.management.ThreadMXBean counters = (com.sun.management.ThreadMXBean) bean;
+        if(!counters.isThreadAllocatedMemorySupported()) {
+            return null;
+        }
+        counters.setThreadAllocatedMemoryEnabled(true);
+        return counters;
+    }
+}
@@ -0,0 +1,324 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/**
+ * The whole state of a simulation between two steps, saved to or read from
+ * a binary file through a memory-mapped channel.
+ *
+ * The file holds the hour, the step, the weather and the random streams of
+ * the simulation and the deaths of each cause in its field, then every
+ * living species as a fixed-size record (type id, cell, random stream, age
+ * or water level, food level, sex) bucket by bucket in the order they act,
+ * then the infected creatures in the order of infection, and the order of
+ * the plants of the ledger if one is used.
+ * A simulation resumed from a checkpoint runs exactly as the one saved
+ * would have.
+ *
+ * A checkpoint is written next to its file and then moved over it, so a
+ * crash while writing leaves the previous checkpoint whole.
+ */
+public class Checkpoint
+{
+    // The first bytes of a checkpoint file, and the version of its layout.
+    private static final int MAGIC = 0x57534350;
+    private static final int VERSION = 2;
+    // The kinds of field.
+    private static final byte DENSE = 0;
+    private static final byte SPARSE = 1;
+    private static final byte OFF_HEAP = 2;
+    // The size of a species record, an infected creature and a plant of the ledger.
+    private static final int SPECIES_BYTES = 36;
+    private static final int INFECTED_BYTES = 9;
+    private static final int LEDGER_BYTES = 12;
+    // The causes of death, in the order of their counts.
+    private static final DeathCause[] CAUSES = DeathCause.values();
+    // The size of the header, without the name of the neighbourhood.
+    private static final int HEADER_BYTES = 116 + 8 * CAUSES.length;
+    // The row of a creature that is no longer in the field.
+    private static final int NOWHERE = -1;
+
+    // The state of the simulation.
+    final Field field;
+    final ActivityBuckets species;
+    final PlantLedger ledger;
+    final Virus virus;
+    final long seed;
+    final int step, time, waitTime;
+    final Weather weather;
+    final RandomStream rand, weatherRand;
+
+    /**
+     * Gather the state of a simulation between two steps.
+     */
+    Checkpoint(Field field, ActivityBuckets species, PlantLedger ledger, Virus virus, long seed,
+               int step, int time, int waitTime, Weather weather, RandomStream rand, RandomStream weatherRand)
+    {
+        this.field = field;
+        this.species = species;
+        this.ledger = ledger;
+        this.virus = virus;
+        this.seed = seed;
+        this.step = step;
+        this.time = time;
+        this.waitTime = waitTime;
+        this.weather = weather;
+        this.rand = rand;
+        this.weatherRand = weatherRand;
+    }
+
+    /**
+     * Write the checkpoint to a file, replacing it.
+     * @param file The name of the file.
+     * @throws IOException If the file cannot be written.
+     */
+    void write(String file) throws IOException
+    {
+        int[] living = new int[ActivityBuckets.BUCKETS];
+        long records = 0;
+        for(int b = 0; b < ActivityBuckets.BUCKETS; b++) {
+            EntityList bucket = species.bucket(b);
+            for(int i = 0; i < bucket.size(); i++) {
+                if(isSaved(bucket.get(i))) {
+                    living[b]++;
+                }
+            }
+            records += living[b];
+        }
+        List<Creature> infected = virus.getInfectedCreatures();
+        int[] plants = new int[1];
+        if(ledger != null) {
+            ledger.forEach((plant, level) -> plants[0]++);
+        }
+        byte[] name = field.getNeighbourhood().toString().getBytes(StandardCharsets.UTF_8);
+        long size = HEADER_BYTES + name.length + records * SPECIES_BYTES
+                    + (long) infected.size() * INFECTED_BYTES + (long) plants[0] * LEDGER_BYTES;
+        if(size > Integer.MAX_VALUE) {
+            throw new IOException("A checkpoint of " + size + " bytes is too big for a single mapping");
+        }
+
+        Path target = Paths.get(file);
+        Path partial = Paths.get(file + ".part");
+        try(FileChannel channel = FileChannel.open(partial, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                                                   StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            MappedByteBuffer out = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            out.putInt(MAGIC).putInt(VERSION);
+            out.putInt(field.getDepth()).putInt(field.getWidth());
+            out.put(kindOf(field)).put((byte) (field.isDoubleBuffered() ? 1 : 0)).put((byte) (ledger != null ? 1 : 0)).put((byte) 0);
+            out.putLong(seed).putInt(step).putInt(time).putInt(waitTime).putInt(weather.ordinal());
+            putStream(out, rand);
+            putStream(out, weatherRand);
+            putStream(out, virus.getRandom());
+            for(DeathCause cause : CAUSES) {
+                out.putLong(field.getDeaths(cause));
+            }
+            for(int b = 0; b < ActivityBuckets.BUCKETS; b++) {
+                out.putInt(living[b]);
+            }
+            out.putInt(infected.size()).putInt(plants[0]).putInt(name.length).put(name);
+
+            for(int b = 0; b < ActivityBuckets.BUCKETS; b++) {
+                EntityList bucket = species.bucket(b);
+                for(int i = 0; i < bucket.size(); i++) {
+                    Species next = bucket.get(i);
+                    if(isSaved(next)) {
+                        putSpecies(out, next);
+                    }
+                }
+            }
+            for(Creature creature : infected) {
+                out.put((byte) creature.getTypeId());
+                if(isSaved(creature)) {
+                    out.putInt(field.rowOf(creature.getCell())).putInt(field.colOf(creature.getCell()));
+                }
+                else {
+                    out.putInt(NOWHERE).putInt(NOWHERE);
+                }
+            }
+            if(ledger != null) {
+                ledger.forEach((plant, level) ->
+                    out.putInt(field.rowOf(plant.getCell())).putInt(field.colOf(plant.getCell())).putInt(level));
+            }
+        }
+        Files.move(partial, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Read a checkpoint from a file, rebuilding its field and its species.
+     * @param file The name of the file.
+     * @return The checkpoint.
+     * @throws IOException If the file cannot be read or is not a checkpoint.
+     */
+    static Checkpoint read(String file) throws IOException
+    {
+        try(FileChannel channel = FileChannel.open(Paths.get(file), StandardOpenOption.READ)) {
+            MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if(channel.size() < HEADER_BYTES || in.getInt() != MAGIC) {
+                throw new IOException(file + " is not a checkpoint");
+            }
+            int version = in.getInt();
+            if(version != VERSION) {
+                throw new IOException(file + " is a checkpoint of version " + version + ", not " + VERSION);
+            }
+            int depth = in.getInt();
+            int width = in.getInt();
+            byte kind = in.get();
+            boolean doubleBuffered = in.get() != 0;
+            boolean useLedger = in.get() != 0;
+            in.get();
+            long seed = in.getLong();
+            int step = in.getInt();
+            int time = in.getInt();
+            int waitTime = in.getInt();
+            Weather weather = Weather.values()[in.getInt()];
+            RandomStream rand = getStream(in);
+            RandomStream weatherRand = getStream(in);
+            Virus virus = new Virus(getStream(in));
+            long[] deaths = new long[CAUSES.length];
+            for(int cause = 0; cause < deaths.length; cause++) {
+                deaths[cause] = in.getLong();
+            }
+            int[] living = new int[ActivityBuckets.BUCKETS];
+            for(int b = 0; b < ActivityBuckets.BUCKETS; b++) {
+                living[b] = in.getInt();
+            }
+            int infected = in.getInt();
+            int plants = in.getInt();
+            byte[] name = new byte[in.getInt()];
+            in.get(name);
+
+            Field field = kind == SPARSE ? new SparseField(depth, width)
+                          : kind == OFF_HEAP ? new OffHeapField(depth, width) : new Field(depth, width);
+            field.setNeighbourhood(Neighbourhood.forName(new String(name, StandardCharsets.UTF_8)));
+            field.setDoubleBuffered(doubleBuffered);
+            ActivityBuckets species = new ActivityBuckets();
+            PlantLedger ledger = null;
+            if(useLedger) {
+                ledger = new PlantLedger();
+                species.setPlantLedger(ledger);
+            }
+
+            // The constructors draw from a stream; each species then gets its own back.
+            RandomStream scratch = new RandomStream(0);
+            for(int b = 0; b < ActivityBuckets.BUCKETS; b++) {
+                for(int i = 0; i < living[b]; i++) {
+                    species.add(getSpecies(in, field, scratch));
+                }
+            }
+            Field nowhere = new Field(1, 1);
+            for(int i = 0; i < infected; i++) {
+                int type = in.get();
+                int row = in.getInt();
+                int col = in.getInt();
+                Creature creature;
+                if(row == NOWHERE) {
+                    // Dead creatures are dropped at the next pain, drawing a number as they are.
+                    creature = (Creature) SpeciesRegistry.factoryOf(type).create(false, nowhere, 0, scratch);
+                    creature.setDead();
+                }
+                else {
+                    creature = (Creature) field.getObjectAt(row, col);
+                }
+                virus.infect(creature);
+            }
+            if(ledger != null) {
+                ledger.clear();
+                for(int i = 0; i < plants; i++) {
+                    Plant plant = (Plant) field.getObjectAt(in.getInt(), in.getInt());
+                    plant.setWaterLevel(in.getInt());
+                    ledger.add(plant);
+                }
+            }
+            for(DeathCause cause : CAUSES) {
+                field.restoreDeaths(cause, deaths[cause.ordinal()]);
+            }
+            return new Checkpoint(field, species, ledger, virus, seed, step, time, waitTime, weather, rand, weatherRand);
+        }
+        catch(RuntimeException e) {
+            throw new IOException(file + " is not a valid checkpoint: " + e, e);
+        }
+    }
+
+    /**
+     * @return True if a species is alive in the field, so that it is saved.
+     */
+    private static boolean isSaved(Species species)
+    {
+        return species.isActive() && species.getCell() != Field.NO_CELL;
+    }
+
+    /**
+     * @return The kind of a field.
+     */
+    private static byte kindOf(Field field)
+    {
+        if(field instanceof SparseField) {
+            return SPARSE;
+        }
+        return field instanceof OffHeapField ? OFF_HEAP : DENSE;
+    }
+
+    /**
+     * Write the record of a species.
+     */
+    private void putSpecies(ByteBuffer out, Species species)
+    {
+        int cell = species.getCell();
+        int age = 0, foodLevel = 0;
+        boolean male = false;
+        if(species instanceof Creature) {
+            Creature creature = (Creature) species;
+            age = creature.getAge();
+            foodLevel = creature.getFoodLevel();
+            male = creature.getIsMale();
+        }
+        else if(species instanceof Plant && ledger == null) {
+            // With a ledger the water levels are saved with the ledger.
+            age = ((Plant) species).getWaterLevel();
+        }
+        out.put((byte) species.getTypeId()).put((byte) (male ? 1 : 0)).putShort((short) 0);
+        out.putInt(field.rowOf(cell)).putInt(field.colOf(cell));
+        putStream(out, species.getRandom());
+        out.putInt(age).putInt(foodLevel);
+    }
+
+    /**
+     * Read the record of a species, and place a new species in the field with its state.
+     */
+    private static Species getSpecies(ByteBuffer in, Field field, RandomStream scratch)
+    {
+        int type = in.get();
+        boolean male = in.get() != 0;
+        in.getShort();
+        int cell = field.cellOf(in.getInt(), in.getInt());
+        RandomStream rand = getStream(in);
+        int age = in.getInt();
+        int foodLevel = in.getInt();
+        Species species = SpeciesRegistry.factoryOf(type).create(false, field, cell, scratch);
+        if(species instanceof Creature) {
+            ((Creature) species).restore(rand, age, foodLevel, male);
+        }
+        else if(species instanceof Plant) {
+            ((Plant) species).restore(rand, age);
+        }
+        return species;
+    }
+
+    private static void putStream(ByteBuffer out, RandomStream stream)
+    {
+        out.putLong(stream.getSeed()).putLong(stream.getGamma());
+    }
+
+    private static RandomStream getStream(ByteBuffer in)
+    {
+        return new RandomStream(in.getLong(), in.getLong());
+    }
+}
@@ -47,6 +47,15 @@ public class Counter
         count++;
     }
 
+    /**
+     * Set the current count.
+     * @param count The number of participants of this type.
+     */
+    public void setCount(int count)
+    {
+        this.count = count;
+    }
+
     /**
      * Reset the current count to zero.
      */
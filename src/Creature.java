@@ -1,7 +1,4 @@
 import java.util.List;
-import java.util.Iterator;
-import java.util.Random;
-import java.util.ArrayList;
 
 /**
  * A class representing shared characteristics of creatures.
@@ -9,47 +6,40 @@ import java.util.ArrayList;
 public abstract class Creature implements Species
 {
     // Flag to indicate whether the creature is either male or female.
-    private final boolean isMale;
+    private boolean isMale;
     // Whether the creature is alive or not.
     private boolean alive;
     // The creature's field.
     private Field field;
-    // The creature's position in the field.
-    private Location location;
+    // The creature's position in the field: the index of its cell, or Field.NO_CELL.
+    private int cell;
     // The creature's age.
     private int age;
-    // A shared random number generator to control breeding.
-    private static final Random rand = Randomizer.getRandom();
-    // List containing the classes of all the species that need a partner.
-    private List<Class> partnerNeeder;
+    // The creature's own random stream, controlling breeding and moving.
+    private RandomStream rand;
     // current level of food.
     private int foodLevel;
+    // Whether the virus infected the creature.
+    private boolean infected;
 
     /**
-     * Create a new creature at location in field.
+     * Create a new creature in a cell of field.
      *
      * @param field The field currently occupied.
-     * @param location The location within the field.
+     * @param cell The index of the cell within the field.
      * @param age the age of the creature.
+     * @param rand The creature's own random stream.
      */
-    public Creature(Field field, Location location, int age)
+    public Creature(Field field, int cell, int age, RandomStream rand)
     {
         alive = true;
         this.field = field;
-        setLocation(location);
+        this.rand = rand;
+        this.cell = Field.NO_CELL;
+        setCell(cell);
         this.age = age;
-        this.isMale = (Math.random()>0.5)?true:false;
+        this.isMale = (rand.nextDouble()>0.5)?true:false;
         foodLevel = getMaxFoodLevel();
-        definePartnerNeeders();
-    }
-
-    /**
-     * Defining all the species needing a partener to breed.
-     */
-    private void definePartnerNeeders(){
-        partnerNeeder = new ArrayList<Class>();
-        partnerNeeder.add(Dragon.class);
-        partnerNeeder.add(Human.class);
     }
 
     /**
@@ -75,18 +65,22 @@ public abstract class Creature implements Species
         if(isActive()) {
             giveBirth(newCreatures);
             // Move towards a source of food if found.
-            Location newLocation = findFood();
-            if(newLocation == null) {
+            int newCell = findFood();
+            if(newCell != Field.NO_CELL && !field.isVacant(newCell)) {
+                // Someone else moved in where the prey was during this step.
+                newCell = Field.NO_CELL;
+            }
+            if(newCell == Field.NO_CELL) {
                 // No food found - try to move to a free location.
-                newLocation = getField().freeAdjacentLocation(getLocation());
+                newCell = field.freeAdjacentCell(cell, rand);
             }
             // See if it was possible to move.
-            if(newLocation != null) {
-                setLocation(newLocation);
+            if(newCell != Field.NO_CELL) {
+                setCell(newCell);
             }
             else if(!(this instanceof WhiteWalker)) {
                 // Overcrowding.
-                setDead();
+                setDead(DeathCause.OVERCROWDING);
             }
         }
     }
@@ -105,23 +99,60 @@ public abstract class Creature implements Species
      * It is removed from the field.
      */
     public void setDead()
+    {
+        setDead(DeathCause.REMOVED);
+    }
+
+    /**
+     * Indicate that the creature is no longer alive, recording why.
+     * It is removed from the field.
+     * @param cause The cause of the death.
+     */
+    public void setDead(DeathCause cause)
     {
         alive = false;
-        if(location != null) {
-            field.clear(location);
-            location = null;
+        if(cell != Field.NO_CELL) {
+            field.countDeath(cause);
+            EventLog events = field.getEventLog();
+            if(events != null) {
+                events.death(cell, cause);
+            }
+            field.clear(cell);
+            cell = Field.NO_CELL;
             field = null;
         }
     }
 
     /**
      * Return the creature's location.
-     * @return The creature's location.
+     * A new location is made at each call, the hot path uses getCell.
+     * @return The creature's location, or null if it is not in a field.
      * @Override
      */
     public Location getLocation()
     {
-        return location;
+        return cell == Field.NO_CELL ? null : field.locationOf(cell);
+    }
+
+    /**
+     * Return the index of the creature's cell.
+     * @return The creature's cell, or Field.NO_CELL if it is not in a field.
+     * @Override
+     */
+    public int getCell()
+    {
+        return cell;
+    }
+
+    /**
+     * Return the creature's own random stream.
+     * Newborns get a stream split from their parent's one.
+     * @return The creature's random stream.
+     * @Override
+     */
+    public RandomStream getRandom()
+    {
+        return rand;
     }
 
     protected int getAge(){
@@ -139,34 +170,32 @@ public abstract class Creature implements Species
      */
     protected void giveBirth(List<Species> newCreatures)
     {
-        // New creatures are born into adjacent locations.
-        // Get a list of adjacent free locations.
-        Field field = getField();
-        List<Location> free = field.getFreeAdjacentLocations(getLocation());
+        // New creatures are born into adjacent free locations.
         int births = breed();
-        for(int b = 0; b < births && free.size() > 0; b++) {
-            Location loc = free.remove(0);
-            boolean breedable = false;
-
-            if(checkPartner()){
-                breedable = true;
+        for(int b = 0; b < births; b++) {
+            int free = field.freeAdjacentCell(cell, rand);
+            if(free == Field.NO_CELL) {
+                break;
             }
-
-            if(breedable){
-                newCreatures.add(giveBirthUnique(field, loc));
+            if(checkPartner()){
+                newCreatures.add(giveBirthUnique(field, free));
             }
         }
     }
 
+    /**
+     * @return True if the creature's species needs a partner to breed.
+     */
+    boolean needsPartner(){
+        return SpeciesRegistry.needsPartner(getTypeId());
+    }
+
     public boolean checkPartner(){
-        if(partnerNeeder.contains(this.getClass())){
-            Field field = getField();
-            List<Location> adjacent = field.adjacentLocations(getLocation());
-            Iterator<Location> it = adjacent.iterator();
-            while(it.hasNext()) {
-                Location where = it.next();
-                Species species = (Species) field.getObjectAt(where);
-                if(this.compareTo(species)==1){
+        if(needsPartner()){
+            int[] offsets = field.adjacentOffsets(cell);
+            for(int k = 0; k < offsets.length; k++) {
+                Species species = (Species) field.getObjectAt(cell + offsets[k]);
+                if(species != null && this.compareTo(species)==1){
                     if(isActive() && getIsMale() != species.getIsMale()) {
                         return false;
                     }
@@ -178,7 +207,7 @@ public abstract class Creature implements Species
         return true;
     }
 
-    protected abstract Creature giveBirthUnique(Field field, Location loc);
+    protected abstract Creature giveBirthUnique(Field field, int cell);
 
     /**
      * @return True if the creature is male, false otherwise.
@@ -195,7 +224,7 @@ public abstract class Creature implements Species
     {
         age++;
         if(age > getMaxAge()) {
-            setDead();
+            setDead(DeathCause.AGE);
         }
     }
 
@@ -217,11 +246,24 @@ public abstract class Creature implements Species
      */
     protected void setLocation(Location newLocation)
     {
-        if(location != null) {
-            field.clear(location);
+        setCell(field.cellOf(newLocation));
+    }
+
+    /**
+     * Place the creature in a new cell of its field.
+     * @param newCell The index of the creature's new cell.
+     */
+    protected void setCell(int newCell)
+    {
+        EventLog events = field.getEventLog();
+        if(events != null) {
+            events.placed(getTypeId(), cell, newCell);
+        }
+        if(cell != Field.NO_CELL) {
+            field.clear(cell);
         }
-        location = newLocation;
-        field.place(this, newLocation);
+        cell = newCell;
+        field.place(this, newCell);
     }
 
     /**
@@ -252,27 +294,93 @@ public abstract class Creature implements Species
 
     protected abstract int getMaxLitterSize();
 
+    /**
+     * @return true if the creature is infected by the virus.
+     */
+    public boolean isInfected(){
+        return infected;
+    }
+
+    /**
+     * Mark the creature as infected or healed. Only the virus calls it.
+     * @param infected true if the creature is infected.
+     */
+    void setInfected(boolean infected){
+        this.infected = infected;
+    }
+
     protected void incrementHunger(){
         foodLevel--;
         if(foodLevel <= 0) {
-            setDead();
+            setDead(DeathCause.STARVATION);
         }
     }
 
-    protected abstract boolean findSpecificFood(Object species);
+    /**
+     * Make the creature suffer the virus: it gets hungrier for some hours,
+     * and dies of the virus if it starves. Only the virus calls it.
+     * @param hours The number of hours of hunger.
+     */
+    void sicken(int hours){
+        for(int i = 0; i < hours && alive; i++) {
+            foodLevel--;
+            if(foodLevel <= 0) {
+                setDead(DeathCause.VIRUS);
+            }
+        }
+    }
 
-    protected Location findFood(){
-        Field field = getField();
-        List<Location> adjacent = field.adjacentLocations(getLocation());
-        Iterator<Location> it = adjacent.iterator();
-        while(it.hasNext()) {
-            Location where = it.next();
-            Object species = field.getObjectAt(where);
-            if(findSpecificFood(species)){
+    /**
+     * Look around for food in a random order, and eat the first found.
+     * The adjacent cells are visited from a random one with a random
+     * stride, which reaches all of them without building a list.
+     * What a creature eats is looked up in the diet matrix.
+     * @return The cell where food was found, or Field.NO_CELL.
+     */
+    protected int findFood(){
+        DietMatrix diet = DietMatrix.getDefault();
+        int predator = getTypeId();
+        int[] offsets = field.adjacentOffsets(cell);
+        int n = offsets.length;
+        int order = rand.nextInt(Neighbourhood.orders(n));
+        int start = Neighbourhood.start(n, order);
+        int stride = Neighbourhood.stride(n, order);
+        for(int i = 0; i < n; i++) {
+            int where = cell + offsets[(start + i * stride) % n];
+            Species prey = (Species) field.getObjectAt(where);
+            if(prey != null && prey.isActive() && diet.eats(predator, prey.getTypeId())){
+                eat(diet, predator, prey);
                 return where;
             }
         }
-        return null;
+        return Field.NO_CELL;
+    }
+
+    /**
+     * Eat a prey: gain the food the diet gives for it, and kill it if the diet says so.
+     */
+    private void eat(DietMatrix diet, int predator, Species prey){
+        int preyId = prey.getTypeId();
+        setFoodLevel(getFoodLevel() + diet.foodGain(predator, preyId));
+        foodLevelCheck();
+        if(diet.kills(predator, preyId)){
+            prey.setDead(DeathCause.EATEN);
+        }
+    }
+
+    /**
+     * Give the creature the state it had when a checkpoint was written.
+     * Only a Checkpoint calls it, right after creating the creature.
+     * @param rand The creature's random stream, as it was.
+     * @param age The creature's age.
+     * @param foodLevel The creature's food level.
+     * @param isMale True if the creature is male.
+     */
+    void restore(RandomStream rand, int age, int foodLevel, boolean isMale){
+        this.rand = rand;
+        this.age = age;
+        this.foodLevel = foodLevel;
+        this.isMale = isMale;
     }
 
     protected void setFoodLevel(int foodLevel){
@@ -0,0 +1,18 @@
+/**
+ * Why a species died, as recorded in an EventLog.
+ */
+public enum DeathCause
+{
+    // Eaten by a predator.
+    EATEN,
+    // Its food level fell to nothing.
+    STARVATION,
+    // It grew older than its species lives.
+    AGE,
+    // The virus made it starve.
+    VIRUS,
+    // It had nowhere to move, or to grow.
+    OVERCROWDING,
+    // It was removed from outside the simulation.
+    REMOVED
+}
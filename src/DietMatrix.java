@@ -0,0 +1,135 @@
+import java.util.Arrays;
+
+/**
+ * Who eats whom: for each pair of species ids of SpeciesRegistry, whether
+ * the first eats the second, the food it gains by doing so, and whether
+ * the prey is killed. Finding food is then an array lookup, the same for
+ * species objects and for the primitive entities of EntityStore.
+ */
+public class DietMatrix
+{
+    // The diet of the species of the simulation.
+    private static final DietMatrix DEFAULT = createDefault();
+
+    // The number of species the matrix has room for.
+    private int size;
+    // For each predator and prey, whether the predator eats the prey.
+    private boolean[][] eats;
+    // For each predator and prey, the food the predator gains.
+    private int[][] foodGain;
+    // For each predator and prey, whether eating kills the prey.
+    private boolean[][] kills;
+
+    /**
+     * Create a matrix where nobody eats anybody.
+     */
+    public DietMatrix()
+    {
+        grow(SpeciesRegistry.size());
+    }
+
+    /**
+     * @return The diet used by the simulation.
+     */
+    public static DietMatrix getDefault()
+    {
+        return DEFAULT;
+    }
+
+    /**
+     * Let a species eat another one, killing it, and gain its food value.
+     * @param predator The id of the species eating.
+     * @param prey The id of the species eaten.
+     */
+    public void setDiet(int predator, int prey)
+    {
+        setDiet(predator, prey, SpeciesRegistry.prototypeOf(prey).getFoodValue(), true);
+    }
+
+    /**
+     * Let a species eat another one.
+     * It must not be changed while a simulation is running.
+     * @param predator The id of the species eating.
+     * @param prey The id of the species eaten.
+     * @param gain The food the predator gains.
+     * @param kill True if the prey dies when eaten.
+     */
+    public void setDiet(int predator, int prey, int gain, boolean kill)
+    {
+        grow(Math.max(predator, prey) + 1);
+        eats[predator][prey] = true;
+        foodGain[predator][prey] = gain;
+        kills[predator][prey] = kill;
+    }
+
+    /**
+     * @return True if the predator eats the prey.
+     */
+    public boolean eats(int predator, int prey)
+    {
+        return predator < size && prey < size && eats[predator][prey];
+    }
+
+    /**
+     * @return The food the predator gains by eating the prey.
+     */
+    public int foodGain(int predator, int prey)
+    {
+        return foodGain[predator][prey];
+    }
+
+    /**
+     * @return True if the prey dies when the predator eats it.
+     */
+    public boolean kills(int predator, int prey)
+    {
+        return kills[predator][prey];
+    }
+
+    /**
+     * Make room for species ids up to newSize - 1.
+     */
+    private void grow(int newSize)
+    {
+        if(newSize <= size) {
+            return;
+        }
+        eats = grow(eats, newSize);
+        kills = grow(kills, newSize);
+        int[][] gains = new int[newSize][newSize];
+        for(int i = 0; i < size; i++) {
+            gains[i] = Arrays.copyOf(foodGain[i], newSize);
+        }
+        foodGain = gains;
+        size = newSize;
+    }
+
+    private boolean[][] grow(boolean[][] table, int newSize)
+    {
+        boolean[][] grown = new boolean[newSize][newSize];
+        for(int i = 0; i < size; i++) {
+            grown[i] = Arrays.copyOf(table[i], newSize);
+        }
+        return grown;
+    }
+
+    /**
+     * The diets the species classes had before the matrix.
+     * Poison berries and the humans eaten by white walkers are killed but give no food.
+     */
+    private static DietMatrix createDefault()
+    {
+        DietMatrix diet = new DietMatrix();
+        diet.setDiet(SpeciesRegistry.DRAGON, SpeciesRegistry.HUMAN);
+        diet.setDiet(SpeciesRegistry.DRAGON, SpeciesRegistry.WHITE_WALKER);
+        diet.setDiet(SpeciesRegistry.DRAGON, SpeciesRegistry.SHEEP);
+        diet.setDiet(SpeciesRegistry.HUMAN, SpeciesRegistry.WHEAT);
+        diet.setDiet(SpeciesRegistry.HUMAN, SpeciesRegistry.POISON_BERRY, 0, true);
+        diet.setDiet(SpeciesRegistry.HUMAN, SpeciesRegistry.SHEEP);
+        diet.setDiet(SpeciesRegistry.SHEEP, SpeciesRegistry.WHEAT);
+        diet.setDiet(SpeciesRegistry.SHEEP, SpeciesRegistry.POISON_BERRY, 0, true);
+        diet.setDiet(SpeciesRegistry.HEDGEHOG, SpeciesRegistry.WHEAT);
+        diet.setDiet(SpeciesRegistry.WHITE_WALKER, SpeciesRegistry.HUMAN, 0, true);
+        return diet;
+    }
+}
@@ -1,6 +1,5 @@
 import java.util.List;
 import java.util.Iterator;
-import java.util.Random;
 
 /**
  * A simple model of a dragon.
@@ -24,8 +23,6 @@ public class Dragon extends Creature
     // In fact, it's the number of hours he can survive without eating before dying.
     private static final int MAX_FOOD_LEVEL = 150;
 
-    // A shared Random object, if required.
-    private Random rand = new Random();
 
     /**
      * Create a new dragon. A dragon may be created with age
@@ -37,7 +34,20 @@ public class Dragon extends Creature
      */
     public Dragon(boolean randomAge, Field field, Location location)
     {
-        super(field, location,(randomAge)?(int)(Math.random()*MAX_AGE)+1:0);
+        this(randomAge, field, field.cellOf(location), Randomizer.splitStream());
+    }
+
+    /**
+     * Create a new dragon drawing from its own random stream.
+     *
+     * @param randomAge If true, the dragon will have a random age.
+     * @param field The field currently occupied.
+     * @param cell The index of the cell within the field.
+     * @param rand The dragon's own random stream.
+     */
+    public Dragon(boolean randomAge, Field field, int cell, RandomStream rand)
+    {
+        super(field, cell, (randomAge)?rand.nextInt(MAX_AGE)+1:0, rand);
         if(randomAge) {
             setFoodLevel(rand.nextInt(MAX_FOOD_LEVEL));
         }
@@ -87,54 +97,14 @@ public class Dragon extends Creature
         }
     }
 
-    /**
-     * Look for food adjacent to the current location.
-     * Only the first live animal is eaten.
-     * @return Where food was found, or null if it wasn't.
-     */
-    protected boolean findSpecificFood(Object species)
-    {
-        if(species instanceof Human){
-            Human human = (Human) species;
-            if(human.isActive()){
-                setFoodLevel(getFoodLevel() + human.getFoodValue());
-                human.setDead();
-                foodLevelCheck();
-                return true;
-            }
-        }
-
-        if(species instanceof WhiteWalker){
-            WhiteWalker whiteWalker = (WhiteWalker) species;
-            if(whiteWalker.isActive()){
-                setFoodLevel(getFoodLevel() + whiteWalker.getFoodValue());
-                whiteWalker.setDead();
-                foodLevelCheck();
-                return true;
-            }
-        }
-
-        if(species instanceof Sheep) {
-            Sheep sheep = (Sheep) species;
-            if(sheep.isActive()){
-                setFoodLevel(getFoodLevel()+ sheep.getFoodValue());
-                foodLevelCheck();
-                sheep.setDead();
-                return true;
-            }
-        }
-
-        return false;
-    }
-
     /**
      * Check whether or not this dragon is to give birth at this step.
      * New births will be made into free adjacent locations.
      * @param new dragons A list to return newly born dragons.
      */
-    public Dragon giveBirthUnique(Field field,Location loc)
+    public Dragon giveBirthUnique(Field field, int cell)
     {
-        return new Dragon(false, field, loc);
+        return new Dragon(false, field, cell, getRandom().split());
     }
 
     @Override
@@ -177,4 +147,9 @@ public class Dragon extends Creature
     protected int getMaxFoodLevel(){
         return MAX_FOOD_LEVEL;
     }
+
+    @Override
+    public int getTypeId(){
+        return SpeciesRegistry.DRAGON;
+    }
 }
@@ -0,0 +1,427 @@
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Run an ensemble of simulations in one JVM: many headless simulators, one
+ * for each parameter set and seed, on a fixed pool of worker threads, one
+ * per core by default. Each simulator steps on the thread running it, so
+ * the runs proceed side by side and every core is kept busy as long as
+ * there are runs left.
+ *
+ * The simulators share the read-only tables (the species registry, the
+ * diet matrix, the neighbour offsets of each field width) and nothing else,
+ * so the runs are independent and a run gives the same trajectory as the
+ * same simulator on its own.
+ *
+ * The population of each species after every step of a run is its
+ * trajectory. The trajectories are aggregated as the runs complete, by
+ * parameter set, into the mean and quantiles of each species at each step.
+ *
+ * Run it with "java EnsembleRunner [options]":
+ *   --seeds N          the runs of each parameter set, with seeds 1 to N (10 by default)
+ *   --steps N          the steps of each run (500 by default)
+ *   --size DxW         the depth and width of the fields (80x120 by default)
+ *   --threads N        the worker threads (one per core by default)
+ *   --set NAME:Species=P,...   a parameter set, with the creation probabilities
+ *                      it changes, such as "many-dragons:Dragon=0.02,Human=0.1";
+ *                      may be repeated, the defaults are run if there is none
+ *   --out FILE         write the aggregates to FILE as CSV
+ */
+public class EnsembleRunner
+{
+    // The quantiles written for each species at each step.
+    private static final double[] QUANTILES = {0.1, 0.5, 0.9};
+
+    /**
+     * Be told of the progress of an ensemble.
+     */
+    public interface Listener
+    {
+        //it is supposed to be told, on the thread that started the ensemble, that a run has
+        // completed and been added to the aggregate of its parameter set.
+        void runCompleted(String parameters, long seed, Aggregate aggregate, int completed, int runs);
+    }
+
+    /**
+     * The trajectories of the runs of a parameter set, aggregated.
+     * It is only used by the thread that started the ensemble.
+     */
+    public static class Aggregate
+    {
+        // The steps of each run and the number of species.
+        private final int steps, types;
+        // The sum of the populations of each species at each step, over the runs.
+        private final double[] sums;
+        // The trajectories, step by step and species by species.
+        private final List<int[]> trajectories = new ArrayList<>();
+
+        Aggregate(int steps, int types)
+        {
+            this.steps = steps;
+            this.types = types;
+            sums = new double[(steps + 1) * types];
+        }
+
+        /**
+         * Add the trajectory of a run.
+         */
+        void add(int[] trajectory)
+        {
+            for(int i = 0; i < sums.length; i++) {
+                sums[i] += trajectory[i];
+            }
+            trajectories.add(trajectory);
+        }
+
+        /**
+         * @return The number of runs aggregated.
+         */
+        public int getRuns()
+        {
+            return trajectories.size();
+        }
+
+        /**
+         * @return The steps of each run; step 0 is the populated field.
+         */
+        public int getSteps()
+        {
+            return steps;
+        }
+
+        /**
+         * @param step A step, from 0.
+         * @param type The type id of a species.
+         * @return The mean population of the species after the step.
+         */
+        public double getMean(int step, int type)
+        {
+            return trajectories.isEmpty() ? 0 : sums[step * types + type] / trajectories.size();
+        }
+
+        /**
+         * @param step A step, from 0.
+         * @param type The type id of a species.
+         * @param quantile The quantile, from 0 to 1.
+         * @return The population of the species after the step, at the quantile of the runs.
+         */
+        public int getQuantile(int step, int type, double quantile)
+        {
+            if(trajectories.isEmpty()) {
+                return 0;
+            }
+            int[] populations = new int[trajectories.size()];
+            for(int run = 0; run < populations.length; run++) {
+                populations[run] = trajectories.get(run)[step * types + type];
+            }
+            Arrays.sort(populations);
+            int rank = (int) Math.ceil(quantile * populations.length) - 1;
+            return populations[Math.max(0, Math.min(populations.length - 1, rank))];
+        }
+    }
+
+    // The size of the fields and the steps of each run.
+    private final int depth, width, steps;
+    // The worker threads.
+    private final int threads;
+    // The parameter sets, by name: the creation probabilities each changes.
+    private final Map<String, Map<Class<? extends Species>, Double>> parameterSets = new LinkedHashMap<>();
+    // The seeds each parameter set is run with.
+    private final List<Long> seeds = new ArrayList<>();
+
+    /**
+     * Create an ensemble.
+     * @param depth The depth of the fields.
+     * @param width The width of the fields.
+     * @param steps The steps of each run.
+     * @param threads The worker threads, 0 for one per core.
+     */
+    public EnsembleRunner(int depth, int width, int steps, int threads)
+    {
+        this.depth = depth;
+        this.width = width;
+        this.steps = Math.max(0, steps);
+        this.threads = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        // Build the shared tables once, before the workers need them.
+        SpeciesRegistry.size();
+    }
+
+    /**
+     * Add a parameter set, run with every seed.
+     * @param name The name of the set.
+     * @param probabilities The creation probabilities it changes, by species class.
+     */
+    public void addParameterSet(String name, Map<Class<? extends Species>, Double> probabilities)
+    {
+        parameterSets.put(name, probabilities);
+    }
+
+    /**
+     * Add a seed, each parameter set is run with.
+     * @param seed The seed.
+     */
+    public void addSeed(long seed)
+    {
+        seeds.add(seed);
+    }
+
+    /**
+     * Run every parameter set with every seed, and aggregate the trajectories
+     * as the runs complete. With no parameter set, the defaults are run.
+     * @param listener Told of each run completed, or null.
+     * @return The aggregate of each parameter set, by name.
+     */
+    public Map<String, Aggregate> run(Listener listener)
+    {
+        if(parameterSets.isEmpty()) {
+            addParameterSet("default", new LinkedHashMap<>());
+        }
+        int types = SpeciesRegistry.size();
+        Map<String, Aggregate> aggregates = new LinkedHashMap<>();
+        for(String name : parameterSets.keySet()) {
+            aggregates.put(name, new Aggregate(steps, types));
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        ExecutorCompletionService<Run> completed = new ExecutorCompletionService<>(pool);
+        int runs = 0;
+        for(Map.Entry<String, Map<Class<? extends Species>, Double>> set : parameterSets.entrySet()) {
+            for(long seed : seeds) {
+                String name = set.getKey();
+                Map<Class<? extends Species>, Double> probabilities = set.getValue();
+                completed.submit(() -> simulate(name, probabilities, seed, types));
+                runs++;
+            }
+        }
+        try {
+            for(int done = 1; done <= runs; done++) {
+                Run run = completed.take().get();
+                Aggregate aggregate = aggregates.get(run.parameters);
+                aggregate.add(run.trajectory);
+                if(listener != null) {
+                    listener.runCompleted(run.parameters, run.seed, aggregate, done, runs);
+                }
+            }
+        }
+        catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        catch(ExecutionException e) {
+            throw new IllegalStateException("A run of the ensemble failed", e.getCause());
+        }
+        finally {
+            pool.shutdownNow();
+        }
+        return aggregates;
+    }
+
+    /**
+     * A run completed: its parameter set, seed and trajectory.
+     */
+    private static class Run
+    {
+        final String parameters;
+        final long seed;
+        final int[] trajectory;
+
+        Run(String parameters, long seed, int[] trajectory)
+        {
+            this.parameters = parameters;
+            this.seed = seed;
+            this.trajectory = trajectory;
+        }
+    }
+
+    /**
+     * Run a simulator on the current thread, recording its trajectory.
+     */
+    private Run simulate(String name, Map<Class<? extends Species>, Double> probabilities, long seed, int types)
+    {
+        Simulator simulator = new Simulator(depth, width, true, seed);
+        simulator.setStepDelay(0);
+        if(!probabilities.isEmpty()) {
+            simulator.setCreationProbabilities(probabilities);
+        }
+        int[] trajectory = new int[(steps + 1) * types];
+        record(simulator.getField(), trajectory, 0, types);
+        for(int step = 1; step <= steps; step++) {
+            simulator.simulateOneStep();
+            record(simulator.getField(), trajectory, step, types);
+        }
+        return new Run(name, seed, trajectory);
+    }
+
+    /**
+     * Record the population of each species after a step.
+     */
+    private static void record(Field field, int[] trajectory, int step, int types)
+    {
+        for(int type = 0; type < types; type++) {
+            trajectory[step * types + type] = field.getPopulation(type);
+        }
+    }
+
+    /**
+     * Write aggregates as CSV: one row for each parameter set, step and
+     * species, with the mean and the quantiles of its population.
+     * @param aggregates The aggregates, by parameter set.
+     * @param file The name of the file, replaced if it exists.
+     * @throws IOException If the file cannot be written.
+     */
+    public static void write(Map<String, Aggregate> aggregates, String file) throws IOException
+    {
+        try(PrintWriter out = new PrintWriter(Files.newBufferedWriter(Paths.get(file), StandardCharsets.UTF_8))) {
+            StringBuilder header = new StringBuilder("parameters,step,species,runs,mean");
+            for(double quantile : QUANTILES) {
+                header.append(",p").append(Math.round(quantile * 100));
+            }
+            out.println(header);
+            for(Map.Entry<String, Aggregate> entry : aggregates.entrySet()) {
+                Aggregate aggregate = entry.getValue();
+                for(int step = 0; step <= aggregate.getSteps(); step++) {
+                    for(int type = 0; type < SpeciesRegistry.size(); type++) {
+                        StringBuilder row = new StringBuilder();
+                        row.append(entry.getKey()).append(',').append(step).append(',')
+                           .append(SpeciesRegistry.classOf(type).getSimpleName()).append(',')
+                           .append(aggregate.getRuns()).append(',')
+                           .append(String.format("%.2f", aggregate.getMean(step, type)));
+                        for(double quantile : QUANTILES) {
+                            row.append(',').append(aggregate.getQuantile(step, type, quantile));
+                        }
+                        out.println(row);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Parse the creation probabilities of a parameter set, such as
+     * "Dragon=0.02,Human=0.1".
+     * @return The probabilities by species class; the species that are not
+     *         known or not a number are left out.
+     */
+    @SuppressWarnings("unchecked")
+    static Map<Class<? extends Species>, Double> parseProbabilities(String text)
+    {
+        Map<Class<? extends Species>, Double> probabilities = new LinkedHashMap<>();
+        for(String pair : text.split(",")) {
+            String[] parts = pair.split("=");
+            if(parts.length != 2) {
+                continue;
+            }
+            Class<?> speciesClass = null;
+            for(int type = 0; type < SpeciesRegistry.size(); type++) {
+                if(SpeciesRegistry.classOf(type).getSimpleName().equalsIgnoreCase(parts[0].trim())) {
+                    speciesClass = SpeciesRegistry.classOf(type);
+                }
+            }
+            if(speciesClass == null) {
+                System.out.println("Unknown species " + parts[0] + ", ignored.");
+                continue;
+            }
+            try {
+                probabilities.put((Class<? extends Species>) speciesClass, Double.parseDouble(parts[1].trim()));
+            }
+            catch(NumberFormatException e) {
+                System.out.println("The probability of " + parts[0] + " must be a number, ignored.");
+            }
+        }
+        return probabilities;
+    }
+
+    /**
+     * Run an ensemble, print its progress and the final populations, and
+     * write the aggregates if asked to.
+     */
+    public static void main(String args[])
+    {
+        int seedCount = 10;
+        int steps = 500;
+        int depth = 80;
+        int width = 120;
+        int threads = 0;
+        String out = null;
+        Map<String, String> sets = new LinkedHashMap<>();
+        for(int i = 0; i + 1 < args.length; i += 2) {
+            try {
+                switch(args[i]) {
+                    case "--seeds": seedCount = Integer.parseInt(args[i + 1]); break;
+                    case "--steps": steps = Integer.parseInt(args[i + 1]); break;
+                    case "--threads": threads = Integer.parseInt(args[i + 1]); break;
+                    case "--out": out = args[i + 1]; break;
+                    case "--size": {
+                        String[] size = args[i + 1].split("x");
+                        depth = Integer.parseInt(size[0]);
+                        width = Integer.parseInt(size[1]);
+                        break;
+                    }
+                    case "--set": {
+                        int colon = args[i + 1].indexOf(':');
+                        if(colon < 0) {
+                            sets.put(args[i + 1], "");
+                        }
+                        else {
+                            sets.put(args[i + 1].substring(0, colon), args[i + 1].substring(colon + 1));
+                        }
+                        break;
+                    }
+                    default: System.out.println("Unknown option " + args[i] + ", ignored.");
+                }
+            }
+            catch(NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                System.out.println("The value of " + args[i] + " is not valid.");
+                System.out.println("Using the default value.");
+            }
+        }
+
+        EnsembleRunner ensemble = new EnsembleRunner(depth, width, steps, threads);
+        for(Map.Entry<String, String> set : sets.entrySet()) {
+            ensemble.addParameterSet(set.getKey(), parseProbabilities(set.getValue()));
+        }
+        for(long seed = 1; seed <= seedCount; seed++) {
+            ensemble.addSeed(seed);
+        }
+        long start = System.nanoTime();
+        Map<String, Aggregate> aggregates = ensemble.run((parameters, seed, aggregate, completed, runs) -> {
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.println(String.format("%d/%d runs, %s seed %d, %.1f runs/s",
+                                             completed, runs, parameters, seed, completed / seconds));
+        });
+
+        for(Map.Entry<String, Aggregate> entry : aggregates.entrySet()) {
+            Aggregate aggregate = entry.getValue();
+            System.out.println(entry.getKey() + " after " + aggregate.getSteps() + " steps, over "
+                               + aggregate.getRuns() + " runs:");
+            for(int type = 0; type < SpeciesRegistry.size(); type++) {
+                System.out.println(String.format("  %-12s mean %10.1f  p10 %8d  p50 %8d  p90 %8d",
+                                                 SpeciesRegistry.classOf(type).getSimpleName(),
+                                                 aggregate.getMean(aggregate.getSteps(), type),
+                                                 aggregate.getQuantile(aggregate.getSteps(), type, 0.1),
+                                                 aggregate.getQuantile(aggregate.getSteps(), type, 0.5),
+                                                 aggregate.getQuantile(aggregate.getSteps(), type, 0.9)));
+            }
+        }
+        if(out != null) {
+            try {
+                write(aggregates, out);
+            }
+            catch(IOException e) {
+                System.out.println("Could not write the aggregates: " + e.getMessage());
+            }
+        }
+    }
+}
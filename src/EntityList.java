@@ -0,0 +1,156 @@
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.RandomAccess;
+
+/**
+ * A list of the species of a simulation, backed by an array.
+ *
+ * Dead species are not removed one by one while a step runs, which would
+ * shift the rest of the list each time: they stay in place, are skipped,
+ * and compact() drops all of them in a single pass at the end of the step.
+ * swapRemove removes one species in constant time when the order of the
+ * list does not matter.
+ *
+ * Newborns can be added to the same list while it is being walked by index:
+ * they go after the species of the step, which stop at the size the list
+ * had when the step started.
+ */
+public class EntityList extends AbstractList<Species> implements RandomAccess
+{
+    // The initial number of species the list has room for.
+    private static final int INITIAL_CAPACITY = 64;
+
+    // The species, from 0 to size - 1.
+    private Species[] entities;
+    // The number of species in the list.
+    private int size;
+
+    /**
+     * Create an empty list.
+     */
+    public EntityList()
+    {
+        entities = new Species[INITIAL_CAPACITY];
+    }
+
+    /**
+     * @param index The position of a species.
+     * @return The species at that position.
+     */
+    public Species get(int index)
+    {
+        checkIndex(index);
+        return entities[index];
+    }
+
+    /**
+     * Replace the species at a position.
+     * @param index The position of the species.
+     * @param species The new species.
+     * @return The species that was there.
+     */
+    public Species set(int index, Species species)
+    {
+        checkIndex(index);
+        Species old = entities[index];
+        entities[index] = species;
+        return old;
+    }
+
+    /**
+     * @return The number of species in the list, dead or alive.
+     */
+    public int size()
+    {
+        return size;
+    }
+
+    /**
+     * Add a species at the end of the list.
+     * @param species The species to add.
+     * @return Always true.
+     */
+    public boolean add(Species species)
+    {
+        if(size == entities.length) {
+            entities = Arrays.copyOf(entities, size * 2);
+        }
+        entities[size++] = species;
+        modCount++;
+        return true;
+    }
+
+    /**
+     * Remove the species at a position, keeping the order of the others.
+     * This moves every species after it, so prefer compact or swapRemove.
+     * @param index The position of the species.
+     * @return The species removed.
+     */
+    public Species remove(int index)
+    {
+        checkIndex(index);
+        Species old = entities[index];
+        System.arraycopy(entities, index + 1, entities, index, size - index - 1);
+        entities[--size] = null;
+        modCount++;
+        return old;
+    }
+
+    /**
+     * Remove the species at a position by moving the last species into its place.
+     * It takes constant time, but changes the order of the list.
+     * @param index The position of the species.
+     * @return The species removed.
+     */
+    public Species swapRemove(int index)
+    {
+        checkIndex(index);
+        Species old = entities[index];
+        entities[index] = entities[--size];
+        entities[size] = null;
+        modCount++;
+        return old;
+    }
+
+    /**
+     * Remove every dead species in one pass, keeping the order of the others.
+     * @return The number of species removed.
+     */
+    public int compact()
+    {
+        int kept = 0;
+        for(int i = 0; i < size; i++) {
+            Species species = entities[i];
+            if(species.isActive()) {
+                entities[kept++] = species;
+            }
+        }
+        int removed = size - kept;
+        Arrays.fill(entities, kept, size, null);
+        size = kept;
+        if(removed > 0) {
+            modCount++;
+        }
+        return removed;
+    }
+
+    /**
+     * Empty the list.
+     */
+    public void clear()
+    {
+        Arrays.fill(entities, 0, size, null);
+        size = 0;
+        modCount++;
+    }
+
+    /**
+     * Check that a position holds a species.
+     */
+    private void checkIndex(int index)
+    {
+        if(index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size);
+        }
+    }
+}
@@ -0,0 +1,482 @@
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A compact store for all the species of a simulation.
+ * Instead of one object per species, the store keeps parallel arrays of
+ * primitives: the type, age, food level, sex, water level and cell of every
+ * entity, where a cell is row * width + col. A grid of entity indices tells
+ * who is in each cell.
+ *
+ * A step runs the same rules as the species classes (Creature.act,
+ * incrementAge, incrementHunger, Plant.act) as tight loops over those
+ * arrays: first every awake creature ages and gets hungrier, then every
+ * awake entity acts, then dead entities are removed in a single pass.
+ * The characteristics of each type are read once from a prototype of
+ * the species class, so they stay in one place.
+ *
+ * An entity takes 11 bytes plus 4 bytes per cell of the grid, compared to
+ * the few hundred bytes of a species object with its location, list and
+ * random stream. The virus is not modelled in the store.
+ */
+public class EntityStore
+{
+    // The type ids of the species: their ids in SpeciesRegistry.
+    public static final int WHITE_WALKER = SpeciesRegistry.WHITE_WALKER;
+    public static final int DRAGON = SpeciesRegistry.DRAGON;
+    public static final int HUMAN = SpeciesRegistry.HUMAN;
+    public static final int SHEEP = SpeciesRegistry.SHEEP;
+    public static final int HEDGEHOG = SpeciesRegistry.HEDGEHOG;
+    public static final int WHEAT = SpeciesRegistry.WHEAT;
+    public static final int POISON_BERRY = SpeciesRegistry.POISON_BERRY;
+    // The number of types: the species registered when the store is first used.
+    public static final int TYPES = SpeciesRegistry.size();
+    // The content of an empty cell of the grid, and the cell of a dead entity.
+    private static final int EMPTY = -1;
+    // The initial capacity of the arrays.
+    private static final int INITIAL_CAPACITY = 1024;
+    // The hour at which creatures wake up.
+    private static final int DAWN = 8;
+
+    // Characteristics of each type, read from the prototypes.
+    private static final int[] MAX_AGE = new int[TYPES];
+    private static final int[] BREEDING_AGE = new int[TYPES];
+    private static final double[] BREEDING_PROBABILITY = new double[TYPES];
+    private static final int[] MAX_LITTER_SIZE = new int[TYPES];
+    private static final int[] MAX_FOOD_LEVEL = new int[TYPES];
+    private static final int[] MAX_WATER_LEVEL = new int[TYPES];
+    private static final boolean[] IS_PLANT = new boolean[TYPES];
+    private static final boolean[] NEEDS_PARTNER = new boolean[TYPES];
+    private static final boolean[] DIES_OF_OVERCROWDING = new boolean[TYPES];
+    // Whether a type ages, gets hungry and acts at night: only white walkers differ.
+    private static final boolean[] AGES = new boolean[TYPES];
+    private static final boolean[] AWAKE_AT_NIGHT = new boolean[TYPES];
+
+    static {
+        for(int t = 0; t < TYPES; t++) {
+            Species prototype = SpeciesRegistry.prototypeOf(t);
+            if(prototype instanceof Creature) {
+                Creature creature = (Creature) prototype;
+                MAX_AGE[t] = creature.getMaxAge();
+                BREEDING_AGE[t] = creature.getBreedingAge();
+                BREEDING_PROBABILITY[t] = creature.getBreedingProbability();
+                MAX_LITTER_SIZE[t] = creature.getMaxLitterSize();
+                MAX_FOOD_LEVEL[t] = creature.getMaxFoodLevel();
+                NEEDS_PARTNER[t] = creature.needsPartner();
+                AGES[t] = !(creature instanceof WhiteWalker);
+                DIES_OF_OVERCROWDING[t] = !(creature instanceof WhiteWalker);
+                AWAKE_AT_NIGHT[t] = Simulator.isAwake(creature, 0);
+            }
+            else {
+                Plant plant = (Plant) prototype;
+                IS_PLANT[t] = true;
+                MAX_WATER_LEVEL[t] = plant.getMaxWaterLevel();
+                DIES_OF_OVERCROWDING[t] = plant.diesOfOvercrowding();
+                AWAKE_AT_NIGHT[t] = true;
+            }
+        }
+    }
+
+    // The depth and width of the grid.
+    private final int depth, width;
+    // The entity in each cell, or EMPTY.
+    private final int[] grid;
+    // The random stream of the store.
+    private final RandomStream rand;
+
+    // The parallel arrays, one entry per entity.
+    private byte[] type;
+    private short[] age;
+    private short[] foodLevel;
+    private boolean[] male;
+    private byte[] waterLevel;
+    private int[] cell;
+    // The number of entities in the arrays, alive or not.
+    private int count;
+    // The number of living entities of each type.
+    private final int[] population = new int[TYPES];
+
+    // The cell index offsets of the 8 cells around a cell, for each way the edges clip them.
+    private final int[][] neighbourTables;
+    // Scratch space for the free cells around a cell.
+    private final int[] free = new int[Neighbourhood.MOORE.size()];
+
+    /**
+     * Create an empty store.
+     * @param depth The depth of the grid.
+     * @param width The width of the grid.
+     * @param rand The random stream the store draws from.
+     */
+    public EntityStore(int depth, int width, RandomStream rand)
+    {
+        this.depth = depth;
+        this.width = width;
+        this.rand = rand;
+        grid = new int[depth * width];
+        Arrays.fill(grid, EMPTY);
+        neighbourTables = Neighbourhood.MOORE.tablesFor(width);
+        type = new byte[INITIAL_CAPACITY];
+        age = new short[INITIAL_CAPACITY];
+        foodLevel = new short[INITIAL_CAPACITY];
+        male = new boolean[INITIAL_CAPACITY];
+        waterLevel = new byte[INITIAL_CAPACITY];
+        cell = new int[INITIAL_CAPACITY];
+    }
+
+    /**
+     * Copy living species into the store, in the order of the list.
+     * @param species The species to copy.
+     */
+    public void load(List<Species> species)
+    {
+        for(Species next : species) {
+            int at = next.getCell();
+            if(!next.isActive() || at == Field.NO_CELL) {
+                continue;
+            }
+            // The cell of a sparse field is a handle, not an index.
+            Field field = next.getField();
+            at = field.rowOf(at) * width + field.colOf(at);
+            int t = typeOf(next);
+            if(next instanceof Creature) {
+                Creature creature = (Creature) next;
+                add(t, at, creature.getAge(), creature.getFoodLevel(), creature.getIsMale(), 0);
+            }
+            else {
+                add(t, at, 0, 0, true, ((Plant) next).getWaterLevel());
+            }
+        }
+    }
+
+    /**
+     * Add an entity.
+     * @param t Its type.
+     * @param at Its cell, which must be empty.
+     * @param entityAge Its age.
+     * @param food Its food level.
+     * @param isMale Its sex.
+     * @param water Its water level.
+     * @return The index of the new entity.
+     */
+    public int add(int t, int at, int entityAge, int food, boolean isMale, int water)
+    {
+        if(count == type.length) {
+            grow();
+        }
+        int i = count++;
+        type[i] = (byte) t;
+        age[i] = (short) entityAge;
+        foodLevel[i] = (short) food;
+        male[i] = isMale;
+        waterLevel[i] = (byte) water;
+        cell[i] = at;
+        grid[at] = i;
+        population[t]++;
+        return i;
+    }
+
+    /**
+     * Run one step of the simulation over the store.
+     * @param time Day time.
+     * @param weather The current weather.
+     */
+    public void step(int time, Weather weather)
+    {
+        boolean night = time < DAWN;
+        int size = count;
+        ageAndHunger(size, night);
+
+        for(int i = 0; i < size; i++) {
+            if(cell[i] == EMPTY) {
+                continue;
+            }
+            int t = type[i];
+            if(night && !AWAKE_AT_NIGHT[t]) {
+                continue;
+            }
+            if(IS_PLANT[t]) {
+                plantAct(i, t, weather);
+            }
+            else if(!(t == DRAGON && weather == Weather.WINDY)) {
+                // Dragons cannot move when it's windy.
+                creatureAct(i, t);
+            }
+        }
+        compact();
+    }
+
+    /**
+     * Make every awake creature older and hungrier, as incrementAge and
+     * incrementHunger do, killing those too old or starving.
+     * @param size The number of entities to go through.
+     * @param night True if only the creatures awake at night act.
+     */
+    private void ageAndHunger(int size, boolean night)
+    {
+        for(int i = 0; i < size; i++) {
+            int t = type[i];
+            if(AGES[t] && cell[i] != EMPTY && (!night || AWAKE_AT_NIGHT[t])) {
+                int newAge = ++age[i];
+                int food = --foodLevel[i];
+                if(newAge > MAX_AGE[t] || food <= 0) {
+                    kill(i);
+                }
+            }
+        }
+    }
+
+    /**
+     * The rules of Creature.act: give birth, then move towards food
+     * or a free cell, or die of overcrowding.
+     */
+    private void creatureAct(int i, int t)
+    {
+        int at = cell[i];
+        int freeCount = freeNeighbours(at);
+        int births = breed(i, t);
+        for(int b = 0; b < births && b < freeCount; b++) {
+            if(checkPartner(i, t, at)) {
+                add(t, free[b], 0, MAX_FOOD_LEVEL[t], rand.nextDouble() > 0.5, 0);
+            }
+        }
+
+        int target = findFood(i, t, at);
+        if(target == EMPTY) {
+            // Births may have taken some of the free cells.
+            target = freeNeighbours(at) > 0 ? free[0] : EMPTY;
+        }
+        if(target != EMPTY) {
+            grid[at] = EMPTY;
+            grid[target] = i;
+            cell[i] = target;
+        }
+        else if(DIES_OF_OVERCROWDING[t]) {
+            kill(i);
+        }
+    }
+
+    /**
+     * The rules of Plant.act: follow the weather, and fill every free
+     * cell around with seedlings when the water level is high enough.
+     */
+    private void plantAct(int i, int t, Weather weather)
+    {
+        int change = ((Plant) SpeciesRegistry.prototypeOf(t)).getWaterChange(weather);
+        int water = Math.max(0, waterLevel[i] + change);
+        if(water >= MAX_WATER_LEVEL[t]) {
+            water %= MAX_WATER_LEVEL[t];
+            int freeCount = freeNeighbours(cell[i]);
+            for(int b = 0; b < freeCount; b++) {
+                add(t, free[b], 0, 0, true, Plant.INITIAL_WATER_LEVEL);
+            }
+            // After seeding every free cell none is left, so crowded plants die.
+            if(DIES_OF_OVERCROWDING[t]) {
+                kill(i);
+                return;
+            }
+        }
+        waterLevel[i] = (byte) water;
+    }
+
+    /**
+     * @return The number of births, as Creature.breed.
+     */
+    private int breed(int i, int t)
+    {
+        if(age[i] >= BREEDING_AGE[t] && rand.nextDouble() <= BREEDING_PROBABILITY[t]) {
+            return rand.nextInt(MAX_LITTER_SIZE[t]) + 1;
+        }
+        return 0;
+    }
+
+    /**
+     * The same test as Creature.checkPartner: species needing a partner
+     * only breed when no creature of the same type and opposite sex is around.
+     */
+    private boolean checkPartner(int i, int t, int at)
+    {
+        if(!NEEDS_PARTNER[t]) {
+            return true;
+        }
+        int[] offsets = neighbours(at);
+        for(int k = 0; k < offsets.length; k++) {
+            int other = grid[at + offsets[k]];
+            if(other != EMPTY && type[other] == t && male[other] != male[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Look around in a random order for something to eat, and eat it.
+     * @return The cell of the meal, or EMPTY if nothing was eaten.
+     */
+    private int findFood(int i, int t, int at)
+    {
+        int[] offsets = neighbours(at);
+        int n = offsets.length;
+        int order = rand.nextInt(Neighbourhood.orders(n));
+        int start = Neighbourhood.start(n, order);
+        int stride = Neighbourhood.stride(n, order);
+        DietMatrix diet = DietMatrix.getDefault();
+        for(int k = 0; k < n; k++) {
+            int where = at + offsets[(start + k * stride) % n];
+            int prey = grid[where];
+            if(prey != EMPTY && diet.eats(t, type[prey])) {
+                int food = foodLevel[i] + diet.foodGain(t, type[prey]);
+                foodLevel[i] = (short) Math.min(food, MAX_FOOD_LEVEL[t]);
+                if(!diet.kills(t, type[prey])) {
+                    // The prey stays where it is, so there is nowhere to move.
+                    return EMPTY;
+                }
+                kill(prey);
+                return where;
+            }
+        }
+        return EMPTY;
+    }
+
+    /**
+     * Put the free cells around a cell in the free array, in a random order.
+     * @return The number of free cells.
+     */
+    private int freeNeighbours(int at)
+    {
+        int[] offsets = neighbours(at);
+        int n = offsets.length;
+        int order = rand.nextInt(Neighbourhood.orders(n));
+        int start = Neighbourhood.start(n, order);
+        int stride = Neighbourhood.stride(n, order);
+        int freeCount = 0;
+        for(int k = 0; k < n; k++) {
+            int where = at + offsets[(start + k * stride) % n];
+            if(grid[where] == EMPTY) {
+                free[freeCount++] = where;
+            }
+        }
+        return freeCount;
+    }
+
+    /**
+     * @return The cell index offsets of the cells around a cell, shared and not to be modified.
+     */
+    private int[] neighbours(int at)
+    {
+        int row = at / width;
+        return neighbourTables[Neighbourhood.MOORE.tableIndex(row, at - row * width, depth, width)];
+    }
+
+    /**
+     * Remove an entity from the grid. Its entry stays in the arrays
+     * until the end of the step.
+     */
+    private void kill(int i)
+    {
+        if(cell[i] != EMPTY) {
+            grid[cell[i]] = EMPTY;
+            cell[i] = EMPTY;
+            population[type[i]]--;
+        }
+    }
+
+    /**
+     * Remove the dead entities in a single pass, keeping the order of the others.
+     */
+    private void compact()
+    {
+        int kept = 0;
+        for(int i = 0; i < count; i++) {
+            if(cell[i] != EMPTY) {
+                if(kept != i) {
+                    type[kept] = type[i];
+                    age[kept] = age[i];
+                    foodLevel[kept] = foodLevel[i];
+                    male[kept] = male[i];
+                    waterLevel[kept] = waterLevel[i];
+                    cell[kept] = cell[i];
+                    grid[cell[kept]] = kept;
+                }
+                kept++;
+            }
+        }
+        count = kept;
+    }
+
+    /**
+     * Make the arrays half as big again.
+     */
+    private void grow()
+    {
+        int capacity = type.length + (type.length >> 1);
+        type = Arrays.copyOf(type, capacity);
+        age = Arrays.copyOf(age, capacity);
+        foodLevel = Arrays.copyOf(foodLevel, capacity);
+        male = Arrays.copyOf(male, capacity);
+        waterLevel = Arrays.copyOf(waterLevel, capacity);
+        cell = Arrays.copyOf(cell, capacity);
+    }
+
+    /**
+     * Show the content of the store in a field of the same size.
+     * Every entity is shown by the prototype of its species, which is
+     * enough for views and statistics that only look at the class.
+     * @param field The field to fill.
+     */
+    public void writeTo(Field field)
+    {
+        for(int at = 0; at < grid.length; at++) {
+            int i = grid[at];
+            field.place(i == EMPTY ? null : SpeciesRegistry.prototypeOf(type[i]), at / width, at % width);
+        }
+    }
+
+    /**
+     * @param t A type.
+     * @return The number of living entities of that type.
+     */
+    public int getPopulation(int t)
+    {
+        return population[t];
+    }
+
+    /**
+     * @return The number of living entities.
+     */
+    public int size()
+    {
+        int total = 0;
+        for(int t = 0; t < TYPES; t++) {
+            total += population[t];
+        }
+        return total;
+    }
+
+    /**
+     * Determine whether the simulation is still viable.
+     * @return true If there is more than one type alive.
+     */
+    public boolean isViable()
+    {
+        int nonZero = 0;
+        for(int t = 0; t < TYPES; t++) {
+            if(population[t] > 0) {
+                nonZero++;
+            }
+        }
+        return nonZero > 1;
+    }
+
+    /**
+     * @param species A species.
+     * @return Its type id in the store.
+     */
+    public static int typeOf(Species species)
+    {
+        int t = species.getTypeId();
+        if(t >= TYPES) {
+            throw new IllegalArgumentException("No type for " + species.getClass().getName());
+        }
+        return t;
+    }
+}
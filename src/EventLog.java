@@ -0,0 +1,415 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A compact binary log of what happens at each step of a simulation:
+ * births, deaths and their cause, moves, infections and changes of the
+ * weather. An EventReplay rebuilds the field of any step from it, without
+ * simulating anything.
+ *
+ * Species record their own events in the log of their field as they act.
+ * Each event is a varint tag, holding its kind in the low 3 bits and a
+ * type id, cause or weather above them, followed by the cells it concerns.
+ * A cell is written as the zig-zag varint of its distance from the cell of
+ * the previous event, and a move as the distance it moved, so most events
+ * take two or three bytes. Cells are numbered row by row, whatever the
+ * kind of field.
+ *
+ * The file starts with a header (magic, version, depth, width), then has
+ * one frame per step: its step, hour and the length of its events, all as
+ * varints, then the events. The first frame holds a birth for every
+ * species in the field when the recording started, so a log can be
+ * started at any step.
+ *
+ * The events of a step are gathered in memory on the simulation thread,
+ * and a background thread writes the frames to the file, so the
+ * simulation does not wait for the disk unless it gets far ahead of it.
+ * When a TiledStepEngine makes the species act, each tile records into
+ * its own buffer, and the buffers are added to the step in tile order
+ * after each colour, so the log does not depend on the number of threads.
+ */
+public class EventLog
+{
+    // The first bytes of an event log, and the version of its layout.
+    static final int MAGIC = 0x5753454C;
+    static final int VERSION = 1;
+    // The kinds of event, in the low bits of a tag.
+    static final int BIRTH = 0;
+    static final int DEATH = 1;
+    static final int MOVE = 2;
+    static final int INFECTION = 3;
+    static final int WEATHER = 4;
+    static final int CLEAR = 5;
+    static final int SEGMENT = 6;
+    static final int KIND_BITS = 3;
+    static final int KIND_MASK = (1 << KIND_BITS) - 1;
+    // The number of frames waiting to be written before the simulation waits.
+    private static final int QUEUED_FRAMES = 256;
+    // Tells the writer there are no more frames.
+    private static final byte[] END = new byte[0];
+
+    // The events of the current step recorded on the simulation thread.
+    private final Buffer step = new Buffer();
+    // The buffer each thread records into.
+    private final ThreadLocal<Buffer> target = ThreadLocal.withInitial(() -> step);
+    // Where the header and the size of a frame are put together.
+    private final Buffer frame = new Buffer();
+    // The frames waiting to be written.
+    private final BlockingQueue<byte[]> frames = new ArrayBlockingQueue<>(QUEUED_FRAMES);
+    // The file, and the thread writing to it.
+    private final OutputStream out;
+    private final Thread writer;
+    // The depth and width of the fields recorded.
+    private final int depth, width;
+
+    // The field recorded, and whether its cells are already numbered row by row.
+    private Field field;
+    private boolean rowMajor;
+    // The weather of the last frame, or null to record it in the next one.
+    private Weather weather;
+    // The number of bytes of the frames handed to the writer.
+    private long bytes;
+    // The first error of the writer, if any.
+    private volatile IOException failure;
+
+    /**
+     * Create a log, writing its header to a file.
+     * @param file The name of the file, replaced if it exists.
+     * @param depth The depth of the fields recorded.
+     * @param width The width of the fields recorded.
+     * @throws IOException If the file cannot be written.
+     */
+    public EventLog(String file, int depth, int width) throws IOException
+    {
+        this.depth = depth;
+        this.width = width;
+        out = new BufferedOutputStream(new FileOutputStream(file), 1 << 16);
+        DataOutputStream header = new DataOutputStream(out);
+        header.writeInt(MAGIC);
+        header.writeInt(VERSION);
+        header.writeInt(depth);
+        header.writeInt(width);
+        writer = new Thread(this::writeFrames, "event-log-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Record the events of a field from now on, instead of the field recorded so far.
+     * @param field The field, of the size of the log.
+     */
+    void attach(Field field)
+    {
+        if(this.field != null) {
+            this.field.setEventLog(null);
+        }
+        this.field = field;
+        rowMajor = !(field instanceof SparseField);
+        field.setEventLog(this);
+    }
+
+    /**
+     * Record the field as it is, as if it was cleared and every species in
+     * it was born again, with the infected creatures infected again.
+     * @param species The species of the field.
+     */
+    void keyframe(List<Species> species)
+    {
+        fieldCleared();
+        for(Species next : species) {
+            int cell = next.getCell();
+            if(next.isActive() && cell != Field.NO_CELL) {
+                placed(next.getTypeId(), Field.NO_CELL, cell);
+                if(next instanceof Creature && ((Creature) next).isInfected()) {
+                    infection(cell);
+                }
+            }
+        }
+        weather = null;
+    }
+
+    /**
+     * Record a species placed in a cell: a birth if it was in none, a move otherwise.
+     * @param type The type id of the species.
+     * @param from The cell it was in, or Field.NO_CELL.
+     * @param to The cell it is placed in.
+     */
+    void placed(int type, int from, int to)
+    {
+        Buffer events = target.get();
+        if(from == Field.NO_CELL) {
+            events.tag(BIRTH, type);
+            events.position(positionOf(to));
+        }
+        else {
+            long start = positionOf(from);
+            events.tag(MOVE, 0);
+            events.position(start);
+            long end = positionOf(to);
+            events.putVarint(zigzag(end - start));
+            events.last = end;
+        }
+    }
+
+    /**
+     * Record the death of the species in a cell.
+     * @param cell The cell.
+     * @param cause Why it died.
+     */
+    void death(int cell, DeathCause cause)
+    {
+        Buffer events = target.get();
+        events.tag(DEATH, cause.ordinal());
+        events.position(positionOf(cell));
+    }
+
+    /**
+     * Record the infection of the creature in a cell.
+     * @param cell The cell.
+     */
+    void infection(int cell)
+    {
+        Buffer events = target.get();
+        events.tag(INFECTION, 0);
+        events.position(positionOf(cell));
+    }
+
+    /**
+     * Record that the whole field was emptied.
+     */
+    void fieldCleared()
+    {
+        target.get().tag(CLEAR, 0);
+    }
+
+    /**
+     * Make the calling thread record into a buffer of its own.
+     * @param events The buffer to record into.
+     * @return The buffer the thread recorded into before.
+     */
+    Buffer select(Buffer events)
+    {
+        Buffer previous = target.get();
+        target.set(events);
+        return previous;
+    }
+
+    /**
+     * Add the events of a buffer to the step, and empty the buffer.
+     * @param events The buffer, recorded into by select.
+     */
+    void append(Buffer events)
+    {
+        if(events.size > 0) {
+            step.tag(SEGMENT, 0);
+            step.put(events.bytes, events.size);
+            step.last = events.last;
+            events.size = 0;
+            events.last = 0;
+        }
+    }
+
+    /**
+     * End the step: hand its events to the writer as a frame.
+     * @param stepNumber The number of the step.
+     * @param time The hour of the step.
+     * @param weather The weather of the step.
+     */
+    void endStep(int stepNumber, int time, Weather weather)
+    {
+        int changed = 0;
+        if(weather != this.weather) {
+            this.weather = weather;
+            changed = varintSize(weather.ordinal() << KIND_BITS | WEATHER);
+        }
+        frame.size = 0;
+        frame.putVarint(stepNumber);
+        frame.putVarint(time);
+        frame.putVarint(changed + step.size);
+        if(changed > 0) {
+            frame.tag(WEATHER, weather.ordinal());
+        }
+        frame.put(step.bytes, step.size);
+        step.size = 0;
+        step.last = 0;
+        bytes += frame.size;
+        try {
+            frames.put(Arrays.copyOf(frame.bytes, frame.size));
+        }
+        catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Write the frames left and close the file.
+     * @throws IOException If some frames could not be written.
+     */
+    public void close() throws IOException
+    {
+        if(field != null) {
+            field.setEventLog(null);
+            field = null;
+        }
+        boolean interrupted = false;
+        while(writer.isAlive()) {
+            try {
+                frames.put(END);
+                writer.join();
+            }
+            catch(InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if(interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if(failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * @return The number of bytes of events recorded, without the header.
+     */
+    public long getBytesRecorded()
+    {
+        return bytes;
+    }
+
+    public int getDepth()
+    {
+        return depth;
+    }
+
+    public int getWidth()
+    {
+        return width;
+    }
+
+    /**
+     * Write the frames as they come, until the end. After an error the
+     * frames are still taken, so the simulation never waits for a dead writer.
+     */
+    private void writeFrames()
+    {
+        try {
+            byte[] next;
+            while((next = frames.take()) != END) {
+                if(failure == null) {
+                    try {
+                        out.write(next);
+                    }
+                    catch(IOException e) {
+                        failure = e;
+                    }
+                }
+            }
+        }
+        catch(InterruptedException e) {
+            // stop writing
+        }
+        try {
+            out.close();
+        }
+        catch(IOException e) {
+            if(failure == null) {
+                failure = e;
+            }
+        }
+    }
+
+    /**
+     * @return The number of a cell counted row by row.
+     */
+    private long positionOf(int cell)
+    {
+        return rowMajor ? cell : (long) field.rowOf(cell) * width + field.colOf(cell);
+    }
+
+    /**
+     * @return The value mapped to a positive number, small if the value is close to 0.
+     */
+    static long zigzag(long value)
+    {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    /**
+     * @return The value mapped back by zigzag.
+     */
+    static long unzigzag(long value)
+    {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * @return The number of bytes of a varint.
+     */
+    private static int varintSize(long value)
+    {
+        int size = 1;
+        while((value >>>= 7) != 0) {
+            size++;
+        }
+        return size;
+    }
+
+    /**
+     * Events recorded but not yet in a frame, and the cell of the last of them.
+     */
+    static class Buffer
+    {
+        byte[] bytes = new byte[256];
+        int size;
+        long last;
+
+        /**
+         * Put the tag of an event.
+         */
+        void tag(int kind, int payload)
+        {
+            putVarint((long) payload << KIND_BITS | kind);
+        }
+
+        /**
+         * Put a cell as its distance from the cell of the last event.
+         */
+        void position(long position)
+        {
+            putVarint(zigzag(position - last));
+            last = position;
+        }
+
+        /**
+         * Put a positive number, 7 bits a byte, with the high bit set on all bytes but the last.
+         */
+        void putVarint(long value)
+        {
+            if(size + 10 > bytes.length) {
+                bytes = Arrays.copyOf(bytes, 2 * bytes.length);
+            }
+            while((value & ~0x7FL) != 0) {
+                bytes[size++] = (byte) (value | 0x80);
+                value >>>= 7;
+            }
+            bytes[size++] = (byte) value;
+        }
+
+        void put(byte[] from, int length)
+        {
+            if(size + length > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(2 * bytes.length, size + length));
+            }
+            System.arraycopy(from, 0, bytes, size, length);
+            size += length;
+        }
+    }
+}
@@ -0,0 +1,381 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Rebuild the field of a simulation, step by step, from an EventLog.
+ *
+ * Nothing is simulated: the events of each step are applied to a field
+ * holding the prototype of each species (see SpeciesRegistry), which is
+ * all a view, FieldStats or a count by type id needs. Stepping through a
+ * log costs what happened in each step, not what lives in the field.
+ *
+ * The events of the last step read can be counted by kind, and deaths by
+ * cause, to audit a run. A replay can also be shown in a view, through a
+ * SnapshotPublisher, at any speed.
+ */
+public class EventReplay
+{
+    // The name of the log.
+    private final String file;
+    // The depth and width of the field.
+    private final int depth, width;
+    // The field rebuilt, and whether its cells are numbered row by row.
+    private Field field;
+    private boolean rowMajor;
+    // The log, after its header.
+    private InputStream in;
+    // The events of the frame being read.
+    private byte[] events = new byte[256];
+    // The step, hour and weather of the last frame read; step is -1 before the first.
+    private int step, time;
+    private Weather weather;
+    // The events of the last frame read, by kind, and its deaths by cause.
+    private final int[] counts = new int[EventLog.SEGMENT];
+    private final int[] deaths = new int[DeathCause.values().length];
+
+    /**
+     * Open a log, with an empty field before its first step.
+     * @param file The name of the log.
+     * @throws IOException If the file cannot be read or is not an event log.
+     */
+    public EventReplay(String file) throws IOException
+    {
+        this.file = file;
+        in = open();
+        DataInputStream header = new DataInputStream(in);
+        depth = header.readInt();
+        width = header.readInt();
+        rewind();
+    }
+
+    /**
+     * Read the next step of the log.
+     * @return False if the log has no more steps; the field is then left as it was.
+     * @throws IOException If the log cannot be read.
+     */
+    public boolean nextStep() throws IOException
+    {
+        long next = readVarint(in, true);
+        if(next < 0) {
+            return false;
+        }
+        int frameTime = (int) readVarint(in, false);
+        int length = (int) readVarint(in, false);
+        if(events.length < length) {
+            events = new byte[Math.max(length, 2 * events.length)];
+        }
+        int read = 0;
+        while(read < length) {
+            int n = in.read(events, read, length - read);
+            if(n < 0) {
+                throw new EOFException(file + " ends within step " + next);
+            }
+            read += n;
+        }
+        step = (int) next;
+        time = frameTime;
+        apply(length);
+        return true;
+    }
+
+    /**
+     * Rebuild the field of a step, reading the log from the start if the
+     * step has already been passed.
+     * @param target The step.
+     * @return False if the log has no such step; the field is then at the last step of the log.
+     * @throws IOException If the log cannot be read.
+     */
+    public boolean seek(int target) throws IOException
+    {
+        if(target < step) {
+            in.close();
+            in = open();
+            // Skip the depth and width.
+            new DataInputStream(in).readLong();
+            rewind();
+        }
+        while(step < target) {
+            if(!nextStep()) {
+                return false;
+            }
+        }
+        return step == target;
+    }
+
+    /**
+     * Show the rest of the log in a view, one step at a time.
+     * @param publisher The publisher showing the steps in a view.
+     * @param stepDelay The pause between two steps in milliseconds, zero to replay as fast as possible.
+     * @throws IOException If the log cannot be read.
+     */
+    public void play(SnapshotPublisher publisher, int stepDelay) throws IOException
+    {
+        while(nextStep()) {
+            publisher.publish(field, step, time, weather);
+            if(stepDelay > 0) {
+                try {
+                    Thread.sleep(stepDelay);
+                }
+                catch(InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+        // The last step may have come within a frame of the one shown before.
+        publisher.flush();
+    }
+
+    /**
+     * Close the log.
+     * @throws IOException If the log cannot be closed.
+     */
+    public void close() throws IOException
+    {
+        in.close();
+    }
+
+    /**
+     * @return The field as it was at the end of the last step read.
+     */
+    public Field getField()
+    {
+        return field;
+    }
+
+    /**
+     * @return The last step read, or -1 before the first.
+     */
+    public int getStep()
+    {
+        return step;
+    }
+
+    /**
+     * @return The hour of the last step read.
+     */
+    public int getTime()
+    {
+        return time;
+    }
+
+    /**
+     * @return The weather of the last step read, or null before the first.
+     */
+    public Weather getWeather()
+    {
+        return weather;
+    }
+
+    /**
+     * @return The number of births of the last step read.
+     */
+    public int getBirths()
+    {
+        return counts[EventLog.BIRTH];
+    }
+
+    /**
+     * @return The number of moves of the last step read.
+     */
+    public int getMoves()
+    {
+        return counts[EventLog.MOVE];
+    }
+
+    /**
+     * @return The number of infections of the last step read.
+     */
+    public int getInfections()
+    {
+        return counts[EventLog.INFECTION];
+    }
+
+    /**
+     * @param cause A cause of death.
+     * @return The number of deaths of that cause in the last step read.
+     */
+    public int getDeaths(DeathCause cause)
+    {
+        return deaths[cause.ordinal()];
+    }
+
+    /**
+     * Open the log and check its magic and version.
+     * @return The log, at the depth and width of its header.
+     */
+    private InputStream open() throws IOException
+    {
+        InputStream stream = new BufferedInputStream(new FileInputStream(file), 1 << 16);
+        DataInputStream header = new DataInputStream(stream);
+        try {
+            if(header.readInt() != EventLog.MAGIC) {
+                throw new IOException(file + " is not an event log");
+            }
+            int version = header.readInt();
+            if(version != EventLog.VERSION) {
+                throw new IOException(file + " is an event log of version " + version + ", not " + EventLog.VERSION);
+            }
+        }
+        catch(IOException e) {
+            stream.close();
+            throw e;
+        }
+        return stream;
+    }
+
+    /**
+     * Start again with an empty field, before the first step.
+     */
+    private void rewind()
+    {
+        field = Field.fitsDense(depth, width) ? new Field(depth, width) : new SparseField(depth, width);
+        rowMajor = !(field instanceof SparseField);
+        step = -1;
+        time = 0;
+        weather = null;
+    }
+
+    /**
+     * Apply the events of a frame to the field.
+     * @param length The number of bytes of the events.
+     */
+    private void apply(int length) throws IOException
+    {
+        Arrays.fill(counts, 0);
+        Arrays.fill(deaths, 0);
+        int[] at = new int[1];
+        long last = 0;
+        while(at[0] < length) {
+            long tag = readVarint(events, at);
+            int kind = (int) (tag & EventLog.KIND_MASK);
+            int payload = (int) (tag >>> EventLog.KIND_BITS);
+            switch(kind) {
+                case EventLog.BIRTH:
+                    last += EventLog.unzigzag(readVarint(events, at));
+                    field.place(SpeciesRegistry.prototypeOf(payload), cellOf(last));
+                    break;
+                case EventLog.DEATH:
+                    last += EventLog.unzigzag(readVarint(events, at));
+                    field.clear(cellOf(last));
+                    deaths[payload]++;
+                    break;
+                case EventLog.MOVE:
+                    last += EventLog.unzigzag(readVarint(events, at));
+                    int from = cellOf(last);
+                    last += EventLog.unzigzag(readVarint(events, at));
+                    Object moved = field.getObjectAt(from);
+                    field.clear(from);
+                    field.place(moved, cellOf(last));
+                    break;
+                case EventLog.INFECTION:
+                    last += EventLog.unzigzag(readVarint(events, at));
+                    break;
+                case EventLog.WEATHER:
+                    weather = Weather.values()[payload];
+                    break;
+                case EventLog.CLEAR:
+                    field.clear();
+                    break;
+                case EventLog.SEGMENT:
+                    last = 0;
+                    break;
+                default:
+                    throw new IOException(file + " has an unknown event in step " + step);
+            }
+            if(kind < counts.length) {
+                counts[kind]++;
+            }
+        }
+    }
+
+    /**
+     * @return The cell of the field at a cell counted row by row.
+     */
+    private int cellOf(long position)
+    {
+        return rowMajor ? (int) position : field.cellOf((int) (position / width), (int) (position % width));
+    }
+
+    /**
+     * Read a varint from the events of the frame.
+     * @param at The position to read at, moved past the varint.
+     */
+    private static long readVarint(byte[] bytes, int[] at)
+    {
+        long value = 0;
+        int shift = 0;
+        byte next;
+        do {
+            next = bytes[at[0]++];
+            value |= (long) (next & 0x7F) << shift;
+            shift += 7;
+        } while(next < 0);
+        return value;
+    }
+
+    /**
+     * Read a varint from the log.
+     * @param atFrame True if the log may end here, before a frame.
+     * @return The varint, or -1 at the end of the log.
+     */
+    private long readVarint(InputStream stream, boolean atFrame) throws IOException
+    {
+        long value = 0;
+        int shift = 0;
+        int next;
+        do {
+            next = stream.read();
+            if(next < 0) {
+                if(atFrame && shift == 0) {
+                    return -1;
+                }
+                throw new EOFException(file + " ends within a frame");
+            }
+            value |= (long) (next & 0x7F) << shift;
+            shift += 7;
+        } while((next & 0x80) != 0);
+        return value;
+    }
+
+    /**
+     * Replay a log in a view. Pass the name of the log, and optionally the
+     * pause between two steps in milliseconds.
+     */
+    public static void main(String args[])
+    {
+        if(args.length == 0) {
+            System.out.println("Give the name of an event log to replay.");
+            return;
+        }
+        int stepDelay = SnapshotPublisher.FRAME_MILLIS;
+        if(args.length > 1) {
+            try {
+                stepDelay = Integer.parseInt(args[1]);
+            }
+            catch(NumberFormatException e) {
+                System.out.println("The pause between two steps must be a number of milliseconds.");
+                System.out.println("Using the default value.");
+            }
+        }
+        try {
+            EventReplay replay = new EventReplay(args[0]);
+            if(!Field.fitsDense(replay.depth, replay.width)) {
+                System.out.println("A field this big cannot be shown in a view.");
+                replay.close();
+                return;
+            }
+            SnapshotPublisher publisher = new SnapshotPublisher(Simulator.newView(replay.depth, replay.width));
+            replay.play(publisher, stepDelay);
+            replay.close();
+        }
+        catch(IOException e) {
+            System.out.println("Could not replay the events: " + e.getMessage());
+        }
+    }
+}
@@ -1,22 +1,70 @@
-import java.util.Collections;
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Random;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntConsumer;
 
 /**
  * Represent a rectangular grid of field positions.
  * Each position is able to store a single animal.
+ *
+ * A field can be double-buffered: between beginGeneration and
+ * swapGenerations every read sees the field as it was at the start
+ * of the step (generation N), while places and clears go into the
+ * next generation (N+1). What a species sees then does not depend on
+ * which species acted before it in the same step.
+ *
+ * The field also counts the species of each type id of SpeciesRegistry
+ * as they are placed and cleared, so the population is known without
+ * scanning the grid. The counts follow the generation being written,
+ * which is the whole field once the generation ends. Species of several
+ * tiles are placed at the same time, so each count is a LongAdder, whose
+ * threads update separate cells. Deaths are counted by cause the same way.
+ *
+ * A view can ask the field to mark the cells that change in a bitset,
+ * so that it only redraws those; see setDirtyTracking. Species record
+ * what happens to them in the EventLog of their field, if it has one.
+ *
+ * The grid is dense, one entry per cell, so its area must fit in an int.
+ * Larger, mostly empty worlds use a SparseField, whose cell indices are
+ * handles rather than row * width + col: code working with cells only
+ * goes through cellOf, rowOf, colOf and adjacentOffsets to move between
+ * cells and coordinates.
  */
 public class Field
 {
-    // A random number generator for providing random locations.
-    private static final Random rand = Randomizer.getRandom();
+    // The cell index meaning "no cell".
+    public static final int NO_CELL = -1;
+    // The largest number of cells of a dense field.
+    public static final long MAX_DENSE_CELLS = Integer.MAX_VALUE - 8;
+    // The type id of an empty cell, and of a cell holding something that is not a registered species.
+    public static final int EMPTY_TYPE = -1;
+    public static final int UNKNOWN_TYPE = -2;
+
+    // A random stream for providing random locations when the caller has none.
+    private final RandomStream rand = Randomizer.splitStream();
 
     // The depth and width of the field.
     private int depth, width;
-    // Storage for the animals.
-    private Object[][] field;
+    // Storage for the animals: the generation being read, one entry per cell.
+    private Object[] field;
+    // The generation being written during a double-buffered step, or null if not double-buffered.
+    private Object[] next;
+    // Whether a double-buffered step is in progress.
+    private boolean inGeneration;
+    // The number of species of each type id in the generation being written.
+    private volatile LongAdder[] population = new LongAdder[0];
+    // The number of deaths of each cause since the field was made or emptied.
+    private final LongAdder[] deaths = new LongAdder[DeathCause.values().length];
+    // One bit per cell, set when the cell changes, or null if changes are not tracked.
+    private AtomicLongArray dirty;
+    // The log species record their births, deaths and moves in, or null.
+    private volatile EventLog events;
+    // Which cells are adjacent to a cell.
+    private Neighbourhood neighbourhood;
+    // The cell index offsets of the adjacent cells, for each way the edges clip the neighbourhood.
+    private int[][] adjacentTables;
 
     /**
      * Represent a field of the given dimensions.
@@ -25,9 +73,183 @@ public class Field
      */
     public Field(int depth, int width)
     {
+        this(depth, width, true);
+    }
+
+    /**
+     * Represent a field of the given dimensions, with or without the dense
+     * grid: a field keeping its animals elsewhere does not allocate it.
+     * @param depth The depth of the field.
+     * @param width The width of the field.
+     * @param dense True to allocate the grid.
+     */
+    Field(int depth, int width, boolean dense)
+    {
+        if(dense && !fitsDense(depth, width)) {
+            throw new IllegalArgumentException("A field of " + depth + " x " + width
+                                               + " is too big to be dense, use a SparseField");
+        }
         this.depth = depth;
         this.width = width;
-        field = new Object[depth][width];
+        for(int cause = 0; cause < deaths.length; cause++) {
+            deaths[cause] = new LongAdder();
+        }
+        if(dense) {
+            field = new Object[depth * width];
+        }
+        setNeighbourhood(Neighbourhood.MOORE);
+    }
+
+    /**
+     * @param depth The depth of a field.
+     * @param width The width of a field.
+     * @return True if a dense field of that size can be made.
+     */
+    public static boolean fitsDense(int depth, int width)
+    {
+        return (long) depth * width <= MAX_DENSE_CELLS;
+    }
+
+    /**
+     * Choose which cells are adjacent to a cell. The default is the
+     * Moore neighbourhood, the 8 cells around it.
+     * @param neighbourhood The neighbourhood to use.
+     */
+    public void setNeighbourhood(Neighbourhood neighbourhood)
+    {
+        this.neighbourhood = neighbourhood;
+        adjacentTables = neighbourhood.tablesFor(width);
+    }
+
+    /**
+     * @return Which cells are adjacent to a cell.
+     */
+    public Neighbourhood getNeighbourhood()
+    {
+        return neighbourhood;
+    }
+
+    /**
+     * @return The log of the events of the field, or null if they are not recorded.
+     */
+    EventLog getEventLog()
+    {
+        return events;
+    }
+
+    /**
+     * Record the events of the field in a log from now on.
+     * @param events The log, or null to stop recording.
+     */
+    void setEventLog(EventLog events)
+    {
+        this.events = events;
+    }
+
+    /**
+     * Turn double-buffering on or off.
+     * It must not be changed while a generation is in progress.
+     * @param doubleBuffered True to read and write separate generations.
+     */
+    public void setDoubleBuffered(boolean doubleBuffered)
+    {
+        if(doubleBuffered && next == null) {
+            next = new Object[depth * width];
+        }
+        else if(!doubleBuffered) {
+            next = null;
+        }
+    }
+
+    /**
+     * @return True if the field reads and writes separate generations.
+     */
+    public boolean isDoubleBuffered()
+    {
+        return next != null;
+    }
+
+    /**
+     * Start a new generation: from now on, writes go into a copy of
+     * the field, and reads still see the field as it is now.
+     * This does nothing if the field is not double-buffered.
+     */
+    public void beginGeneration()
+    {
+        if(next != null) {
+            System.arraycopy(field, 0, next, 0, field.length);
+            inGeneration = true;
+        }
+    }
+
+    /**
+     * End the generation: what has been written becomes what is read.
+     * This does nothing if no generation is in progress.
+     */
+    public void swapGenerations()
+    {
+        if(inGeneration) {
+            Object[] written = next;
+            next = field;
+            field = written;
+            inGeneration = false;
+        }
+    }
+
+    /**
+     * @return The grid that places and clears go into.
+     */
+    private Object[] writable()
+    {
+        return inGeneration ? next : field;
+    }
+
+    /**
+     * Return the index of a cell: cells are numbered row by row,
+     * so the index is row * width + col.
+     * @param row The row of the cell.
+     * @param col The column of the cell.
+     * @return The index of the cell.
+     */
+    public int cellOf(int row, int col)
+    {
+        return row * width + col;
+    }
+
+    /**
+     * @param location A location in the field.
+     * @return The index of the cell at that location.
+     */
+    public int cellOf(Location location)
+    {
+        return cellOf(location.getRow(), location.getCol());
+    }
+
+    /**
+     * @param cell The index of a cell.
+     * @return The row of the cell.
+     */
+    public int rowOf(int cell)
+    {
+        return cell / width;
+    }
+
+    /**
+     * @param cell The index of a cell.
+     * @return The column of the cell.
+     */
+    public int colOf(int cell)
+    {
+        return cell % width;
+    }
+
+    /**
+     * @param cell The index of a cell.
+     * @return A new location for the cell.
+     */
+    public Location locationOf(int cell)
+    {
+        return new Location(rowOf(cell), colOf(cell));
     }
 
     /**
@@ -35,11 +257,12 @@ public class Field
      */
     public void clear()
     {
-        for(int row = 0; row < depth; row++) {
-            for(int col = 0; col < width; col++) {
-                field[row][col] = null;
-            }
+        Object[] grid = writable();
+        for(int cell = 0; cell < grid.length; cell++) {
+            grid[cell] = null;
         }
+        resetPopulation();
+        markAllDirty();
     }
 
     /**
@@ -48,7 +271,22 @@ public class Field
      */
     public void clear(Location location)
     {
-        field[location.getRow()][location.getCol()] = null;
+        clear(cellOf(location));
+    }
+
+    /**
+     * Clear the given cell.
+     * @param cell The index of the cell to clear.
+     */
+    public void clear(int cell)
+    {
+        Object[] grid = writable();
+        Object old = grid[cell];
+        if(old != null) {
+            grid[cell] = null;
+            count(old, -1);
+            markDirty(cell);
+        }
     }
 
     /**
@@ -61,7 +299,7 @@ public class Field
      */
     public void place(Object animal, int row, int col)
     {
-        place(animal, new Location(row, col));
+        place(animal, cellOf(row, col));
     }
 
     /**
@@ -73,7 +311,240 @@ public class Field
      */
     public void place(Object animal, Location location)
     {
-        field[location.getRow()][location.getCol()] = animal;
+        place(animal, cellOf(location));
+    }
+
+    /**
+     * Place an animal in the given cell.
+     * If there is already an animal in the cell it will
+     * be lost.
+     * @param animal The animal to be placed.
+     * @param cell The index of the cell.
+     */
+    public void place(Object animal, int cell)
+    {
+        Object[] grid = writable();
+        Object old = grid[cell];
+        if(old != animal) {
+            grid[cell] = animal;
+            count(old, -1);
+            count(animal, 1);
+            markDirty(cell);
+        }
+    }
+
+    /**
+     * Turn on or off the marking of the cells that change. When turned on,
+     * every cell is marked, so the first drain goes through the whole field.
+     * @param track True to mark the cells that change.
+     */
+    public void setDirtyTracking(boolean track)
+    {
+        if(track && dirty == null) {
+            dirty = new AtomicLongArray((int) (((long) depth * width + 63) / 64));
+            markAllDirty();
+        }
+        else if(!track) {
+            dirty = null;
+        }
+    }
+
+    /**
+     * @return True if the cells that change are marked.
+     */
+    public boolean isDirtyTracking()
+    {
+        return dirty != null;
+    }
+
+    /**
+     * Go through the cells that changed since the last drain, and unmark them.
+     * It must not run while species act. Nothing is done if changes are not tracked.
+     * @param action What to do with the index of each changed cell.
+     */
+    public void drainDirtyCells(IntConsumer action)
+    {
+        AtomicLongArray bits = dirty;
+        if(bits == null) {
+            return;
+        }
+        for(int word = 0; word < bits.length(); word++) {
+            long set = bits.get(word) == 0 ? 0 : bits.getAndSet(word, 0);
+            while(set != 0) {
+                int cell = word * 64 + Long.numberOfTrailingZeros(set);
+                if(cell < depth * width) {
+                    action.accept(cell);
+                }
+                set &= set - 1;
+            }
+        }
+    }
+
+    /**
+     * Mark a cell as changed. Species of several tiles can change cells
+     * sharing a word at the same time, so the bit is set atomically; a bit
+     * already set costs a single read.
+     */
+    void markDirty(int cell)
+    {
+        AtomicLongArray bits = dirty;
+        if(bits != null) {
+            int word = cell >>> 6;
+            long bit = 1L << cell;
+            long old = bits.get(word);
+            while((old & bit) == 0 && !bits.compareAndSet(word, old, old | bit)) {
+                old = bits.get(word);
+            }
+        }
+    }
+
+    /**
+     * Mark every cell as changed.
+     */
+    void markAllDirty()
+    {
+        AtomicLongArray bits = dirty;
+        if(bits != null) {
+            for(int word = 0; word < bits.length(); word++) {
+                bits.set(word, -1L);
+            }
+        }
+    }
+
+    /**
+     * Change the count of the type of an object placed or cleared.
+     * Objects that are not species are not counted.
+     */
+    void count(Object object, int change)
+    {
+        if(object instanceof Species) {
+            int type = ((Species) object).getTypeId();
+            if(type >= 0) {
+                countsOf(type).add(change);
+            }
+        }
+    }
+
+    /**
+     * Set the count of every type and of every cause of death to zero, when the field is emptied.
+     */
+    void resetPopulation()
+    {
+        for(LongAdder count : population) {
+            count.reset();
+        }
+        for(LongAdder count : deaths) {
+            count.reset();
+        }
+    }
+
+    /**
+     * Count the death of a species of the field.
+     * @param cause Why it died.
+     */
+    void countDeath(DeathCause cause)
+    {
+        deaths[cause.ordinal()].increment();
+    }
+
+    /**
+     * Set the number of deaths of a cause, when a field is read back from a checkpoint.
+     * @param cause A cause of death.
+     * @param count The number of species that died of it.
+     */
+    void restoreDeaths(DeathCause cause, long count)
+    {
+        deaths[cause.ordinal()].reset();
+        deaths[cause.ordinal()].add(count);
+    }
+
+    /**
+     * @param cause A cause of death.
+     * @return The number of species of the field that died of that cause
+     *         since the field was made or last emptied.
+     */
+    public long getDeaths(DeathCause cause)
+    {
+        return deaths[cause.ordinal()].sum();
+    }
+
+    /**
+     * @return The count of a type id, made if the type is new to the field.
+     */
+    private LongAdder countsOf(int type)
+    {
+        LongAdder[] counts = population;
+        if(type >= counts.length) {
+            synchronized(this) {
+                counts = population;
+                if(type >= counts.length) {
+                    counts = Arrays.copyOf(counts, Math.max(type + 1, SpeciesRegistry.size()));
+                    for(int t = population.length; t < counts.length; t++) {
+                        counts[t] = new LongAdder();
+                    }
+                    population = counts;
+                }
+            }
+        }
+        return counts[type];
+    }
+
+    /**
+     * Return the number of species of a type in the field, kept up to date
+     * as species are placed and cleared.
+     * @param type A type id of SpeciesRegistry.
+     * @return The number of species of that type.
+     */
+    public int getPopulation(int type)
+    {
+        LongAdder[] counts = population;
+        return type < counts.length ? counts[type].intValue() : 0;
+    }
+
+    /**
+     * Check whether a location is free: nothing is there now and,
+     * during a double-buffered step, nothing has moved in yet.
+     * @param row The desired row.
+     * @param col The desired column.
+     * @return True if an animal can be placed there.
+     */
+    public boolean isFree(int row, int col)
+    {
+        return isFree(cellOf(row, col));
+    }
+
+    /**
+     * Check whether a cell is free: nothing is there now and,
+     * during a double-buffered step, nothing has moved in yet.
+     * @param cell The index of the cell.
+     * @return True if an animal can be placed there.
+     */
+    public boolean isFree(int cell)
+    {
+        return field[cell] == null && (!inGeneration || next[cell] == null);
+    }
+
+    /**
+     * Check whether nothing has been placed at a location in the generation
+     * being written. Without double-buffering it is the same as checking
+     * that getObjectAt returns null.
+     * @param location The location to check.
+     * @return True if nothing would be overwritten by placing an animal there.
+     */
+    public boolean isVacant(Location location)
+    {
+        return isVacant(cellOf(location));
+    }
+
+    /**
+     * Check whether nothing has been placed in a cell in the generation
+     * being written.
+     * @param cell The index of the cell.
+     * @return True if nothing would be overwritten by placing an animal there.
+     */
+    public boolean isVacant(int cell)
+    {
+        return writable()[cell] == null;
     }
 
     /**
@@ -94,7 +565,100 @@ public class Field
      */
     public Object getObjectAt(int row, int col)
     {
-        return field[row][col];
+        return field[row * width + col];
+    }
+
+    /**
+     * Return the animal in the given cell, if any.
+     * @param cell The index of the cell.
+     * @return The animal in the cell, or null if there is none.
+     */
+    public Object getObjectAt(int cell)
+    {
+        return field[cell];
+    }
+
+    /**
+     * Return the type id of what is in a cell, without going through the
+     * object where the field keeps type ids of its own.
+     * @param cell The index of the cell.
+     * @return The type id of SpeciesRegistry of the species in the cell,
+     *         EMPTY_TYPE if the cell is empty, or UNKNOWN_TYPE for anything else.
+     */
+    public int getTypeIdAt(int cell)
+    {
+        return typeIdOf(getObjectAt(cell));
+    }
+
+    /**
+     * @param object What is in a cell, or null.
+     * @return Its type id, EMPTY_TYPE or UNKNOWN_TYPE.
+     */
+    static int typeIdOf(Object object)
+    {
+        if(object == null) {
+            return EMPTY_TYPE;
+        }
+        if(object instanceof Species && ((Species) object).getTypeId() >= 0) {
+            return ((Species) object).getTypeId();
+        }
+        return UNKNOWN_TYPE;
+    }
+
+    /**
+     * Return the offsets of the cells adjacent to a cell: the adjacent
+     * cells are cell + offsets[k] for every k, and all lie within the field.
+     * The array is shared and must not be modified.
+     * @param cell The index of the cell.
+     * @return The cell index offsets of the adjacent cells.
+     */
+    public int[] adjacentOffsets(int cell)
+    {
+        int row = cell / width;
+        return adjacentTables[neighbourhood.tableIndex(row, cell - row * width, depth, width)];
+    }
+
+    /**
+     * Choose at random one of the free cells adjacent to a cell.
+     * Every free cell is equally likely, and nothing is allocated.
+     * @param cell The index of the cell.
+     * @param rand The random stream of the caller.
+     * @return The index of a free adjacent cell, or NO_CELL if there is none.
+     */
+    public int freeAdjacentCell(int cell, RandomStream rand)
+    {
+        int[] offsets = adjacentOffsets(cell);
+        int free = 0;
+        for(int k = 0; k < offsets.length; k++) {
+            if(isFree(cell + offsets[k])) {
+                free++;
+            }
+        }
+        if(free == 0) {
+            return NO_CELL;
+        }
+        int chosen = rand.nextInt(free);
+        for(int k = 0; k < offsets.length; k++) {
+            if(isFree(cell + offsets[k]) && chosen-- == 0) {
+                return cell + offsets[k];
+            }
+        }
+        return NO_CELL;
+    }
+
+    /**
+     * Choose at random one of the cells adjacent to a cell.
+     * @param cell The index of the cell.
+     * @param rand The random stream of the caller.
+     * @return The index of an adjacent cell, or NO_CELL if the field is a single cell.
+     */
+    public int randomAdjacentCell(int cell, RandomStream rand)
+    {
+        int[] offsets = adjacentOffsets(cell);
+        if(offsets.length == 0) {
+            return NO_CELL;
+        }
+        return cell + offsets[rand.nextInt(offsets.length)];
     }
 
     /**
@@ -107,8 +671,20 @@ public class Field
      */
     public Location randomAdjacentLocation(Location location)
     {
-        List<Location> adjacent = adjacentLocations(location);
-        return adjacent.get(0);
+        return randomAdjacentLocation(location, rand);
+    }
+
+    /**
+     * Generate a random location that is adjacent to the
+     * given location, drawing from the given random stream.
+     * @param location The location from which to generate an adjacency.
+     * @param rand The random stream of the caller.
+     * @return A valid location within the grid area.
+     */
+    public Location randomAdjacentLocation(Location location, RandomStream rand)
+    {
+        int next = randomAdjacentCell(cellOf(location), rand);
+        return next == NO_CELL ? null : locationOf(next);
     }
 
     /**
@@ -118,11 +694,27 @@ public class Field
      */
     public List<Location> getFreeAdjacentLocations(Location location)
     {
-        List<Location> free = new LinkedList<>();
-        List<Location> adjacent = adjacentLocations(location);
-        for(Location next : adjacent) {
-            if(getObjectAt(next) == null) {
-                free.add(next);
+        return getFreeAdjacentLocations(location, rand);
+    }
+
+    /**
+     * Get a shuffled list of the free adjacent locations.
+     * @param location Get locations adjacent to this.
+     * @param rand The random stream used to shuffle the list.
+     * @return A list of free adjacent locations.
+     */
+    public List<Location> getFreeAdjacentLocations(Location location, RandomStream rand)
+    {
+        int cell = cellOf(location);
+        int[] offsets = adjacentOffsets(cell);
+        List<Location> free = new ArrayList<>(offsets.length);
+        int order = rand.nextInt(Neighbourhood.orders(offsets.length));
+        int start = Neighbourhood.start(offsets.length, order);
+        int stride = Neighbourhood.stride(offsets.length, order);
+        for(int i = 0; i < offsets.length; i++) {
+            int next = cell + offsets[(start + i * stride) % offsets.length];
+            if(isFree(next)) {
+                free.add(locationOf(next));
             }
         }
         return free;
@@ -135,11 +727,16 @@ public class Field
      */
     public List<Location> getOccupiedAdjacentLocations(Location location)
     {
-        List<Location> nonFree = new LinkedList<>();
-        List<Location> adjacent = adjacentLocations(location);
-        for(Location next : adjacent) {
+        int cell = cellOf(location);
+        int[] offsets = adjacentOffsets(cell);
+        List<Location> nonFree = new ArrayList<>(offsets.length);
+        int order = rand.nextInt(Neighbourhood.orders(offsets.length));
+        int start = Neighbourhood.start(offsets.length, order);
+        int stride = Neighbourhood.stride(offsets.length, order);
+        for(int i = 0; i < offsets.length; i++) {
+            int next = cell + offsets[(start + i * stride) % offsets.length];
             if(getObjectAt(next) != null) {
-                nonFree.add(next);
+                nonFree.add(locationOf(next));
             }
         }
         return nonFree;
@@ -155,14 +752,20 @@ public class Field
      */
     public Location freeAdjacentLocation(Location location)
     {
-        // The available free ones.
-        List<Location> free = getFreeAdjacentLocations(location);
-        if(free.size() > 0) {
-            return free.get(0);
-        }
-        else {
-            return null;
-        }
+        return freeAdjacentLocation(location, rand);
+    }
+
+    /**
+     * Try to find a free location that is adjacent to the
+     * given location. If there is none, return null.
+     * @param location The location from which to generate an adjacency.
+     * @param rand The random stream of the caller.
+     * @return A valid location within the grid area.
+     */
+    public Location freeAdjacentLocation(Location location, RandomStream rand)
+    {
+        int free = freeAdjacentCell(cellOf(location), rand);
+        return free == NO_CELL ? null : locationOf(free);
     }
 
     /**
@@ -173,29 +776,33 @@ public class Field
      * @return A list of locations adjacent to that given.
      */
     public List<Location> adjacentLocations(Location location)
+    {
+        return adjacentLocations(location, rand);
+    }
+
+    /**
+     * Return a shuffled list of locations adjacent to the given one.
+     * The list will not include the location itself.
+     * All locations will lie within the grid.
+     * @param location The location from which to generate adjacencies.
+     * @param rand The random stream used to shuffle the list.
+     * @return A list of locations adjacent to that given.
+     */
+    public List<Location> adjacentLocations(Location location, RandomStream rand)
     {
         assert location != null : "Null location passed to adjacentLocations";
         // The list of locations to be returned.
-        List<Location> locations = new LinkedList<>();
+        List<Location> locations = new ArrayList<>();
         if(location != null) {
-            int row = location.getRow();
-            int col = location.getCol();
-            for(int roffset = -1; roffset <= 1; roffset++) {
-                int nextRow = row + roffset;
-                if(nextRow >= 0 && nextRow < depth) {
-                    for(int coffset = -1; coffset <= 1; coffset++) {
-                        int nextCol = col + coffset;
-                        // Exclude invalid locations and the original location.
-                        if(nextCol >= 0 && nextCol < width && (roffset != 0 || coffset != 0)) {
-                            locations.add(new Location(nextRow, nextCol));
-                        }
-                    }
-                }
+            int cell = cellOf(location);
+            int[] offsets = adjacentOffsets(cell);
+            // Several other methods rely on the list being in a random order.
+            int order = rand.nextInt(Neighbourhood.orders(offsets.length));
+            int start = Neighbourhood.start(offsets.length, order);
+            int stride = Neighbourhood.stride(offsets.length, order);
+            for(int i = 0; i < offsets.length; i++) {
+                locations.add(locationOf(cell + offsets[(start + i * stride) % offsets.length]));
             }
-
-            // Shuffle the list. Several other methods rely on the list
-            // being in a random order.
-            Collections.shuffle(locations, rand);
         }
         return locations;
     }
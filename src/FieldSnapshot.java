@@ -0,0 +1,99 @@
+/**
+ * The state of a field after a step, as shown in a view: one byte per
+ * cell holding the type id of its species plus one (0 for an empty cell,
+ * UNKNOWN for an object that is not a registered species), with the hour,
+ * the weather and the population.
+ *
+ * A snapshot is made by a SnapshotPublisher on the simulation thread and
+ * read on the Swing thread. It is not changed once published; its cells
+ * are reused for a later snapshot only after the view released it.
+ */
+public class FieldSnapshot
+{
+    // The code of a cell holding an object that is not a registered species.
+    public static final int UNKNOWN = 255;
+
+    // The depth and width of the field.
+    private final int depth, width;
+    // The code of each cell, row by row.
+    private final byte[] cells;
+    // The step, the hour and the weather of the snapshot.
+    private final int step, time;
+    private final String weather;
+    // The population, as shown by FieldStats.
+    private final String population;
+
+    /**
+     * Create a snapshot.
+     * @param depth The depth of the field.
+     * @param width The width of the field.
+     * @param cells The code of each cell; the snapshot takes it over.
+     * @param step The step of the simulation.
+     * @param time The hour of the day.
+     * @param weather The name of the weather.
+     * @param population The population details.
+     */
+    public FieldSnapshot(int depth, int width, byte[] cells, int step, int time, String weather, String population)
+    {
+        this.depth = depth;
+        this.width = width;
+        this.cells = cells;
+        this.step = step;
+        this.time = time;
+        this.weather = weather;
+        this.population = population;
+    }
+
+    /**
+     * @param type The type id of what is in a cell, as given by Field.getTypeIdAt.
+     * @return The code of the cell.
+     */
+    public static byte codeOf(int type)
+    {
+        if(type == Field.EMPTY_TYPE) {
+            return 0;
+        }
+        if(type >= 0 && type < UNKNOWN - 1) {
+            return (byte) (type + 1);
+        }
+        return (byte) UNKNOWN;
+    }
+
+    public int getDepth()
+    {
+        return depth;
+    }
+
+    public int getWidth()
+    {
+        return width;
+    }
+
+    /**
+     * @return The code of each cell, row by row. It must not be modified.
+     */
+    public byte[] getCells()
+    {
+        return cells;
+    }
+
+    public int getStep()
+    {
+        return step;
+    }
+
+    public int getTime()
+    {
+        return time;
+    }
+
+    public String getWeather()
+    {
+        return weather;
+    }
+
+    public String getPopulation()
+    {
+        return population;
+    }
+}
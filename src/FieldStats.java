@@ -5,6 +5,11 @@ import java.util.HashMap;
  * This class collects and provides some statistical data on the state
  * of a field. It is flexible: it will create and maintain a counter
  * for any class of object that is found within the field.
+ *
+ * The counts are read from the population the field keeps for each
+ * species type as species are placed and cleared, which costs the number
+ * of species types instead of the size of the field. In debug mode, see
+ * setVerifyCounts, the whole field is also scanned to check them.
  */
 public class FieldStats
 {
@@ -12,6 +17,8 @@ public class FieldStats
     private HashMap<Class, Counter> counters;
     // Whether the counters are currently up to date.
     private boolean countsValid;
+    // Whether to check the counts of the field against a scan of the whole field.
+    private boolean verifyCounts;
 
     /**
      * Construct a FieldStats object.
@@ -24,6 +31,16 @@ public class FieldStats
         countsValid = true;
     }
 
+    /**
+     * Turn the full scan checking the counts of the field on or off.
+     * Differences are printed; it is meant for debugging only.
+     * @param verify True to scan the field each time the counts are generated.
+     */
+    public void setVerifyCounts(boolean verify)
+    {
+        verifyCounts = verify;
+    }
+
     /**
      * Get details of what is in the field.
      * @return A string describing what is in the field.
@@ -104,22 +121,62 @@ public class FieldStats
 
     /**
      * Generate counts of the number of foxes and rabbits.
-     * These are not kept up to date as foxes and rabbits
-     * are placed in the field, but only when a request
-     * is made for the information.
+     * They are read from the counts the field keeps up to date
+     * as species are placed and cleared.
      * @param field The field to generate the stats for.
      */
     private void generateCounts(Field field)
     {
         reset();
+        for(int type = 0; type < SpeciesRegistry.size(); type++) {
+            int count = field.getPopulation(type);
+            Class<?> speciesClass = SpeciesRegistry.classOf(type);
+            Counter counter = counters.get(speciesClass);
+            if(counter == null && count > 0) {
+                counter = new Counter(speciesClass.getName());
+                counters.put(speciesClass, counter);
+            }
+            if(counter != null) {
+                counter.setCount(count);
+            }
+        }
+        if(verifyCounts) {
+            verifyCounts(field);
+        }
+        countsValid = true;
+    }
+
+    /**
+     * Scan the whole field and print the species whose count differs.
+     * @param field The field to check.
+     */
+    private void verifyCounts(Field field)
+    {
+        HashMap<Class<?>, Counter> scanned = new HashMap<>();
         for(int row = 0; row < field.getDepth(); row++) {
             for(int col = 0; col < field.getWidth(); col++) {
                 Object creature = field.getObjectAt(row, col);
-                if(creature != null) {
-                    incrementCount(creature.getClass());
+                if(creature instanceof Species) {
+                    Counter count = scanned.get(creature.getClass());
+                    if(count == null) {
+                        count = new Counter(creature.getClass().getName());
+                        scanned.put(creature.getClass(), count);
+                    }
+                    count.increment();
                 }
             }
         }
-        countsValid = true;
+        for(Class<?> key : counters.keySet()) {
+            Counter found = scanned.remove(key);
+            int inField = found == null ? 0 : found.getCount();
+            if(counters.get(key).getCount() != inField) {
+                System.out.println("Population of " + key.getName() + " counted as "
+                                   + counters.get(key).getCount() + ", but " + inField + " in the field.");
+            }
+        }
+        for(Counter missed : scanned.values()) {
+            System.out.println("Population of " + missed.getName() + " not counted, but "
+                               + missed.getCount() + " in the field.");
+        }
     }
 }
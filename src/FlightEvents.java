@@ -0,0 +1,330 @@
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Percentage;
+
+/**
+ * The Java Flight Recorder events of a simulator, so that its steps can be
+ * laid next to the collections and compilations of the same recording:
+ *  - WildSimulation.Step, for every step, with its duration, its population
+ *    and the bytes allocated while stepping;
+ *  - WildSimulation.VirusWave, for every wave of the virus, from the step
+ *    the infected started to grow to the step they peaked;
+ *  - WildSimulation.MassDeath, for every step that ended with a population
+ *    much smaller than it started with, births included.
+ *
+ * Record them with -XX:StartFlightRecording or jcmd JFR.start; the events
+ * are in the WildSimulation category. When the recorder is off, a step
+ * costs a few checks: no event is created.
+ *
+ * The bytes allocated by each step can also be tracked without a recording.
+ */
+public class FlightEvents
+{
+    // The share of the population a step must lose to be a mass death.
+    private static final double MASS_DEATH_SHARE = 0.2;
+    // The smallest population at the start of a step that can suffer a mass death.
+    private static final int MASS_DEATH_POPULATION = 100;
+    // The growth of the infected that makes a wave.
+    private static final int WAVE_GROWTH = 10;
+    // The causes of death, in the order of their counts.
+    private static final DeathCause[] CAUSES = DeathCause.values();
+
+    @Name("WildSimulation.Step")
+    @Label("Simulation Step")
+    @Category("WildSimulation")
+    @Description("A step of a simulation, with the population it left.")
+    public static class StepEvent extends Event
+    {
+        @Label("Step")
+        int step;
+
+        @Label("Hour")
+        int hour;
+
+        @Label("Weather")
+        String weather;
+
+        @Label("Population")
+        long population;
+
+        @Label("Infected")
+        int infected;
+
+        @Label("Populations")
+        @Description("The count of each species, as Name=count pairs.")
+        String populations;
+
+        @Label("Allocated")
+        @Description("The bytes allocated while stepping, by the simulation thread and the threads of its engine.")
+        @DataAmount
+        long allocated;
+    }
+
+    @Name("WildSimulation.VirusWave")
+    @Label("Virus Wave")
+    @Category("WildSimulation")
+    @Description("The infected growing, from the step they started to grow to their peak.")
+    public static class VirusWaveEvent extends Event
+    {
+        @Label("First Step")
+        int firstStep;
+
+        @Label("Peak Step")
+        int peakStep;
+
+        @Label("Infected Before")
+        int infectedBefore;
+
+        @Label("Peak Infected")
+        int peakInfected;
+    }
+
+    @Name("WildSimulation.MassDeath")
+    @Label("Mass Death")
+    @Category("WildSimulation")
+    @Description("A step that ended with a population much smaller than it started with.")
+    public static class MassDeathEvent extends Event
+    {
+        @Label("Step")
+        int step;
+
+        @Label("Deaths")
+        @Description("The deaths of the step, newborns that found no room included.")
+        long deaths;
+
+        @Label("Population Before")
+        long populationBefore;
+
+        @Label("Population After")
+        long populationAfter;
+
+        @Label("Loss")
+        @Description("The share of the population lost in the step.")
+        @Percentage
+        double loss;
+
+        @Label("Main Cause")
+        String mainCause;
+    }
+
+    // The types of the events, to check whether they are recorded.
+    private static final EventType stepType = EventType.getEventType(StepEvent.class);
+    private static final EventType waveType = EventType.getEventType(VirusWaveEvent.class);
+    private static final EventType massDeathType = EventType.getEventType(MassDeathEvent.class);
+
+    // Whether the bytes allocated by each step are counted without a recording.
+    private boolean trackingAllocation;
+    // The event of the current step or null if steps are not recorded, and
+    // whether the step counts the bytes allocated.
+    private StepEvent stepEvent;
+    private boolean metering;
+    // The bytes allocated when the step started, and by the last step (-1 if not counted).
+    private long allocatedBefore;
+    private long lastAllocated = -1;
+    // The deaths of each cause and the population when the step started.
+    private final long[] deathsBefore = new long[CAUSES.length];
+    private long populationBefore;
+    private boolean countingDeaths;
+    // The wave of the virus growing, or null, the wave begun with the step
+    // in case the infected grow, and the infected after the last step.
+    private VirusWaveEvent wave;
+    private VirusWaveEvent nextWave;
+    private int lastInfected;
+
+    /**
+     * Count the bytes allocated by each step, recording or not.
+     * @param tracking True to count them.
+     */
+    public void setTrackingAllocation(boolean tracking)
+    {
+        trackingAllocation = tracking;
+        if(!tracking) {
+            lastAllocated = -1;
+        }
+    }
+
+    /**
+     * @return The bytes allocated by the last step, or -1 if they were not counted.
+     */
+    public long getLastAllocated()
+    {
+        return lastAllocated;
+    }
+
+    /**
+     * A step starts.
+     * @param simulator The simulator stepping.
+     * @param engine The engine the species act on, or null if they act on the simulation thread.
+     */
+    void stepStarted(Simulator simulator, TiledStepEngine engine)
+    {
+        stepEvent = null;
+        if(stepType.isEnabled()) {
+            stepEvent = new StepEvent();
+            stepEvent.begin();
+        }
+        metering = trackingAllocation || stepEvent != null;
+        if(metering) {
+            allocatedBefore = allocated(engine);
+        }
+        if(wave == null && nextWave == null && waveType.isEnabled()) {
+            nextWave = new VirusWaveEvent();
+            nextWave.begin();
+        }
+        countingDeaths = massDeathType.isEnabled();
+        if(countingDeaths) {
+            Field field = simulator.getField();
+            for(DeathCause cause : CAUSES) {
+                deathsBefore[cause.ordinal()] = field.getDeaths(cause);
+            }
+            populationBefore = population(field);
+        }
+    }
+
+    /**
+     * The step started last has ended: commit its events.
+     * @param simulator The simulator stepping.
+     * @param engine The engine the species act on, or null if they act on the simulation thread.
+     */
+    void stepEnded(Simulator simulator, TiledStepEngine engine)
+    {
+        StepEvent event = stepEvent;
+        stepEvent = null;
+        if(metering) {
+            lastAllocated = allocatedBefore < 0 ? -1 : allocated(engine) - allocatedBefore;
+            metering = false;
+        }
+        Field field = simulator.getField();
+        if(event != null) {
+            event.end();
+        }
+        if(event != null && event.shouldCommit()) {
+            event.step = simulator.getStep();
+            event.hour = simulator.getTime();
+            event.weather = simulator.getWeather().toString();
+            event.population = population(field);
+            event.infected = simulator.getVirus().getInfectedCount();
+            event.populations = populations(field);
+            event.allocated = lastAllocated;
+            event.commit();
+        }
+        if(countingDeaths) {
+            massDeath(simulator.getStep(), field);
+        }
+        if(waveType.isEnabled()) {
+            followWave(simulator.getStep(), simulator.getVirus().getInfectedCount());
+        }
+        else {
+            wave = null;
+            nextWave = null;
+        }
+    }
+
+    /**
+     * Commit a mass death event if the step lost enough of the population.
+     * @param step The step.
+     * @param field The field after the step.
+     */
+    private void massDeath(int step, Field field)
+    {
+        long populationAfter = population(field);
+        double loss = (double) (populationBefore - populationAfter) / populationBefore;
+        if(populationBefore < MASS_DEATH_POPULATION || loss < MASS_DEATH_SHARE) {
+            return;
+        }
+        long deaths = 0;
+        DeathCause mainCause = null;
+        long mainDeaths = 0;
+        for(DeathCause cause : CAUSES) {
+            long caused = field.getDeaths(cause) - deathsBefore[cause.ordinal()];
+            deaths += caused;
+            if(caused > mainDeaths) {
+                mainCause = cause;
+                mainDeaths = caused;
+            }
+        }
+        MassDeathEvent event = new MassDeathEvent();
+        event.step = step;
+        event.deaths = deaths;
+        event.populationBefore = populationBefore;
+        event.populationAfter = populationAfter;
+        event.loss = loss;
+        event.mainCause = String.valueOf(mainCause);
+        event.commit();
+    }
+
+    /**
+     * Follow the infected: a wave starts when they grow, and is committed
+     * when they stop growing if they grew enough.
+     * @param step The step.
+     * @param infected The infected after the step.
+     */
+    private void followWave(int step, int infected)
+    {
+        if(infected > lastInfected) {
+            if(wave == null) {
+                if(nextWave == null) {
+                    nextWave = new VirusWaveEvent();
+                    nextWave.begin();
+                }
+                wave = nextWave;
+                nextWave = null;
+                wave.firstStep = step;
+                wave.infectedBefore = lastInfected;
+            }
+            wave.end();
+            wave.peakStep = step;
+            wave.peakInfected = infected;
+        }
+        else {
+            if(wave != null && wave.peakInfected - wave.infectedBefore >= WAVE_GROWTH) {
+                wave.commit();
+            }
+            wave = null;
+            nextWave = null;
+        }
+        lastInfected = infected;
+    }
+
+    /**
+     * @return The bytes allocated so far by the simulation thread and the threads of the engine, or -1.
+     */
+    private static long allocated(TiledStepEngine engine)
+    {
+        return engine == null ? AllocationMeter.currentThread()
+                              : AllocationMeter.withThreads(engine.getWorkerThreadIds());
+    }
+
+    /**
+     * @return The number of species in a field, from its counts.
+     */
+    private static long population(Field field)
+    {
+        long count = 0;
+        for(int type = 0; type < SpeciesRegistry.size(); type++) {
+            count += field.getPopulation(type);
+        }
+        return count;
+    }
+
+    /**
+     * @return The count of each species in a field, as Name=count pairs.
+     */
+    private static String populations(Field field)
+    {
+        StringBuilder populations = new StringBuilder();
+        for(int type = 0; type < SpeciesRegistry.size(); type++) {
+            if(type > 0) {
+                populations.append(' ');
+            }
+            populations.append(SpeciesRegistry.classOf(type).getSimpleName())
+                       .append('=').append(field.getPopulation(type));
+        }
+        return populations.toString();
+    }
+}
@@ -1,6 +1,5 @@
 import java.util.List;
 import java.util.Iterator;
-import java.util.Random;
 
 /**
  * A simple model of a hedgehog.
@@ -24,8 +23,6 @@ public class Hedgehog extends Creature
     // In fact, it's the number of hours he can survive without eating before dying.
     private static final int MAX_FOOD_LEVEL = 5;
 
-    // A shared Random object, if required.
-    private Random rand = new Random();
 
     /**
      * Create a new hedgehog. A hedgehog may be created with age
@@ -37,7 +34,20 @@ public class Hedgehog extends Creature
      */
     public Hedgehog(boolean randomAge, Field field, Location location)
     {
-        super(field, location,(randomAge)?(int)(Math.random()*MAX_AGE)+1:0);
+        this(randomAge, field, field.cellOf(location), Randomizer.splitStream());
+    }
+
+    /**
+     * Create a new hedgehog drawing from its own random stream.
+     *
+     * @param randomAge If true, the hedgehog will have a random age.
+     * @param field The field currently occupied.
+     * @param cell The index of the cell within the field.
+     * @param rand The hedgehog's own random stream.
+     */
+    public Hedgehog(boolean randomAge, Field field, int cell, RandomStream rand)
+    {
+        super(field, cell, (randomAge)?rand.nextInt(MAX_AGE)+1:0, rand);
         if(randomAge) {
             setFoodLevel(rand.nextInt(MAX_FOOD_LEVEL));
         }
@@ -85,35 +95,15 @@ public class Hedgehog extends Creature
         return FOOD_VALUE;
     }
 
-    /**
-     * Look for food adjacent to the current location.
-     * Only the first live species is eaten.
-     * @return Where food was found, or null if it wasn't.
-     */
-    protected boolean findSpecificFood(Object species)
-    {
-        // hedgehogs only eat wheat
-        if(species instanceof Wheat){
-                Wheat wheat = (Wheat) species;
-                if(wheat.isActive()) {
-                    setFoodLevel(getFoodLevel() + wheat.getFoodValue());
-                    wheat.setDead();
-                    foodLevelCheck();
-                    return true;
-                }
-        }
-        return false;
-    }
-
     /**
      * Generate and return a new Hedgehog in the field and location specified.
      * @param field The field where it has to appear.
-     * @param location The location where it has to appear.
+     * @param cell The cell where it has to appear.
      * @return A new instance of Hedgehog.
      */
-    public Hedgehog giveBirthUnique(Field field,Location loc)
+    public Hedgehog giveBirthUnique(Field field, int cell)
     {
-        return new Hedgehog(false, field, loc);
+        return new Hedgehog(false, field, cell, getRandom().split());
     }
 
     @Override
@@ -140,4 +130,9 @@ public class Hedgehog extends Creature
     protected int getMaxFoodLevel(){
         return MAX_FOOD_LEVEL;
     }
+
+    @Override
+    public int getTypeId(){
+        return SpeciesRegistry.HEDGEHOG;
+    }
 }
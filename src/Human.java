@@ -1,5 +1,4 @@
 import java.util.List;
-import java.util.Random;
 import java.util.Iterator;
 
 /**
@@ -24,8 +23,6 @@ public class Human extends Creature
     // In fact, it's the number of hours he can survive without eating before dying.
     private static final int MAX_FOOD_LEVEL = 7;
 
-    // A shared Random object, if required.
-    private Random rand = new Random();
 
     /**
      * Create a new human. Human may be created with age
@@ -37,7 +34,20 @@ public class Human extends Creature
      */
     public Human(boolean randomAge, Field field, Location location)
     {
-        super(field, location,(randomAge)?(int)(Math.random()*MAX_AGE)+1:0);
+        this(randomAge, field, field.cellOf(location), Randomizer.splitStream());
+    }
+
+    /**
+     * Create a new human drawing from its own random stream.
+     *
+     * @param randomAge If true, the human will have a random age.
+     * @param field The field currently occupied.
+     * @param cell The index of the cell within the field.
+     * @param rand The human's own random stream.
+     */
+    public Human(boolean randomAge, Field field, int cell, RandomStream rand)
+    {
+        super(field, cell, (randomAge)?rand.nextInt(MAX_AGE)+1:0, rand);
         if(randomAge) {
             setFoodLevel(rand.nextInt(MAX_FOOD_LEVEL));
         }
@@ -98,46 +108,6 @@ public class Human extends Creature
         return FOOD_VALUE;
     }
 
-    /**
-     * Look for food adjacent to the current location.
-     * Only the first live species is eaten.
-     * @return Where food was found, or null if it wasn't.
-     */
-    protected boolean findSpecificFood(Object species)
-    {
-        // if species is a plant
-        if(species instanceof Plant) {
-            if(species instanceof Wheat){
-                Wheat wheat = (Wheat) species;
-                if(wheat.isActive()) {
-                    setFoodLevel(getFoodLevel() + wheat.getFoodValue());
-                    foodLevelCheck();
-                    wheat.setDead();
-                    return true;
-                }
-            }else if (species instanceof PoisonBerry){
-                PoisonBerry berry = (PoisonBerry) species;
-                if(berry.isActive()) {
-                    berry.setDead();
-                    return true;
-                }
-            }
-        }
-
-        // if species is a sheep
-        if(species instanceof Sheep) {
-            Sheep sheep = (Sheep) species;
-            if(sheep.isActive()) {
-                setFoodLevel(getFoodLevel() + sheep.getFoodValue());
-                sheep.setDead();
-                foodLevelCheck();
-                return true;
-            }
-        }
-
-        return false;
-    }
-
     @Override
     protected int getBreedingAge(){
         return BREEDING_AGE;
@@ -151,12 +121,12 @@ public class Human extends Creature
     /**
      * Generate and return a new Human in the field and location specified.
      * @param field The field where it has to appear.
-     * @param location The location where it has to appear.
+     * @param cell The cell where it has to appear.
      * @return A new instance of Human.
      */
-    public Human giveBirthUnique(Field field,Location loc)
+    public Human giveBirthUnique(Field field, int cell)
     {
-        return new Human(false, field, loc);
+        return new Human(false, field, cell, getRandom().split());
     }
 
     @Override
@@ -173,4 +143,9 @@ public class Human extends Creature
     protected int getMaxFoodLevel(){
         return MAX_FOOD_LEVEL;
     }
+
+    @Override
+    public int getTypeId(){
+        return SpeciesRegistry.HUMAN;
+    }
 }
@@ -0,0 +1,130 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of durations in nanoseconds, in the style of HdrHistogram:
+ * buckets are linear within each power of two and grow with it, so every
+ * value is kept with a relative error under 1 / SUB_BUCKETS (about 3%)
+ * from a nanosecond to hours, in a fixed array of counts.
+ *
+ * A histogram is written by a single thread and may be read by others
+ * (a JMX client, say) at any time; a reader may see a record half made,
+ * which only moves a percentile by one value.
+ */
+public class LatencyHistogram
+{
+    // The number of linear buckets within a power of two, as bits.
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // Enough buckets for any positive long.
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    // The number of values of each bucket.
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    // The number of values, their sum and the largest of them.
+    private volatile long count, total, max;
+
+    /**
+     * Record a value. Negative values are recorded as 0.
+     * @param value The value, in nanoseconds.
+     */
+    public void record(long value)
+    {
+        value = Math.max(0, value);
+        int bucket = bucketOf(value);
+        counts.lazySet(bucket, counts.get(bucket) + 1);
+        total += value;
+        if(value > max) {
+            max = value;
+        }
+        count++;
+    }
+
+    /**
+     * Forget every value recorded.
+     */
+    public void reset()
+    {
+        for(int bucket = 0; bucket < BUCKETS; bucket++) {
+            counts.set(bucket, 0);
+        }
+        count = 0;
+        total = 0;
+        max = 0;
+    }
+
+    public long getCount()
+    {
+        return count;
+    }
+
+    /**
+     * @return The sum of the values recorded.
+     */
+    public long getTotal()
+    {
+        return total;
+    }
+
+    public long getMax()
+    {
+        return max;
+    }
+
+    /**
+     * @return The mean of the values recorded, 0 if there are none.
+     */
+    public long getMean()
+    {
+        long values = count;
+        return values == 0 ? 0 : total / values;
+    }
+
+    /**
+     * Return the value below which a given share of the values fall,
+     * rounded up to the top of its bucket.
+     * @param percentile The share, from 0 to 100.
+     * @return The value, 0 if nothing was recorded.
+     */
+    public long getValueAtPercentile(double percentile)
+    {
+        long values = count;
+        if(values == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(Math.min(100, percentile) / 100 * values));
+        long seen = 0;
+        for(int bucket = 0; bucket < BUCKETS; bucket++) {
+            seen += counts.get(bucket);
+            if(seen >= rank) {
+                return Math.min(max, highestOf(bucket));
+            }
+        }
+        return max;
+    }
+
+    /**
+     * @return The bucket of a positive value.
+     */
+    static int bucketOf(long value)
+    {
+        if(value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+    }
+
+    /**
+     * @return The largest value of a bucket.
+     */
+    static long highestOf(int bucket)
+    {
+        if(bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        long lowest = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+}
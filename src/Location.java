@@ -42,14 +42,15 @@ public class Location
     }
 
     /**
-     * Use the top 16 bits for the row value and the bottom for
-     * the column. Except for very big grids, this should give a
-     * unique hash code for each (row, col) pair.
+     * Mix the row and the column, so that locations of grids wider or
+     * deeper than 65536 cells, which would share the top 16 bits of a
+     * row and column packed side by side, still spread across the hash codes.
      * @return A hashcode for the location.
      */
     public int hashCode()
     {
-        return (row << 16) + col;
+        int hash = row * 0x9E3779B1 + col;
+        return hash ^ (hash >>> 16);
     }
 
     /**
@@ -0,0 +1,368 @@
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * End-to-end benchmarks of the engine: the simulator runs headless, with
+ * no pause between steps, for a fixed number of steps of standard
+ * scenarios, and the harness reports for each of them:
+ *  - steps per second;
+ *  - nanoseconds per entity-step, the time of the steps divided by the
+ *    number of species living at the start of each step, which can be
+ *    compared across sizes and densities;
+ *  - the peak heap used while stepping;
+ *  - the time spent in garbage collection while stepping;
+ *  - the bytes allocated per step, by every thread stepping.
+ *
+ * The results can be saved as a JSON baseline, and a later run compared
+ * with it: a scenario whose nanoseconds per entity-step grew by more than
+ * the threshold is a regression, and the harness then exits with status 1,
+ * so it can gate a change of the engine. An allocation budget gates the
+ * same way: a scenario whose steps allocate more bytes than the budget,
+ * once warmed up, also makes the harness exit with status 1.
+ *
+ * Run it with "java MacroBenchmarks [options]":
+ *   --only REGEX       run only the scenarios whose name matches
+ *   --threads N        make the species act on N threads (0 for the serial loop)
+ *   --save FILE        write the results to FILE as a JSON baseline
+ *   --baseline FILE    compare the results with the baseline in FILE
+ *   --threshold R      the regression allowed, 0.10 for 10% (the default)
+ *   --allocation-budget B   the bytes a step may allocate
+ */
+public class MacroBenchmarks
+{
+    // The seed of every scenario.
+    private static final long SEED = 42;
+    // The regression allowed by default, as a fraction of the baseline.
+    private static final double DEFAULT_THRESHOLD = 0.10;
+    // The densities of the low- and high-density variants, relative to the default population.
+    private static final double LOW_DENSITY = 0.25;
+    private static final double HIGH_DENSITY = 2;
+
+    /**
+     * A standard scenario: a field size, a density and a number of steps.
+     */
+    static class Scenario
+    {
+        final String name;
+        final int depth, width;
+        final double density;
+        final int warmupSteps, steps;
+
+        Scenario(String name, int depth, int width, double density, int warmupSteps, int steps)
+        {
+            this.name = name;
+            this.depth = depth;
+            this.width = width;
+            this.density = density;
+            this.warmupSteps = warmupSteps;
+            this.steps = steps;
+        }
+    }
+
+    /**
+     * The measures of a scenario.
+     */
+    static class Result
+    {
+        final String name;
+        final double stepsPerSecond, nanosPerEntityStep;
+        final long peakHeapBytes, gcMillis;
+        // The bytes allocated per step, -1 if they were not counted.
+        final double bytesPerStep;
+
+        Result(String name, double stepsPerSecond, double nanosPerEntityStep, long peakHeapBytes, long gcMillis,
+               double bytesPerStep)
+        {
+            this.name = name;
+            this.stepsPerSecond = stepsPerSecond;
+            this.nanosPerEntityStep = nanosPerEntityStep;
+            this.peakHeapBytes = peakHeapBytes;
+            this.gcMillis = gcMillis;
+            this.bytesPerStep = bytesPerStep;
+        }
+
+        public String toString()
+        {
+            return String.format("%-24s %12.1f steps/s %10.2f ns/entity-step %8d MB peak heap %8d ms gc %12.0f B/step",
+                                 name, stepsPerSecond, nanosPerEntityStep, peakHeapBytes >> 20, gcMillis, bytesPerStep);
+        }
+
+        /**
+         * @return The result as a JSON object.
+         */
+        String toJson()
+        {
+            return String.format("{\"name\": \"%s\", \"stepsPerSecond\": %.3f, \"nanosPerEntityStep\": %.3f, "
+                                 + "\"peakHeapBytes\": %d, \"gcMillis\": %d, \"bytesPerStep\": %.1f}",
+                                 name, stepsPerSecond, nanosPerEntityStep, peakHeapBytes, gcMillis, bytesPerStep);
+        }
+    }
+
+    /**
+     * @return The standard scenarios.
+     */
+    static List<Scenario> scenarios()
+    {
+        List<Scenario> scenarios = new ArrayList<>();
+        scenarios.add(new Scenario("default", 80, 120, 1, 200, 2000));
+        scenarios.add(new Scenario("default-low", 80, 120, LOW_DENSITY, 200, 2000));
+        scenarios.add(new Scenario("default-high", 80, 120, HIGH_DENSITY, 200, 2000));
+        scenarios.add(new Scenario("1000x1000", 1000, 1000, 1, 5, 30));
+        scenarios.add(new Scenario("1000x1000-low", 1000, 1000, LOW_DENSITY, 5, 30));
+        scenarios.add(new Scenario("1000x1000-high", 1000, 1000, HIGH_DENSITY, 5, 30));
+        scenarios.add(new Scenario("5000x5000", 5000, 5000, 1, 1, 5));
+        return scenarios;
+    }
+
+    // Make the species act on this number of threads, 0 for the serial loop.
+    private final int threads;
+
+    /**
+     * Create a harness.
+     * @param threads The number of threads making the species act, 0 for the serial loop.
+     */
+    public MacroBenchmarks(int threads)
+    {
+        this.threads = threads;
+    }
+
+    /**
+     * Run a scenario: build the simulator, run its warmup steps, then measure its steps.
+     * @param scenario The scenario.
+     * @return The measures.
+     */
+    public Result run(Scenario scenario)
+    {
+        Simulator simulator = new Simulator(scenario.depth, scenario.width, true, SEED);
+        simulator.setParallelism(threads);
+        simulator.setStepDelay(0);
+        if(scenario.density != 1) {
+            simulator.setDensity(scenario.density);
+        }
+        for(int i = 0; i < scenario.warmupSteps; i++) {
+            simulator.simulateOneStep();
+        }
+
+        System.gc();
+        List<MemoryPoolMXBean> heap = new ArrayList<>();
+        for(MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if(pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+                heap.add(pool);
+            }
+        }
+        FlightEvents flight = simulator.getFlightEvents();
+        flight.setTrackingAllocation(true);
+        long gcBefore = gcMillis();
+        long entitySteps = 0;
+        long allocated = 0;
+        long start = System.nanoTime();
+        for(int i = 0; i < scenario.steps; i++) {
+            entitySteps += population(simulator.getField());
+            simulator.simulateOneStep();
+            allocated += flight.getLastAllocated();
+        }
+        long elapsed = System.nanoTime() - start;
+        long gc = gcMillis() - gcBefore;
+        long peak = 0;
+        for(MemoryPoolMXBean pool : heap) {
+            peak += pool.getPeakUsage().getUsed();
+        }
+        return new Result(scenario.name, scenario.steps * 1e9 / elapsed,
+                          (double) elapsed / Math.max(1, entitySteps), peak, gc,
+                          AllocationMeter.isSupported() ? (double) allocated / scenario.steps : -1);
+    }
+
+    /**
+     * @return The number of species in a field, from its counts.
+     */
+    private static long population(Field field)
+    {
+        long count = 0;
+        for(int type = 0; type < SpeciesRegistry.size(); type++) {
+            count += field.getPopulation(type);
+        }
+        return count;
+    }
+
+    private static long gcMillis()
+    {
+        long millis = 0;
+        for(GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            millis += Math.max(0, collector.getCollectionTime());
+        }
+        return millis;
+    }
+
+    /**
+     * Write results as a JSON baseline.
+     * @param results The results.
+     * @param file The name of the file, replaced if it exists.
+     * @throws IOException If the file cannot be written.
+     */
+    static void save(List<Result> results, String file) throws IOException
+    {
+        StringBuilder json = new StringBuilder("{\n  \"scenarios\": [\n");
+        for(int i = 0; i < results.size(); i++) {
+            json.append("    ").append(results.get(i).toJson());
+            json.append(i + 1 < results.size() ? ",\n" : "\n");
+        }
+        json.append("  ]\n}\n");
+        Files.write(Paths.get(file), json.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Read a JSON baseline written by save.
+     * @param file The name of the file.
+     * @return The results of the baseline, by scenario name.
+     * @throws IOException If the file cannot be read.
+     */
+    static Map<String, Result> load(String file) throws IOException
+    {
+        String json = new String(Files.readAllBytes(Paths.get(file)), StandardCharsets.UTF_8);
+        Map<String, Result> results = new LinkedHashMap<>();
+        Matcher object = Pattern.compile("\\{[^{}\\[\\]]*\\}").matcher(json);
+        Pattern member = Pattern.compile("\"(\\w+)\"\\s*:\\s*(\"([^\"]*)\"|[-+0-9.eE]+)");
+        while(object.find()) {
+            Map<String, String> values = new LinkedHashMap<>();
+            Matcher pair = member.matcher(object.group());
+            while(pair.find()) {
+                values.put(pair.group(1), pair.group(3) != null ? pair.group(3) : pair.group(2));
+            }
+            try {
+                String name = values.get("name");
+                results.put(name, new Result(name, Double.parseDouble(values.get("stepsPerSecond")),
+                                             Double.parseDouble(values.get("nanosPerEntityStep")),
+                                             Long.parseLong(values.get("peakHeapBytes")),
+                                             Long.parseLong(values.get("gcMillis")),
+                                             Double.parseDouble(values.getOrDefault("bytesPerStep", "-1"))));
+            }
+            catch(NullPointerException | NumberFormatException e) {
+                throw new IOException(file + " has a scenario that is not a result: " + object.group());
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Compare results with a baseline.
+     * @param results The results.
+     * @param baseline The baseline, by scenario name.
+     * @param threshold The regression allowed, as a fraction of the baseline.
+     * @return The number of scenarios that regressed.
+     */
+    static int compare(List<Result> results, Map<String, Result> baseline, double threshold)
+    {
+        int regressions = 0;
+        for(Result result : results) {
+            Result base = baseline.get(result.name);
+            if(base == null) {
+                System.out.println(result.name + ": not in the baseline");
+                continue;
+            }
+            double change = result.nanosPerEntityStep / base.nanosPerEntityStep - 1;
+            boolean regressed = change > threshold;
+            if(regressed) {
+                regressions++;
+            }
+            System.out.println(String.format("%-24s %+7.1f%% ns/entity-step against the baseline%s",
+                                             result.name, 100 * change, regressed ? "  REGRESSION" : ""));
+        }
+        return regressions;
+    }
+
+    /**
+     * Check the bytes allocated per step against a budget.
+     * @param results The results.
+     * @param budget The bytes a step may allocate.
+     * @return The number of scenarios over the budget.
+     */
+    static int checkBudget(List<Result> results, double budget)
+    {
+        int over = 0;
+        for(Result result : results) {
+            if(result.bytesPerStep < 0) {
+                System.out.println(result.name + ": the bytes allocated could not be counted");
+                continue;
+            }
+            if(result.bytesPerStep > budget) {
+                over++;
+                System.out.println(String.format("%-24s %12.0f B/step, over the budget of %.0f",
+                                                 result.name, result.bytesPerStep, budget));
+            }
+        }
+        return over;
+    }
+
+    /**
+     * Run the scenarios, save or compare their results, and exit with
+     * status 1 if a scenario regressed beyond the threshold or allocated
+     * beyond the budget.
+     */
+    public static void main(String args[])
+    {
+        String only = "";
+        String save = null;
+        String baseline = null;
+        int threads = 0;
+        double threshold = DEFAULT_THRESHOLD;
+        double budget = -1;
+        for(int i = 0; i + 1 < args.length; i += 2) {
+            try {
+                switch(args[i]) {
+                    case "--only": only = args[i + 1]; break;
+                    case "--save": save = args[i + 1]; break;
+                    case "--baseline": baseline = args[i + 1]; break;
+                    case "--threads": threads = Integer.parseInt(args[i + 1]); break;
+                    case "--threshold": threshold = Double.parseDouble(args[i + 1]); break;
+                    case "--allocation-budget": budget = Double.parseDouble(args[i + 1]); break;
+                    default: System.out.println("Unknown option " + args[i] + ", ignored.");
+                }
+            }
+            catch(NumberFormatException e) {
+                System.out.println("The value of " + args[i] + " must be a number.");
+                System.out.println("Using the default value.");
+            }
+        }
+
+        MacroBenchmarks benchmarks = new MacroBenchmarks(threads);
+        Pattern filter = Pattern.compile(only);
+        List<Result> results = new ArrayList<>();
+        for(Scenario scenario : scenarios()) {
+            if(filter.matcher(scenario.name).find()) {
+                Result result = benchmarks.run(scenario);
+                results.add(result);
+                System.out.println(result);
+            }
+        }
+
+        boolean failed = budget >= 0 && checkBudget(results, budget) > 0;
+        try {
+            if(save != null) {
+                save(results, save);
+            }
+            if(baseline != null && compare(results, load(baseline), threshold) > 0) {
+                failed = true;
+            }
+        }
+        catch(IOException e) {
+            System.out.println("Could not use the baseline: " + e.getMessage());
+            System.exit(2);
+        }
+        if(failed) {
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,414 @@
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Microbenchmarks of the hot paths of the simulation, to accept or reject
+ * a change of the engine on numbers rather than impressions.
+ *
+ * Each benchmark is measured like JMH does it: a few warmup iterations,
+ * then measured iterations of a fixed time, each on a fresh fixture made
+ * outside the timing. For each benchmark the harness prints the time per
+ * operation (mean and standard deviation of the iterations), the bytes
+ * allocated per operation by the benchmark thread, and the collections
+ * that happened while measuring, as JMH's gc profiler does.
+ *
+ * The results of the operations are summed into a field, so the JIT
+ * cannot drop the work as dead code.
+ *
+ * Run it with "java MicroBenchmarks [regex] [iteration millis]" to
+ * measure only the benchmarks whose name matches the regex.
+ */
+public class MicroBenchmarks
+{
+    // The seed of every fixture, so two runs measure the same worlds.
+    private static final long SEED = 42;
+    // The number of warmup and measured iterations, and the default time of an iteration.
+    private static final int WARMUP_ITERATIONS = 3;
+    private static final int MEASURED_ITERATIONS = 5;
+    private static final int DEFAULT_ITERATION_MILLIS = 500;
+    // The sizes of the grids and the densities of the worlds measured.
+    private static final int[] STEP_SIZES = {100, 300, 1000};
+    private static final double[] DENSITIES = {0.2, 0.5, 0.8};
+
+    /**
+     * An operation measured, returning something depending on its work.
+     */
+    interface Operation
+    {
+        long run();
+    }
+
+    /**
+     * Makes a fresh operation, with its own state, for each iteration.
+     */
+    interface Fixture
+    {
+        Operation prepare();
+    }
+
+    /**
+     * The measures of a benchmark.
+     */
+    static class Result
+    {
+        final String name;
+        final double nanosPerOp, error, bytesPerOp;
+        final long collections, collectionMillis;
+
+        Result(String name, double nanosPerOp, double error, double bytesPerOp,
+               long collections, long collectionMillis)
+        {
+            this.name = name;
+            this.nanosPerOp = nanosPerOp;
+            this.error = error;
+            this.bytesPerOp = bytesPerOp;
+            this.collections = collections;
+            this.collectionMillis = collectionMillis;
+        }
+
+        public String toString()
+        {
+            return String.format("%-50s %14.1f +- %10.1f ns/op %14.1f B/op %5d gc %6d ms",
+                                 name, nanosPerOp, error, bytesPerOp, collections, collectionMillis);
+        }
+    }
+
+    // Only the benchmarks whose name matches it are run.
+    private final Pattern filter;
+    // The time of an iteration, in nanoseconds.
+    private final long iterationNanos;
+    // Reads the bytes allocated by a thread.
+    private final com.sun.management.ThreadMXBean threads;
+    // The results of the benchmarks run so far.
+    private final List<Result> results = new ArrayList<>();
+    // Where the results of the operations go.
+    private long sink;
+
+    /**
+     * Create a harness.
+     * @param filter Only the benchmarks whose name matches it are run.
+     * @param iterationMillis The time of an iteration, in milliseconds.
+     */
+    public MicroBenchmarks(String filter, int iterationMillis)
+    {
+        this.filter = Pattern.compile(filter);
+        if(iterationMillis <= 0) {
+            System.out.println("The time of an iteration must be greater than zero.");
+            System.out.println("Using the default value.");
+            iterationMillis = DEFAULT_ITERATION_MILLIS;
+        }
+        iterationNanos = iterationMillis * 1000000L;
+        threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        threads.setThreadAllocatedMemoryEnabled(true);
+    }
+
+    /**
+     * Measure a benchmark, if its name matches the filter, and print its result.
+     * @param name The name of the benchmark, with its parameters.
+     * @param fixture Makes the operation of each iteration.
+     */
+    public void measure(String name, Fixture fixture)
+    {
+        if(!filter.matcher(name).find()) {
+            return;
+        }
+        for(int i = 0; i < WARMUP_ITERATIONS; i++) {
+            iterate(fixture.prepare());
+        }
+        long thread = Thread.currentThread().getId();
+        double[] nanosPerOp = new double[MEASURED_ITERATIONS];
+        long ops = 0, bytes = 0, collections = 0, collectionMillis = 0;
+        for(int i = 0; i < MEASURED_ITERATIONS; i++) {
+            Operation operation = fixture.prepare();
+            long collectionsBefore = collections();
+            long collectionMillisBefore = collectionMillis();
+            long allocated = threads.getThreadAllocatedBytes(thread);
+            long start = System.nanoTime();
+            long count = iterate(operation);
+            long elapsed = System.nanoTime() - start;
+            bytes += threads.getThreadAllocatedBytes(thread) - allocated;
+            collections += collections() - collectionsBefore;
+            collectionMillis += collectionMillis() - collectionMillisBefore;
+            nanosPerOp[i] = (double) elapsed / count;
+            ops += count;
+        }
+        double mean = 0;
+        for(double value : nanosPerOp) {
+            mean += value / nanosPerOp.length;
+        }
+        double variance = 0;
+        for(double value : nanosPerOp) {
+            variance += (value - mean) * (value - mean) / (nanosPerOp.length - 1);
+        }
+        Result result = new Result(name, mean, Math.sqrt(variance), (double) bytes / ops,
+                                   collections, collectionMillis);
+        results.add(result);
+        System.out.println(result);
+    }
+
+    /**
+     * Run an operation for the time of an iteration, checking the clock
+     * after batches of operations that grow while they take under 0.1 ms.
+     * @return The number of operations run, at least one.
+     */
+    private long iterate(Operation operation)
+    {
+        long start = System.nanoTime();
+        long count = 0;
+        int batch = 1;
+        long now = start;
+        while(now - start < iterationNanos) {
+            long batchStart = now;
+            for(int i = 0; i < batch; i++) {
+                sink += operation.run();
+            }
+            count += batch;
+            now = System.nanoTime();
+            if(now - batchStart < 100000 && batch < (1 << 20)) {
+                batch *= 2;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return The results of the benchmarks measured so far.
+     */
+    public List<Result> getResults()
+    {
+        return results;
+    }
+
+    private static long collections()
+    {
+        long count = 0;
+        for(GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, collector.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static long collectionMillis()
+    {
+        long millis = 0;
+        for(GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            millis += Math.max(0, collector.getCollectionTime());
+        }
+        return millis;
+    }
+
+    /**
+     * A square world where each cell holds a species with the given
+     * probability: half of them wheat, then sheep, then humans.
+     * @param size The side of the world.
+     * @param density The probability of a cell being occupied.
+     * @param creatures A list to receive the creatures of the world.
+     * @return The field of the world.
+     */
+    static Field world(int size, double density, List<Creature> creatures)
+    {
+        RandomStream rand = new RandomStream(SEED);
+        Field field = new Field(size, size);
+        for(int cell = 0; cell < size * size; cell++) {
+            if(rand.nextDouble() < density) {
+                double kind = rand.nextDouble();
+                if(kind < 0.5) {
+                    new Wheat(field, cell, rand.split());
+                }
+                else if(kind < 0.8) {
+                    creatures.add(new Sheep(true, field, cell, rand.split()));
+                }
+                else {
+                    creatures.add(new Human(true, field, cell, rand.split()));
+                }
+            }
+        }
+        return field;
+    }
+
+    /**
+     * A simulator of the default world, keeping only a fraction of the
+     * species it starts with.
+     * @param size The side of the world.
+     * @param density The fraction of the species kept.
+     * @return The simulator.
+     */
+    static Simulator simulator(int size, double density)
+    {
+        Simulator simulator = new Simulator(size, size, true, SEED);
+        if(density < 1) {
+            Field field = simulator.getField();
+            RandomStream rand = new RandomStream(SEED);
+            for(int cell = 0; cell < size * size; cell++) {
+                Object species = field.getObjectAt(cell);
+                if(species != null && rand.nextDouble() >= density) {
+                    ((Species) species).setDead(DeathCause.REMOVED);
+                }
+            }
+        }
+        return simulator;
+    }
+
+    /**
+     * Register every benchmark with the harness.
+     */
+    public void measureAll()
+    {
+        for(double density : DENSITIES) {
+            String suffix = String.format("(density=%.1f)", density);
+
+            measure("Field.adjacentLocations" + suffix, () -> {
+                Field field = world(100, density, new ArrayList<>());
+                Location[] locations = locations(field);
+                int[] next = new int[1];
+                return () -> field.adjacentLocations(locations[next[0]++ % locations.length]).size();
+            });
+
+            measure("Field.getFreeAdjacentLocations" + suffix, () -> {
+                Field field = world(100, density, new ArrayList<>());
+                Location[] locations = locations(field);
+                int[] next = new int[1];
+                return () -> field.getFreeAdjacentLocations(locations[next[0]++ % locations.length]).size();
+            });
+
+            measure("Creature.findFood" + suffix, () -> {
+                List<Creature> creatures = new ArrayList<>();
+                Field field = world(100, density, creatures);
+                // Sheep only eat wheat, which is put back once eaten, so the world does not run out of food.
+                creatures.removeIf(creature -> !(creature instanceof Sheep));
+                RandomStream rand = new RandomStream(SEED + 1);
+                int[] next = new int[1];
+                return () -> {
+                    Creature creature = creatures.get(next[0]++ % creatures.size());
+                    int cell = creature.findFood();
+                    if(cell != Field.NO_CELL) {
+                        new Wheat(field, cell, rand.split());
+                    }
+                    return cell;
+                };
+            });
+
+            measure("Creature.giveBirth" + suffix, () -> {
+                List<Creature> creatures = new ArrayList<>();
+                world(100, density, creatures);
+                List<Species> newborns = new ArrayList<>();
+                int[] next = new int[1];
+                // The newborns are removed, so the world does not fill up.
+                return () -> {
+                    creatures.get(next[0]++ % creatures.size()).giveBirth(newborns);
+                    int born = newborns.size();
+                    for(Species newborn : newborns) {
+                        newborn.setDead(DeathCause.REMOVED);
+                    }
+                    newborns.clear();
+                    return born;
+                };
+            });
+
+            measure("Creature.checkPartner" + suffix, () -> {
+                List<Creature> creatures = new ArrayList<>();
+                world(100, density, creatures);
+                int[] next = new int[1];
+                return () -> creatures.get(next[0]++ % creatures.size()).checkPartner() ? 1 : 0;
+            });
+
+            measure("FieldStats.getPopulationDetails" + suffix, () -> {
+                Field field = world(1000, density, new ArrayList<>());
+                FieldStats stats = new FieldStats();
+                return () -> {
+                    stats.reset();
+                    return stats.getPopulationDetails(field).length();
+                };
+            });
+        }
+
+        for(int infected : new int[] {1000, 100000}) {
+            measure("Virus.givePain(infected=" + infected + ")", () -> {
+                Field field = new Field(1000, 1000);
+                RandomStream rand = new RandomStream(SEED);
+                List<Creature> creatures = new ArrayList<>();
+                for(int i = 0; i < infected; i++) {
+                    creatures.add(new Human(true, field, i * (1000000 / infected), rand.split()));
+                }
+                Virus virus = new Virus(rand.split());
+                // The healed are infected again and everyone is fed, so the epidemic lasts.
+                return () -> {
+                    for(Creature creature : creatures) {
+                        creature.setFoodLevel(creature.getMaxFoodLevel());
+                        virus.infect(creature);
+                    }
+                    virus.givePain(12);
+                    return virus.getInfectedCount();
+                };
+            });
+        }
+
+        for(int size : new int[] {100, 500}) {
+            measure("Simulator.populate(size=" + size + ")", () -> {
+                Simulator simulator = new Simulator(size, size, true, SEED);
+                return () -> {
+                    simulator.reset();
+                    return simulator.getField().getPopulation(SpeciesRegistry.WHEAT);
+                };
+            });
+        }
+
+        for(int size : STEP_SIZES) {
+            for(double density : new double[] {0.25, 1.0}) {
+                measure(String.format("Simulator.simulateOneStep(size=%d,density=%.2f)", size, density), () -> {
+                    Simulator simulator = simulator(size, density);
+                    return () -> {
+                        simulator.simulateOneStep();
+                        return simulator.getStep();
+                    };
+                });
+            }
+        }
+    }
+
+    /**
+     * @return Every location of a field, in a shuffled order.
+     */
+    private static Location[] locations(Field field)
+    {
+        Location[] locations = new Location[field.getDepth() * field.getWidth()];
+        for(int cell = 0; cell < locations.length; cell++) {
+            locations[cell] = field.locationOf(cell);
+        }
+        RandomStream rand = new RandomStream(SEED);
+        for(int i = locations.length - 1; i > 0; i--) {
+            int j = rand.nextInt(i + 1);
+            Location swap = locations[i];
+            locations[i] = locations[j];
+            locations[j] = swap;
+        }
+        return locations;
+    }
+
+    /**
+     * Run the benchmarks. Pass a regex to run only the benchmarks whose
+     * name matches it, and the time of an iteration in milliseconds.
+     */
+    public static void main(String args[])
+    {
+        String filter = args.length > 0 ? args[0] : "";
+        int iterationMillis = DEFAULT_ITERATION_MILLIS;
+        if(args.length > 1) {
+            try {
+                iterationMillis = Integer.parseInt(args[1]);
+            }
+            catch(NumberFormatException e) {
+                System.out.println("The time of an iteration must be a number of milliseconds.");
+                System.out.println("Using the default value.");
+            }
+        }
+        MicroBenchmarks benchmarks = new MicroBenchmarks(filter, iterationMillis);
+        benchmarks.measureAll();
+        if(benchmarks.sink == 42) {
+            System.out.println();
+        }
+    }
+}
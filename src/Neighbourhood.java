@@ -0,0 +1,295 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Describe which cells are adjacent to a cell: the Moore neighbourhood
+ * (the 8 cells around, or every cell within a square of a given radius),
+ * or the von Neumann neighbourhood (the 4 cells sharing a side, or every
+ * cell within a diamond of a given radius).
+ *
+ * A field turns the neighbourhood into tables of cell index offsets, one
+ * for the middle of the field and one for each way the neighbourhood can
+ * be clipped by the edges, so finding the neighbours of a cell needs no
+ * bounds check and no allocation. The tables only depend on the width of
+ * the field, and are shared by all the fields of that width.
+ *
+ * Neighbours can also be visited in a random order without shuffling a
+ * list: start from a random neighbour and walk with a random stride that
+ * has no common factor with the number of neighbours, which visits each
+ * of them once.
+ */
+public class Neighbourhood
+{
+    // The 8 cells around a cell.
+    public static final Neighbourhood MOORE = moore(1);
+    // The 4 cells sharing a side with a cell.
+    public static final Neighbourhood VON_NEUMANN = vonNeumann(1);
+
+    // The largest number of neighbours all the random orders are prepared for.
+    // Larger neighbourhoods are only visited forwards or backwards from a random start.
+    private static final int MAX_ORDERED = 256;
+    // For each number of neighbours, the strides with no common factor with it.
+    private static final int[][] STRIDES = new int[MAX_ORDERED + 1][];
+
+    static {
+        STRIDES[0] = new int[] {1};
+        for(int n = 1; n <= MAX_ORDERED; n++) {
+            int[] all = new int[n];
+            int count = 0;
+            for(int s = 1; s <= n; s++) {
+                if(gcd(s, n) == 1) {
+                    all[count++] = s;
+                }
+            }
+            STRIDES[n] = Arrays.copyOf(all, count);
+        }
+    }
+
+    // The name of the neighbourhood.
+    private final String name;
+    // How far neighbours can be, in rows or columns.
+    private final int radius;
+    // The row and column offsets of the neighbours.
+    private final int[] rowOffsets, colOffsets;
+    // The tables of the fields built so far, by width.
+    private final ConcurrentHashMap<Integer, int[][]> tables = new ConcurrentHashMap<>();
+
+    /**
+     * Create a neighbourhood from the offsets of its cells.
+     */
+    private Neighbourhood(String name, int radius, List<int[]> offsets)
+    {
+        this.name = name;
+        this.radius = radius;
+        rowOffsets = new int[offsets.size()];
+        colOffsets = new int[offsets.size()];
+        for(int k = 0; k < offsets.size(); k++) {
+            rowOffsets[k] = offsets.get(k)[0];
+            colOffsets[k] = offsets.get(k)[1];
+        }
+    }
+
+    /**
+     * The cells within a square around a cell, the cell itself excluded.
+     * @param radius The half side of the square. Must be at least 1.
+     * @return The Moore neighbourhood of that radius.
+     */
+    public static Neighbourhood moore(int radius)
+    {
+        List<int[]> offsets = new ArrayList<>();
+        for(int dr = -radius; dr <= radius; dr++) {
+            for(int dc = -radius; dc <= radius; dc++) {
+                if(dr != 0 || dc != 0) {
+                    offsets.add(new int[] {dr, dc});
+                }
+            }
+        }
+        return new Neighbourhood("Moore(" + radius + ")", radius, offsets);
+    }
+
+    /**
+     * The cells within a diamond around a cell, the cell itself excluded.
+     * @param radius The largest number of rows plus columns between the cells. Must be at least 1.
+     * @return The von Neumann neighbourhood of that radius.
+     */
+    public static Neighbourhood vonNeumann(int radius)
+    {
+        List<int[]> offsets = new ArrayList<>();
+        for(int dr = -radius; dr <= radius; dr++) {
+            for(int dc = -radius; dc <= radius; dc++) {
+                if((dr != 0 || dc != 0) && Math.abs(dr) + Math.abs(dc) <= radius) {
+                    offsets.add(new int[] {dr, dc});
+                }
+            }
+        }
+        return new Neighbourhood("von Neumann(" + radius + ")", radius, offsets);
+    }
+
+    /**
+     * Find a neighbourhood from its name, as given by toString.
+     * @param name The name of a Moore or von Neumann neighbourhood.
+     * @return The neighbourhood, or MOORE if the name is not understood.
+     */
+    public static Neighbourhood forName(String name)
+    {
+        try {
+            int radius = Integer.parseInt(name.substring(name.indexOf('(') + 1, name.indexOf(')')));
+            if(name.startsWith("Moore(")) {
+                return moore(radius);
+            }
+            if(name.startsWith("von Neumann(")) {
+                return vonNeumann(radius);
+            }
+        }
+        catch(RuntimeException e) {
+            // Not a name made by this class.
+        }
+        System.out.println("Unknown neighbourhood " + name + ".");
+        System.out.println("Using the Moore neighbourhood.");
+        return MOORE;
+    }
+
+    /**
+     * @return How far neighbours can be, in rows or columns.
+     */
+    public int getRadius()
+    {
+        return radius;
+    }
+
+    /**
+     * @return The number of neighbours of a cell away from the edges.
+     */
+    public int size()
+    {
+        return rowOffsets.length;
+    }
+
+    /**
+     * @param k The index of a neighbour, less than size().
+     * @return How many rows away the neighbour is.
+     */
+    public int rowOffset(int k)
+    {
+        return rowOffsets[k];
+    }
+
+    /**
+     * @param k The index of a neighbour, less than size().
+     * @return How many columns away the neighbour is.
+     */
+    public int colOffset(int k)
+    {
+        return colOffsets[k];
+    }
+
+    /**
+     * Return the tables of cell index offsets for a field of the given width,
+     * built once and shared by every field of that width: they must not be
+     * modified.
+     * @param width The width of the field.
+     * @return The tables, to be chosen with tableIndex.
+     */
+    public int[][] tablesFor(int width)
+    {
+        return tables.computeIfAbsent(width, this::buildTables);
+    }
+
+    /**
+     * Build the tables of cell index offsets for a field of the given width,
+     * where a cell index is row * width + col. There is one table for each
+     * distance to the top, bottom, left and right edges from 0 to the radius.
+     * @param width The width of the field.
+     * @return The tables, to be chosen with tableIndex.
+     */
+    public int[][] buildTables(int width)
+    {
+        int sides = radius + 1;
+        int[][] tables = new int[sides * sides * sides * sides][];
+        for(int top = 0; top <= radius; top++) {
+            for(int bottom = 0; bottom <= radius; bottom++) {
+                for(int left = 0; left <= radius; left++) {
+                    for(int right = 0; right <= radius; right++) {
+                        tables[index(top, bottom, left, right)] = clippedTable(width, top, bottom, left, right);
+                    }
+                }
+            }
+        }
+        return tables;
+    }
+
+    /**
+     * Choose the table for a cell among those of buildTables.
+     * @param row The row of the cell.
+     * @param col The column of the cell.
+     * @param depth The depth of the field.
+     * @param width The width of the field.
+     * @return The index of the table for that cell.
+     */
+    public int tableIndex(int row, int col, int depth, int width)
+    {
+        return index(Math.min(row, radius), Math.min(depth - 1 - row, radius),
+                     Math.min(col, radius), Math.min(width - 1 - col, radius));
+    }
+
+    /**
+     * @return The index of the table for the given distances to the edges.
+     */
+    private int index(int top, int bottom, int left, int right)
+    {
+        int sides = radius + 1;
+        return ((top * sides + bottom) * sides + left) * sides + right;
+    }
+
+    /**
+     * @return The offsets of the neighbours no further than the given distances to the edges.
+     */
+    private int[] clippedTable(int width, int top, int bottom, int left, int right)
+    {
+        int count = 0;
+        int[] table = new int[rowOffsets.length];
+        for(int k = 0; k < rowOffsets.length; k++) {
+            int dr = rowOffsets[k];
+            int dc = colOffsets[k];
+            if(dr >= -top && dr <= bottom && dc >= -left && dc <= right) {
+                table[count++] = dr * width + dc;
+            }
+        }
+        return Arrays.copyOf(table, count);
+    }
+
+    /**
+     * @param n A number of neighbours.
+     * @return The number of random orders to visit them in, to draw one from.
+     */
+    public static int orders(int n)
+    {
+        return Math.max(1, n * strides(n).length);
+    }
+
+    /**
+     * @param n A number of neighbours.
+     * @param order A random order, from 0 to orders(n) - 1.
+     * @return The first neighbour to visit.
+     */
+    public static int start(int n, int order)
+    {
+        return n == 0 ? 0 : order % n;
+    }
+
+    /**
+     * @param n A number of neighbours.
+     * @param order A random order, from 0 to orders(n) - 1.
+     * @return What to add to a neighbour, modulo n, to get the next one to visit.
+     */
+    public static int stride(int n, int order)
+    {
+        return n == 0 ? 1 : strides(n)[order / n];
+    }
+
+    /**
+     * @return The strides with no common factor with n.
+     */
+    private static int[] strides(int n)
+    {
+        if(n > MAX_ORDERED) {
+            return new int[] {1, n - 1};
+        }
+        return STRIDES[n];
+    }
+
+    private static int gcd(int a, int b)
+    {
+        return b == 0 ? a : gcd(b, a % b);
+    }
+
+    /**
+     * @return The name of the neighbourhood.
+     */
+    public String toString()
+    {
+        return name;
+    }
+}
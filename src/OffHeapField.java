@@ -0,0 +1,301 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A field whose grid is kept off the Java heap, in direct buffers, so that
+ * a field of hundreds of millions of cells is never scanned by the garbage
+ * collector.
+ *
+ * Each cell holds two numbers: the type id of what is in it, in one byte,
+ * and the index of its entity in a table of the objects placed, in an int.
+ * The table has one entry per object in the field rather than per cell,
+ * and its entries are reused as objects come and go. Reading the type id
+ * of a cell does not touch the object at all: getTypeIdAt reads the byte,
+ * so counting and drawing the field stay off the heap too.
+ *
+ * The buffers are split into pages, as a single buffer cannot hold more
+ * than 2 GB. Cells are numbered row by row as in a dense field. An off-heap
+ * field is never double-buffered.
+ *
+ * The tiles of a parallel step place and clear at the same time, so the
+ * free entity indices are kept in a stack taken without a lock, and the
+ * table is made of blocks that never move: only adding a block locks.
+ */
+public class OffHeapField extends Field
+{
+    // The number of bits of the index of a cell within its page: 64M cells a page.
+    private static final int PAGE_BITS = 26;
+    private static final int PAGE_MASK = (1 << PAGE_BITS) - 1;
+    // The type byte of a cell holding something that is not a registered species.
+    private static final int UNKNOWN_BYTE = 255;
+    // The number of bits of the index of an entity within its block: 1024 entities a block.
+    private static final int BLOCK_BITS = 10;
+    private static final int BLOCK_MASK = (1 << BLOCK_BITS) - 1;
+    // The free stack is empty when its head holds no index.
+    private static final int NO_ENTITY = -1;
+
+    // The type id plus one of each cell, 0 for an empty cell, page by page.
+    private final ByteBuffer[] types;
+    // The entity index of each cell, meaningless for an empty cell, page by page.
+    private final IntBuffer[] entities;
+    // The objects in the field, by entity index, block by block; null for a free index.
+    private volatile Object[][] table;
+    // The free index under each free index, block by block.
+    private volatile int[][] below;
+    // The top of the free stack in the low half, and in the high half a tag
+    // changed by every pop, so that an index popped and pushed back between
+    // the read and the swap of another thread does not fool it.
+    private final AtomicLong freeTop = new AtomicLong(NO_ENTITY & 0xFFFFFFFFL);
+    // The free entity indices, and the entity indices given out so far.
+    private final AtomicInteger freeCount = new AtomicInteger();
+    private final AtomicInteger used = new AtomicInteger();
+
+    /**
+     * Represent an off-heap field of the given dimensions.
+     * @param depth The depth of the field.
+     * @param width The width of the field.
+     */
+    public OffHeapField(int depth, int width)
+    {
+        super(depth, width, false);
+        if(!fitsDense(depth, width)) {
+            throw new IllegalArgumentException("A field of " + depth + " x " + width
+                                               + " has too many cells to be numbered, use a SparseField");
+        }
+        int cells = depth * width;
+        int pages = (cells + PAGE_MASK) >>> PAGE_BITS;
+        types = new ByteBuffer[pages];
+        entities = new IntBuffer[pages];
+        for(int page = 0; page < pages; page++) {
+            int size = Math.min(PAGE_MASK + 1, cells - (page << PAGE_BITS));
+            types[page] = ByteBuffer.allocateDirect(size);
+            entities[page] = ByteBuffer.allocateDirect(4 * size).order(ByteOrder.nativeOrder()).asIntBuffer();
+        }
+        table = new Object[][] { new Object[BLOCK_MASK + 1] };
+        below = new int[][] { new int[BLOCK_MASK + 1] };
+    }
+
+    /**
+     * An off-heap field is never double-buffered.
+     * @param doubleBuffered True to read and write separate generations.
+     */
+    public void setDoubleBuffered(boolean doubleBuffered)
+    {
+        if(doubleBuffered) {
+            System.out.println("An off-heap field cannot be double-buffered.");
+        }
+    }
+
+    /**
+     * Empty the field.
+     */
+    public synchronized void clear()
+    {
+        for(ByteBuffer page : types) {
+            for(int i = 0; i < page.capacity(); i++) {
+                page.put(i, (byte) 0);
+            }
+        }
+        table = new Object[][] { new Object[BLOCK_MASK + 1] };
+        below = new int[][] { new int[BLOCK_MASK + 1] };
+        freeTop.set(NO_ENTITY & 0xFFFFFFFFL);
+        freeCount.set(0);
+        used.set(0);
+        resetPopulation();
+        markAllDirty();
+    }
+
+    /**
+     * Clear the given cell.
+     * @param cell The index of the cell to clear.
+     */
+    public void clear(int cell)
+    {
+        ByteBuffer typePage = types[cell >>> PAGE_BITS];
+        int at = cell & PAGE_MASK;
+        if(typePage.get(at) != 0) {
+            int entity = entities[cell >>> PAGE_BITS].get(at);
+            typePage.put(at, (byte) 0);
+            count(release(entity), -1);
+            markDirty(cell);
+        }
+    }
+
+    /**
+     * Place an animal in the given cell.
+     * If there is already an animal in the cell it will
+     * be lost.
+     * @param animal The animal to be placed.
+     * @param cell The index of the cell.
+     */
+    public void place(Object animal, int cell)
+    {
+        if(animal == null) {
+            clear(cell);
+            return;
+        }
+        ByteBuffer typePage = types[cell >>> PAGE_BITS];
+        IntBuffer entityPage = entities[cell >>> PAGE_BITS];
+        int at = cell & PAGE_MASK;
+        Object old = null;
+        if(typePage.get(at) != 0) {
+            int entity = entityPage.get(at);
+            if(entityAt(entity) == animal) {
+                return;
+            }
+            old = release(entity);
+        }
+        int type = typeIdOf(animal);
+        entityPage.put(at, acquire(animal));
+        typePage.put(at, (byte) (type >= 0 && type < UNKNOWN_BYTE - 1 ? type + 1 : UNKNOWN_BYTE));
+        count(old, -1);
+        count(animal, 1);
+        markDirty(cell);
+    }
+
+    /**
+     * @param cell The index of a cell.
+     * @return True if nothing is in the cell.
+     */
+    public boolean isFree(int cell)
+    {
+        return types[cell >>> PAGE_BITS].get(cell & PAGE_MASK) == 0;
+    }
+
+    /**
+     * @param cell The index of a cell.
+     * @return True if nothing is in the cell.
+     */
+    public boolean isVacant(int cell)
+    {
+        return isFree(cell);
+    }
+
+    /**
+     * Return the animal at the given location, if any.
+     * @param row The desired row.
+     * @param col The desired column.
+     * @return The animal at the given location, or null if there is none.
+     */
+    public Object getObjectAt(int row, int col)
+    {
+        return getObjectAt(cellOf(row, col));
+    }
+
+    /**
+     * Return the animal in the given cell, if any.
+     * @param cell The index of the cell.
+     * @return The animal in the cell, or null if there is none.
+     */
+    public Object getObjectAt(int cell)
+    {
+        int at = cell & PAGE_MASK;
+        if(types[cell >>> PAGE_BITS].get(at) == 0) {
+            return null;
+        }
+        return entityAt(entities[cell >>> PAGE_BITS].get(at));
+    }
+
+    /**
+     * Return the type id of what is in a cell, read from the grid.
+     * @param cell The index of the cell.
+     * @return The type id, EMPTY_TYPE or UNKNOWN_TYPE.
+     */
+    public int getTypeIdAt(int cell)
+    {
+        int code = types[cell >>> PAGE_BITS].get(cell & PAGE_MASK) & 0xFF;
+        if(code == 0) {
+            return EMPTY_TYPE;
+        }
+        return code == UNKNOWN_BYTE ? UNKNOWN_TYPE : code - 1;
+    }
+
+    /**
+     * @return The number of objects in the entity table.
+     */
+    public int getEntityCount()
+    {
+        return used.get() - freeCount.get();
+    }
+
+    /**
+     * @return The object with the given entity index.
+     */
+    private Object entityAt(int entity)
+    {
+        return table[entity >>> BLOCK_BITS][entity & BLOCK_MASK];
+    }
+
+    /**
+     * Give an entity index to an object: the top of the free stack, or a
+     * new index if no index is free.
+     * @return The entity index of the object.
+     */
+    private int acquire(Object object)
+    {
+        int entity;
+        while(true) {
+            long top = freeTop.get();
+            entity = (int) top;
+            if(entity == NO_ENTITY) {
+                entity = used.getAndIncrement();
+                if(entity >>> BLOCK_BITS >= table.length) {
+                    grow(entity);
+                }
+                break;
+            }
+            int next = below[entity >>> BLOCK_BITS][entity & BLOCK_MASK];
+            long tag = (top >>> 32) + 1;
+            if(freeTop.compareAndSet(top, tag << 32 | (next & 0xFFFFFFFFL))) {
+                freeCount.decrementAndGet();
+                break;
+            }
+        }
+        table[entity >>> BLOCK_BITS][entity & BLOCK_MASK] = object;
+        return entity;
+    }
+
+    /**
+     * Free an entity index, pushing it on the free stack.
+     * @return The object that had it.
+     */
+    private Object release(int entity)
+    {
+        Object[] block = table[entity >>> BLOCK_BITS];
+        Object object = block[entity & BLOCK_MASK];
+        block[entity & BLOCK_MASK] = null;
+        freeCount.incrementAndGet();
+        while(true) {
+            long top = freeTop.get();
+            below[entity >>> BLOCK_BITS][entity & BLOCK_MASK] = (int) top;
+            if(freeTop.compareAndSet(top, (top & 0xFFFFFFFF00000000L) | (entity & 0xFFFFFFFFL))) {
+                return object;
+            }
+        }
+    }
+
+    /**
+     * Add blocks to the table until it holds the given entity index. The
+     * blocks already there are shared by the new table, so the objects
+     * other threads put in them meanwhile are not lost.
+     */
+    private synchronized void grow(int entity)
+    {
+        int blocks = (entity >>> BLOCK_BITS) + 1;
+        if(blocks <= table.length) {
+            return;
+        }
+        int[][] newBelow = Arrays.copyOf(below, Math.max(blocks, 2 * below.length));
+        Object[][] newTable = Arrays.copyOf(table, newBelow.length);
+        for(int block = table.length; block < newTable.length; block++) {
+            newBelow[block] = new int[BLOCK_MASK + 1];
+            newTable[block] = new Object[BLOCK_MASK + 1];
+        }
+        below = newBelow;
+        table = newTable;
+    }
+}
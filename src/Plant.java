@@ -5,28 +5,53 @@ import java.util.List;
  */
 public abstract class Plant implements Species
 {
+    // The water level of a new plant.
+    static final int INITIAL_WATER_LEVEL = 2;
+
     // instance variables - replace the example below with your own
     private int x;
     // Whether the plant is alive.
     private boolean alive;
     // Plant's field
     private Field field;
-    // Plant's location.
-    private Location location;
+    // Plant's position: the index of its cell, or Field.NO_CELL.
+    private int cell;
     // Plant's current level of water.
     private int waterLevel;
+    // Plant's own random stream, deciding where seeds fall.
+    private RandomStream rand;
+    // The ledger keeping the plant's water level, or null if the plant keeps it itself.
+    PlantLedger ledger;
+    // The plants before and after this one in its bucket of the ledger.
+    Plant ledgerPrev, ledgerNext;
+    // The slot of its bucket in the ring of the ledger: the water level is
+    // the slot plus the offset of the plant type.
+    int ledgerSlot;
 
     /**
      * Constructor that create plants in specific field and location.
      * @param field The field where the plant has to appear
-     * @param location The location where the plant has to appear
+     * @param cell The index of the cell where the plant has to appear
+     * @param rand The plant's own random stream.
      */
-    public Plant(Field field, Location location)
+    public Plant(Field field, int cell, RandomStream rand)
     {
         alive = true;
         this.field = field;
-        setLocation(location);
-        waterLevel = 2;
+        this.rand = rand;
+        this.cell = Field.NO_CELL;
+        setCell(cell);
+        waterLevel = INITIAL_WATER_LEVEL;
+    }
+
+    /**
+     * Constructor for the heads of the buckets of a PlantLedger,
+     * which are never in a field.
+     */
+    Plant()
+    {
+        rand = null;
+        cell = Field.NO_CELL;
     }
 
     /**
@@ -35,11 +60,24 @@ public abstract class Plant implements Species
      */
     protected void setLocation(Location newLocation)
     {
-        if(location != null) {
-            field.clear(location);
+        setCell(field.cellOf(newLocation));
+    }
+
+    /**
+     * Place the plant in a new cell of its field.
+     * @param newCell The index of the plant's new cell.
+     */
+    protected void setCell(int newCell)
+    {
+        EventLog events = field.getEventLog();
+        if(events != null) {
+            events.placed(getTypeId(), cell, newCell);
         }
-        location = newLocation;
-        field.place(this, newLocation);
+        if(cell != Field.NO_CELL) {
+            field.clear(cell);
+        }
+        cell = newCell;
+        field.place(this, newCell);
     }
 
     /**
@@ -53,12 +91,34 @@ public abstract class Plant implements Species
 
     /**
      * Return the plant's location.
-     * @return The plant's location.
+     * A new location is made at each call, the hot path uses getCell.
+     * @return The plant's location, or null if it is not in a field.
      * @Override
      */
     public Location getLocation()
     {
-        return location;
+        return cell == Field.NO_CELL ? null : field.locationOf(cell);
+    }
+
+    /**
+     * Return the index of the plant's cell.
+     * @return The plant's cell, or Field.NO_CELL if it is not in a field.
+     * @Override
+     */
+    public int getCell()
+    {
+        return cell;
+    }
+
+    /**
+     * Return the plant's own random stream.
+     * Seedlings get a stream split from their parent's one.
+     * @return The plant's random stream.
+     * @Override
+     */
+    public RandomStream getRandom()
+    {
+        return rand;
     }
 
     /**
@@ -66,11 +126,29 @@ public abstract class Plant implements Species
      * It is removed from the field.
      */
     public void setDead()
+    {
+        setDead(DeathCause.REMOVED);
+    }
+
+    /**
+     * Indicate that the plant is no longer alive, recording why.
+     * It is removed from the field.
+     * @param cause The cause of the death.
+     */
+    public void setDead(DeathCause cause)
     {
         alive = false;
-        if(location != null) {
-            field.clear(location);
-            location = null;
+        if(ledger != null) {
+            ledger.remove(this);
+        }
+        if(cell != Field.NO_CELL) {
+            field.countDeath(cause);
+            EventLog events = field.getEventLog();
+            if(events != null) {
+                events.death(cell, cause);
+            }
+            field.clear(cell);
+            cell = Field.NO_CELL;
             field = null;
         }
     }
@@ -91,13 +169,26 @@ public abstract class Plant implements Species
      */
     protected void giveBirth(List<Species> newPlants)
     {
-        // New foxes are born into adjacent locations.
-        // Get a list of adjacent free locations.
-        Field field = getField();
-        List<Location> free = field.getFreeAdjacentLocations(getLocation());
-        while(free.size() > 0) {
-            Location loc = free.remove(0);
-            newPlants.add(giveBirthUnique(field, loc));
+        // New plants are born into every free adjacent location.
+        int[] offsets = field.adjacentOffsets(cell);
+        for(int k = 0; k < offsets.length; k++) {
+            int next = cell + offsets[k];
+            if(field.isFree(next)) {
+                newPlants.add(giveBirthUnique(field, next));
+            }
+        }
+    }
+
+    /**
+     * Give birth into every free adjacent location, then die if the plant
+     * dies of overcrowding and no adjacent location is left free.
+     * @param newPlants A list to return newly born plants.
+     */
+    protected void reproduce(List<Species> newPlants)
+    {
+        giveBirth(newPlants);
+        if(diesOfOvercrowding() && field.freeAdjacentCell(cell, rand) == Field.NO_CELL){
+            setDead(DeathCause.OVERCROWDING);
         }
     }
 
@@ -115,7 +206,7 @@ public abstract class Plant implements Species
      * Generate and returns a new instance of Plant
      * @return New instance of Plant.
      */
-    protected abstract Plant giveBirthUnique(Field field, Location loc);
+    protected abstract Plant giveBirthUnique(Field field, int cell);
 
     /**
      * Check if a species is a plant.
@@ -127,11 +218,43 @@ public abstract class Plant implements Species
         return this == (species)? 1 : 0;
     }
 
+    /**
+     * @return The water level the plant needs to get to in order to reproduce.
+     */
+    protected abstract int getMaxWaterLevel();
+
+    /**
+     * @param weather The current weather.
+     * @return How much the water level of the plant changes in an hour of that weather.
+     */
+    protected abstract int getWaterChange(Weather weather);
+
+    /**
+     * @return True if the plant dies when it has no free location around after reproducing.
+     */
+    protected boolean diesOfOvercrowding(){
+        return false;
+    }
+
+    /**
+     * Give the plant the state it had when a checkpoint was written.
+     * Only a Checkpoint calls it, right after creating the plant.
+     * @param rand The plant's random stream, as it was.
+     * @param waterLevel The plant's water level.
+     */
+    void restore(RandomStream rand, int waterLevel){
+        this.rand = rand;
+        setWaterLevel(waterLevel);
+    }
+
     protected int getWaterLevel(){
-        return waterLevel;
+        return ledger == null ? waterLevel : ledger.levelOf(this);
     }
 
     protected void setWaterLevel(int waterLevel){
+        if(ledger != null) {
+            ledger.setLevel(this, waterLevel);
+        }
         this.waterLevel = waterLevel;
     }
 }
@@ -0,0 +1,333 @@
+import java.util.List;
+import java.util.function.ObjIntConsumer;
+
+/**
+ * Keep the water levels of all the plants without visiting them.
+ *
+ * Every plant of a type gets the same water change in the same hour, so
+ * the plants of a type are kept in buckets, one per water level, and the
+ * weather only moves a global offset: the bucket of level L is found at
+ * slot (L - offset) of a ring. Updating the water of all the plants of a
+ * type is then a single addition, whatever the number of plants.
+ *
+ * Plants are only touched when they have to do something:
+ *  - the plants of the buckets at or above the maximum water level give
+ *    birth, and move to the bucket of their level modulo that maximum;
+ *  - when the water goes down, the buckets below zero are spliced into
+ *    the bucket of level zero, as water levels never go below zero.
+ *
+ * Buckets are circular lists with a sentinel, linked through the plants
+ * themselves, so moving a plant or splicing a bucket takes constant time.
+ * Each plant also keeps the slot of its bucket, so its water level is the
+ * slot plus the offset of its type, found in constant time; the buckets
+ * are only walked to find the plants crossing a threshold. The plants of a
+ * bucket spliced into level zero are given the slot of that bucket.
+ */
+public class PlantLedger
+{
+    // The offset of each plant type, modulo the size of its ring; unused for creatures.
+    private final int[] offset;
+    // The number of buckets in the ring of each plant type.
+    private final int[] ringSize;
+    // The water level at which each plant type reproduces.
+    private final int[] maxLevel;
+    // The highest water level a plant of each type can have before reproducing.
+    private final int[] topLevel;
+    // The ring of buckets of each plant type, or null for creatures.
+    private final Sentinel[][] buckets;
+    // The plants reproducing at a level, taken out of their bucket.
+    private final Sentinel firing = new Sentinel(-1);
+    // The plants added during a step, put in their bucket at the end of it.
+    private final EntityList pending = new EntityList();
+    // Whether a step is in progress.
+    private boolean stepping;
+    // The number of plants that died since the last call to takeDeaths.
+    private int deaths;
+
+    /**
+     * Create an empty ledger for the plant types of SpeciesRegistry.
+     */
+    public PlantLedger()
+    {
+        int types = SpeciesRegistry.size();
+        offset = new int[types];
+        ringSize = new int[types];
+        maxLevel = new int[types];
+        topLevel = new int[types];
+        buckets = new Sentinel[types][];
+        for(int t = 0; t < types; t++) {
+            Species prototype = SpeciesRegistry.prototypeOf(t);
+            if(prototype instanceof Plant) {
+                Plant plant = (Plant) prototype;
+                int rise = 0, fall = 0;
+                for(Weather weather : Weather.values()) {
+                    rise = Math.max(rise, plant.getWaterChange(weather));
+                    fall = Math.min(fall, plant.getWaterChange(weather));
+                }
+                maxLevel[t] = plant.getMaxWaterLevel();
+                topLevel[t] = Math.max(maxLevel[t] - 1, Plant.INITIAL_WATER_LEVEL) + rise;
+                // The levels from fall (before splicing) to topLevel must have distinct slots.
+                ringSize[t] = topLevel[t] - fall + 1;
+                buckets[t] = new Sentinel[ringSize[t]];
+                for(int slot = 0; slot < ringSize[t]; slot++) {
+                    buckets[t][slot] = new Sentinel(slot);
+                }
+            }
+        }
+    }
+
+    /**
+     * Add a plant at its current water level. During a step it is only
+     * put in its bucket at the end of the step, so it does not act in it.
+     * @param plant The plant to add.
+     */
+    public void add(Plant plant)
+    {
+        if(stepping) {
+            pending.add(plant);
+        }
+        else {
+            link(plant);
+        }
+    }
+
+    /**
+     * Put a plant in the bucket of its water level.
+     */
+    private void link(Plant plant)
+    {
+        int t = plant.getTypeId();
+        int level = Math.max(0, Math.min(plant.getWaterLevel(), topLevel[t]));
+        plant.ledger = this;
+        insertLast(bucket(t, level), plant);
+    }
+
+    /**
+     * Remove a plant, when it dies. Plants can be eaten by creatures acting
+     * on several threads, so removals are synchronized; the order of the
+     * plants left does not depend on the order of the removals.
+     * @param plant The plant to remove.
+     */
+    public synchronized void remove(Plant plant)
+    {
+        unlink(plant);
+        plant.ledger = null;
+        deaths++;
+    }
+
+    /**
+     * @param plant A plant of the ledger.
+     * @return Its water level.
+     */
+    public int levelOf(Plant plant)
+    {
+        int t = plant.getTypeId();
+        return Math.floorMod(plant.ledgerSlot + offset[t], ringSize[t]);
+    }
+
+    /**
+     * Move a plant of the ledger to another water level.
+     * @param plant A plant of the ledger.
+     * @param level Its new water level.
+     */
+    public synchronized void setLevel(Plant plant, int level)
+    {
+        int t = plant.getTypeId();
+        unlink(plant);
+        insertLast(bucket(t, Math.max(0, Math.min(level, topLevel[t]))), plant);
+    }
+
+    /**
+     * Run the water part of Plant.act for every plant: move the water levels
+     * with the weather, and make the plants that reached their maximum give birth.
+     * @param weather The current weather.
+     * @param newPlants A list to receive the seedlings; they come back through add.
+     */
+    public void step(Weather weather, List<Species> newPlants)
+    {
+        stepping = true;
+        for(int t = 0; t < buckets.length; t++) {
+            if(buckets[t] == null) {
+                continue;
+            }
+            int change = ((Plant) SpeciesRegistry.prototypeOf(t)).getWaterChange(weather);
+            offset[t] = Math.floorMod(offset[t] + change, ringSize[t]);
+            // Water levels never go below zero.
+            Sentinel zero = bucket(t, 0);
+            for(int level = change; level < 0; level++) {
+                Sentinel below = bucket(t, level);
+                for(Plant plant = below.ledgerNext; plant != below; plant = plant.ledgerNext) {
+                    plant.ledgerSlot = zero.slot;
+                }
+                spliceLast(below, zero);
+            }
+            for(int level = maxLevel[t]; level <= topLevel[t]; level++) {
+                Sentinel full = bucket(t, level);
+                if(full.ledgerNext == full) {
+                    continue;
+                }
+                spliceLast(full, firing);
+                Sentinel after = bucket(t, level % maxLevel[t]);
+                while(firing.ledgerNext != firing) {
+                    Plant plant = firing.ledgerNext;
+                    unlink(plant);
+                    insertLast(after, plant);
+                    plant.reproduce(newPlants);
+                }
+            }
+        }
+        stepping = false;
+        for(int i = 0; i < pending.size(); i++) {
+            Plant plant = (Plant) pending.get(i);
+            if(plant.isActive()) {
+                link(plant);
+            }
+        }
+        pending.clear();
+    }
+
+    /**
+     * Go through the plants with their water level, type by type and level
+     * by level, in the order they act within a level. Adding them back in
+     * that order to an empty ledger gives the same ledger.
+     * It must not run during a step.
+     * @param action What to do with each plant and its water level.
+     */
+    public void forEach(ObjIntConsumer<Plant> action)
+    {
+        for(int t = 0; t < buckets.length; t++) {
+            if(buckets[t] == null) {
+                continue;
+            }
+            for(int level = 0; level <= topLevel[t]; level++) {
+                Sentinel bucket = bucket(t, level);
+                for(Plant plant = bucket.ledgerNext; plant != bucket; plant = plant.ledgerNext) {
+                    action.accept(plant, level);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The number of plants that died since the last call.
+     */
+    public synchronized int takeDeaths()
+    {
+        int taken = deaths;
+        deaths = 0;
+        return taken;
+    }
+
+    /**
+     * Remove every plant.
+     */
+    public void clear()
+    {
+        for(Sentinel[] ring : buckets) {
+            if(ring != null) {
+                for(Sentinel bucket : ring) {
+                    while(bucket.ledgerNext != bucket) {
+                        Plant plant = bucket.ledgerNext;
+                        unlink(plant);
+                        plant.ledger = null;
+                    }
+                }
+            }
+        }
+        for(int t = 0; t < offset.length; t++) {
+            offset[t] = 0;
+        }
+        pending.clear();
+        deaths = 0;
+    }
+
+    /**
+     * @return The bucket of the given water level of a plant type.
+     */
+    private Sentinel bucket(int t, int level)
+    {
+        return buckets[t][Math.floorMod(level - offset[t], ringSize[t])];
+    }
+
+    private static void insertLast(Sentinel bucket, Plant plant)
+    {
+        plant.ledgerSlot = bucket.slot;
+        Plant last = bucket.ledgerPrev;
+        plant.ledgerPrev = last;
+        plant.ledgerNext = bucket;
+        last.ledgerNext = plant;
+        bucket.ledgerPrev = plant;
+    }
+
+    private static void unlink(Plant plant)
+    {
+        plant.ledgerPrev.ledgerNext = plant.ledgerNext;
+        plant.ledgerNext.ledgerPrev = plant.ledgerPrev;
+        plant.ledgerPrev = null;
+        plant.ledgerNext = null;
+    }
+
+    /**
+     * Move all the plants of a bucket at the end of another one.
+     */
+    private static void spliceLast(Sentinel from, Sentinel to)
+    {
+        if(from.ledgerNext == from) {
+            return;
+        }
+        Plant first = from.ledgerNext;
+        Plant last = from.ledgerPrev;
+        first.ledgerPrev = to.ledgerPrev;
+        to.ledgerPrev.ledgerNext = first;
+        last.ledgerNext = to;
+        to.ledgerPrev = last;
+        from.ledgerNext = from;
+        from.ledgerPrev = from;
+    }
+
+    /**
+     * The head of a bucket. It is a plant only so that it can be linked
+     * with plants; it is never in a field and never acts.
+     */
+    private static class Sentinel extends Plant
+    {
+        // The slot of the bucket in its ring.
+        private final int slot;
+
+        Sentinel(int slot)
+        {
+            this.slot = slot;
+            ledgerNext = this;
+            ledgerPrev = this;
+        }
+
+        public void act(List<Species> newSpecies, int time, Weather weather)
+        {
+        }
+
+        public int getFoodValue()
+        {
+            return 0;
+        }
+
+        public int getTypeId()
+        {
+            return -1;
+        }
+
+        protected Plant giveBirthUnique(Field field, int cell)
+        {
+            return null;
+        }
+
+        protected int getMaxWaterLevel()
+        {
+            return 0;
+        }
+
+        protected int getWaterChange(Weather weather)
+        {
+            return 0;
+        }
+    }
+}
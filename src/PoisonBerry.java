@@ -21,18 +21,30 @@ public class PoisonBerry extends Plant
      */
     public PoisonBerry(Field field, Location location)
     {
-        super(field, location);
+        this(field, field.cellOf(location), Randomizer.splitStream());
+    }
+
+    /**
+     * Create a new poisonBerry drawing from its own random stream.
+     *
+     * @param field The field currently occupied.
+     * @param cell The index of the cell within the field.
+     * @param rand The poisonBerry's own random stream.
+     */
+    public PoisonBerry(Field field, int cell, RandomStream rand)
+    {
+        super(field, cell, rand);
     }
 
     /**
      * Generate and return a new poisonBerry in the field and location specified.
      * @param field The field where it has to appear.
-     * @param location The location where it has to appear.
+     * @param cell The cell where it has to appear.
      * @return A new instance of PoisonBerry.
      */
-    protected PoisonBerry giveBirthUnique(Field field, Location loc)
+    protected PoisonBerry giveBirthUnique(Field field, int cell)
     {
-        return new PoisonBerry(field, loc);
+        return new PoisonBerry(field, cell, getRandom().split());
     }
 
     /**
@@ -46,26 +58,41 @@ public class PoisonBerry extends Plant
     public void act(List<Species> newPoisonBerries, int time, Weather weather)
     {
         // according to the weather poisonBerry react differently.
-        switch(weather){
-            case RAINY:
-                setWaterLevel(getWaterLevel() + 2);
-                break;
-            default:
-                if(getWaterLevel()>0){
-                    setWaterLevel(getWaterLevel() - 1);
-                }
-        }
+        // The water level never goes below zero.
+        setWaterLevel(Math.max(0, getWaterLevel() + getWaterChange(weather)));
 
         // When the max water level is reached it reproduces.
         if(isActive() && getWaterLevel() >= MAX_WATER_LEVEL) {
             setWaterLevel(getWaterLevel() % MAX_WATER_LEVEL);
-            giveBirth(newPoisonBerries);
-
             // poisonBerries cannot die by overcrowding
+            reproduce(newPoisonBerries);
         }
     }
 
     public int getFoodValue(){
         return FOOD_VALUE;
     }
+
+    /**
+     * PoisonBerries drink when it rains, and dry out otherwise.
+     * @Override
+     */
+    protected int getWaterChange(Weather weather){
+        switch(weather){
+            case RAINY:
+                return 2;
+            default:
+                return -1;
+        }
+    }
+
+    @Override
+    protected int getMaxWaterLevel(){
+        return MAX_WATER_LEVEL;
+    }
+
+    @Override
+    public int getTypeId(){
+        return SpeciesRegistry.POISON_BERRY;
+    }
 }
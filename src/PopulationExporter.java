@@ -0,0 +1,460 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Stream a time series of the population to a file: one row per step,
+ * with the step, the hour, the weather, the number of infected creatures,
+ * the number of species of each type id and the number of deaths of each
+ * cause during the step.
+ *
+ * The exporter is an observer. After each step it copies the row into a
+ * ring of preallocated rows, which costs a few dozen stores and never
+ * waits; a writer thread of its own takes the rows from the ring in
+ * batches, encodes them into a buffer and writes the buffer through a
+ * FileChannel. If the writer falls a whole ring behind, the rows that do
+ * not fit are dropped and counted rather than making the simulation wait.
+ *
+ * Two formats are written:
+ *  - CSV, with a header line naming the columns;
+ *  - a compact binary columnar file: a header naming the columns, then
+ *    blocks of rows holding each column in turn, every value as the
+ *    zig-zag varint of its difference with the value of the row before,
+ *    which is mostly one byte. readBinary reads it back.
+ *
+ * The population is read from the counts of the field, so it costs the
+ * same whatever the size of the field. The species of an entity store
+ * are counted, but their deaths are not.
+ */
+public class PopulationExporter implements SimulationObserver
+{
+    // The formats of the file.
+    public enum Format { CSV, BINARY }
+
+    // The first bytes of a binary file, and the version of its layout.
+    private static final int MAGIC = 0x57535054;
+    private static final int VERSION = 1;
+    // The default number of rows of the ring.
+    public static final int DEFAULT_CAPACITY = 1 << 16;
+    // The most rows in a block of the binary format.
+    private static final int BLOCK_ROWS = 4096;
+    // The size of the buffer written at once.
+    private static final int BUFFER_BYTES = 1 << 20;
+    // How long the writer sleeps when the ring is empty, in nanoseconds.
+    private static final long IDLE_NANOS = 1000000L;
+    // The columns before the counts of each type id.
+    private static final int STEP = 0, TIME = 1, WEATHER = 2, INFECTED = 3, FIXED_COLUMNS = 4;
+    // The causes of death, in the order of their columns.
+    private static final DeathCause[] CAUSES = DeathCause.values();
+
+    // The format of the file.
+    private final Format format;
+    // The number of type ids counted, and the number of columns of a row.
+    private final int types, columns;
+    // The most rows of a block of the binary format, so that a block fits in the buffer.
+    private final int blockRows;
+    // The names of the columns.
+    private final String[] names;
+    // The rows of the ring, one after the other.
+    private final long[] ring;
+    private final int capacity;
+    // The number of rows put in the ring, and taken from it.
+    private final AtomicLong head = new AtomicLong(), tail = new AtomicLong();
+    // The file and the thread writing to it.
+    private final FileChannel channel;
+    private final Thread writer;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_BYTES);
+
+    // The total deaths of each cause at the last step, and the field they were counted in.
+    private final long[] deaths = new long[DeathCause.values().length];
+    private Field counted;
+    // The number of rows dropped because the ring was full.
+    private long droppedRows;
+    // Set to stop the writer once the ring is empty.
+    private volatile boolean closing;
+    // The first error of the writer, if any.
+    private volatile IOException failure;
+    // The values of the last row written, for the differences of the binary format.
+    private final long[] previous;
+    // The rows of a block, column by column, for the binary format.
+    private final long[] block;
+
+    /**
+     * Create an exporter with a ring of the default size.
+     * @param file The name of the file, replaced if it exists.
+     * @param format The format of the file.
+     * @throws IOException If the file cannot be written.
+     */
+    public PopulationExporter(String file, Format format) throws IOException
+    {
+        this(file, format, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Create an exporter.
+     * @param file The name of the file, replaced if it exists.
+     * @param format The format of the file.
+     * @param capacity The number of rows of the ring.
+     * @throws IOException If the file cannot be written.
+     */
+    public PopulationExporter(String file, Format format, int capacity) throws IOException
+    {
+        if(capacity <= 0) {
+            System.out.println("The capacity must be greater than zero.");
+            System.out.println("Using the default value.");
+            capacity = DEFAULT_CAPACITY;
+        }
+        this.format = format;
+        this.capacity = capacity;
+        types = SpeciesRegistry.size();
+        columns = FIXED_COLUMNS + types + deaths.length;
+        names = new String[columns];
+        names[STEP] = "step";
+        names[TIME] = "time";
+        names[WEATHER] = "weather";
+        names[INFECTED] = "infected";
+        for(int type = 0; type < types; type++) {
+            names[FIXED_COLUMNS + type] = SpeciesRegistry.classOf(type).getSimpleName();
+        }
+        for(DeathCause cause : DeathCause.values()) {
+            names[FIXED_COLUMNS + types + cause.ordinal()] = "dead_" + cause.name().toLowerCase();
+        }
+        ring = new long[capacity * columns];
+        previous = new long[columns];
+        blockRows = Math.max(1, Math.min(BLOCK_ROWS, (BUFFER_BYTES - 8) / (10 * columns)));
+        block = new long[blockRows * columns];
+
+        channel = FileChannel.open(Paths.get(file), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                   StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            writeHeader();
+        }
+        catch(IOException e) {
+            channel.close();
+            throw e;
+        }
+        writer = new Thread(this::writeRows, "population-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Put the row of the step in the ring, or drop it if the ring is full.
+     * @param simulator The simulator that has just stepped.
+     */
+    public void stepCompleted(Simulator simulator)
+    {
+        Field field = simulator.getField();
+        if(field != counted) {
+            // A new field counts its deaths from zero.
+            counted = field;
+            Arrays.fill(deaths, 0);
+        }
+        long row = head.get();
+        if(row - tail.get() == capacity) {
+            droppedRows++;
+            return;
+        }
+        int at = (int) (row % capacity) * columns;
+        ring[at + STEP] = simulator.getStep();
+        ring[at + TIME] = simulator.getTime();
+        ring[at + WEATHER] = simulator.getWeather().ordinal();
+        ring[at + INFECTED] = simulator.getVirus().getInfectedCount();
+        for(int type = 0; type < types; type++) {
+            ring[at + FIXED_COLUMNS + type] = field.getPopulation(type);
+        }
+        for(DeathCause cause : CAUSES) {
+            long total = field.getDeaths(cause);
+            int c = cause.ordinal();
+            // The counts start again when the field is emptied.
+            ring[at + FIXED_COLUMNS + types + c] = total >= deaths[c] ? total - deaths[c] : total;
+            deaths[c] = total;
+        }
+        head.lazySet(row + 1);
+    }
+
+    /**
+     * Write the rows left in the ring and close the file.
+     * @throws IOException If some rows could not be written.
+     */
+    public void close() throws IOException
+    {
+        closing = true;
+        LockSupport.unpark(writer);
+        boolean interrupted = false;
+        while(writer.isAlive()) {
+            try {
+                writer.join();
+            }
+            catch(InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if(interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if(failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * @return The number of rows dropped because the writer was a whole ring behind.
+     */
+    public long getDroppedRows()
+    {
+        return droppedRows;
+    }
+
+    /**
+     * @return The names of the columns, in the order of a row.
+     */
+    public String[] getColumnNames()
+    {
+        return names.clone();
+    }
+
+    /**
+     * Take the rows from the ring in batches and write them, until closed.
+     */
+    private void writeRows()
+    {
+        try {
+            while(true) {
+                long first = tail.get();
+                long last = head.get();
+                if(first == last) {
+                    if(closing && head.get() == first) {
+                        break;
+                    }
+                    flush();
+                    LockSupport.parkNanos(IDLE_NANOS);
+                    continue;
+                }
+                long end = Math.min(last, first + blockRows);
+                if(format == Format.CSV) {
+                    for(long row = first; row < end; row++) {
+                        putCsv((int) (row % capacity) * columns);
+                    }
+                }
+                else {
+                    putBlock(first, end);
+                }
+                tail.lazySet(end);
+            }
+            flush();
+        }
+        catch(IOException e) {
+            failure = e;
+            // Keep emptying the ring, so the simulation is not slowed by a dead writer.
+            while(!closing || tail.get() != head.get()) {
+                tail.lazySet(head.get());
+                LockSupport.parkNanos(IDLE_NANOS);
+            }
+        }
+        finally {
+            try {
+                channel.close();
+            }
+            catch(IOException e) {
+                if(failure == null) {
+                    failure = e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Write the header: the column names for CSV, and the magic, version
+     * and column names for the binary format.
+     */
+    private void writeHeader() throws IOException
+    {
+        if(format == Format.CSV) {
+            putText(String.join(",", names));
+            buffer.put((byte) '\n');
+        }
+        else {
+            buffer.putInt(MAGIC).putInt(VERSION).putInt(columns);
+            for(String name : names) {
+                byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+                buffer.putShort((short) bytes.length).put(bytes);
+            }
+        }
+        flush();
+    }
+
+    /**
+     * Put a row of the ring as a line of CSV.
+     */
+    private void putCsv(int at) throws IOException
+    {
+        room(columns * 21 + 16);
+        for(int c = 0; c < columns; c++) {
+            if(c > 0) {
+                buffer.put((byte) ',');
+            }
+            if(c == WEATHER) {
+                putText(Weather.values()[(int) ring[at + c]].getName());
+            }
+            else {
+                putNumber(ring[at + c]);
+            }
+        }
+        buffer.put((byte) '\n');
+    }
+
+    /**
+     * Put rows of the ring as a block of the binary format: the number of
+     * rows and of bytes, then each column as varints of differences.
+     */
+    private void putBlock(long first, long end) throws IOException
+    {
+        int rows = (int) (end - first);
+        for(int r = 0; r < rows; r++) {
+            int at = (int) ((first + r) % capacity) * columns;
+            for(int c = 0; c < columns; c++) {
+                block[c * rows + r] = ring[at + c];
+            }
+        }
+        room(8 + rows * columns * 10);
+        int start = buffer.position();
+        buffer.putInt(rows).putInt(0);
+        for(int c = 0; c < columns; c++) {
+            long before = previous[c];
+            for(int r = 0; r < rows; r++) {
+                long value = block[c * rows + r];
+                putVarint(EventLog.zigzag(value - before));
+                before = value;
+            }
+            previous[c] = before;
+        }
+        buffer.putInt(start + 4, buffer.position() - start - 8);
+    }
+
+    /**
+     * Make room in the buffer for some bytes, writing it if needed.
+     */
+    private void room(int bytes) throws IOException
+    {
+        if(buffer.remaining() < bytes) {
+            flush();
+        }
+    }
+
+    /**
+     * Write the buffer to the file.
+     */
+    private void flush() throws IOException
+    {
+        buffer.flip();
+        while(buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    private void putVarint(long value)
+    {
+        while((value & ~0x7FL) != 0) {
+            buffer.put((byte) (value | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    private void putText(String text)
+    {
+        buffer.put(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Put a number in decimal, without making a string.
+     */
+    private void putNumber(long value)
+    {
+        if(value < 0) {
+            buffer.put((byte) '-');
+            value = -value;
+        }
+        int start = buffer.position();
+        do {
+            buffer.put((byte) ('0' + value % 10));
+            value /= 10;
+        } while(value > 0);
+        // The digits were put from the last one: turn them around.
+        for(int i = start, j = buffer.position() - 1; i < j; i++, j--) {
+            byte digit = buffer.get(i);
+            buffer.put(i, buffer.get(j));
+            buffer.put(j, digit);
+        }
+    }
+
+    /**
+     * Read a file of the binary format.
+     * @param file The name of the file.
+     * @return The values of each column, in the order of the header.
+     * @throws IOException If the file cannot be read or is not of the binary format.
+     */
+    public static long[][] readBinary(String file) throws IOException
+    {
+        try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if(in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException(file + " is not a population file");
+            }
+            int columns = in.readInt();
+            for(int c = 0; c < columns; c++) {
+                in.skipBytes(in.readShort());
+            }
+            List<long[]> blocks = new ArrayList<>();
+            long[] previous = new long[columns];
+            int total = 0;
+            while(in.available() > 0) {
+                int rows = in.readInt();
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                long[] values = new long[rows * columns];
+                int at = 0;
+                for(int c = 0; c < columns; c++) {
+                    long value = previous[c];
+                    for(int r = 0; r < rows; r++) {
+                        long varint = 0;
+                        int shift = 0;
+                        byte next;
+                        do {
+                            next = bytes[at++];
+                            varint |= (long) (next & 0x7F) << shift;
+                            shift += 7;
+                        } while(next < 0);
+                        value += EventLog.unzigzag(varint);
+                        values[c * rows + r] = value;
+                    }
+                    previous[c] = value;
+                }
+                blocks.add(values);
+                total += rows;
+            }
+            long[][] result = new long[columns][total];
+            int row = 0;
+            for(long[] values : blocks) {
+                int rows = values.length / columns;
+                for(int c = 0; c < columns; c++) {
+                    System.arraycopy(values, c * rows, result[c], row, rows);
+                }
+                row += rows;
+            }
+            return result;
+        }
+    }
+}
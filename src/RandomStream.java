@@ -0,0 +1,148 @@
+/**
+ * A seeded, splittable stream of random numbers.
+ * It uses the SplitMix64 algorithm of java.util.SplittableRandom, but its
+ * state can be read back, so a run can be saved and resumed exactly.
+ *
+ * A stream is not thread-safe: every simulation, and every species in it,
+ * owns its own stream, split from the stream of whatever created it.
+ * Given the same seed a simulation then draws the same numbers, whatever
+ * the number of threads it runs on.
+ */
+public class RandomStream
+{
+    // The default gamma: the odd integer closest to 2^64 divided by the golden ratio.
+    private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+    // The unit in the last place of a double in [0, 1).
+    private static final double DOUBLE_UNIT = 0x1.0p-53;
+
+    // The seed, advanced by gamma at every draw.
+    private long seed;
+    // The step added to the seed, always odd.
+    private final long gamma;
+
+    /**
+     * Create a stream from a seed.
+     * @param seed The seed.
+     */
+    public RandomStream(long seed)
+    {
+        this(seed, GOLDEN_GAMMA);
+    }
+
+    /**
+     * Create a stream from a saved state.
+     * @param seed The seed, as returned by getSeed.
+     * @param gamma The gamma, as returned by getGamma. Must be odd.
+     */
+    public RandomStream(long seed, long gamma)
+    {
+        this.seed = seed;
+        this.gamma = gamma;
+    }
+
+    /**
+     * Create a new stream, independent from this one for all practical purposes.
+     * This stream advances, so splitting is itself deterministic.
+     * @return A new stream.
+     */
+    public RandomStream split()
+    {
+        return new RandomStream(nextLong(), mixGamma(nextSeed()));
+    }
+
+    /**
+     * @return A random long.
+     */
+    public long nextLong()
+    {
+        return mix64(nextSeed());
+    }
+
+    /**
+     * @return A random int.
+     */
+    public int nextInt()
+    {
+        return mix32(nextSeed());
+    }
+
+    /**
+     * @param bound The upper bound (exclusive). Must be positive.
+     * @return A random int between zero (inclusive) and bound (exclusive).
+     */
+    public int nextInt(int bound)
+    {
+        int r = mix32(nextSeed());
+        int m = bound - 1;
+        if((bound & m) == 0) {
+            // A power of two.
+            r &= m;
+        }
+        else {
+            // Reject the values that would make the result biased.
+            for(int u = r >>> 1; u + m - (r = u % bound) < 0; u = mix32(nextSeed()) >>> 1) {
+            }
+        }
+        return r;
+    }
+
+    /**
+     * @return A random double between zero (inclusive) and one (exclusive).
+     */
+    public double nextDouble()
+    {
+        return (mix64(nextSeed()) >>> 11) * DOUBLE_UNIT;
+    }
+
+    /**
+     * @return A random boolean.
+     */
+    public boolean nextBoolean()
+    {
+        return mix32(nextSeed()) < 0;
+    }
+
+    /**
+     * @return The seed, to save the state of the stream.
+     */
+    public long getSeed()
+    {
+        return seed;
+    }
+
+    /**
+     * @return The gamma, to save the state of the stream.
+     */
+    public long getGamma()
+    {
+        return gamma;
+    }
+
+    private long nextSeed()
+    {
+        return seed += gamma;
+    }
+
+    private static long mix64(long z)
+    {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    private static int mix32(long z)
+    {
+        z = (z ^ (z >>> 33)) * 0x62a9d9ed799705f5L;
+        return (int)(((z ^ (z >>> 28)) * 0xcb24d0a5c88c35b3L) >>> 32);
+    }
+
+    private static long mixGamma(long z)
+    {
+        z = (z ^ (z >>> 33)) * 0xff51afd7ed558ccdL;
+        z = (z ^ (z >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        z = (z ^ (z >>> 33)) | 1L;
+        // Avoid gammas with too few bit transitions.
+        int n = Long.bitCount(z ^ (z >>> 1));
+        return (n < 24) ? z ^ 0xaaaaaaaaaaaaaaaaL : z;
+    }
+}
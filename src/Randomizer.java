@@ -4,6 +4,9 @@ import java.util.Random;
  * Provide control over the randomization of the simulation. By using the shared, fixed-seed
  * randomizer, repeated runs will perform exactly the same (which helps with testing). Set
  * 'useShared' to false to get different random behaviour every time.
+ *
+ * A simulation draws from its own RandomStream, seeded with getSeed(); the shared
+ * streams here are only used by species and fields created outside a simulation.
  */
 public class Randomizer
 {
@@ -11,6 +14,8 @@ public class Randomizer
     private static final int SEED = 1111;
     // A shared Random object, if required.
     private static final Random rand = new Random(SEED);
+    // A shared stream to split new streams from.
+    private static RandomStream stream = new RandomStream(SEED);
     // Determine whether a shared random generator is to be provided.
     private static final boolean useShared = true;
 
@@ -35,15 +40,39 @@ public class Randomizer
         }
     }
 
+    /**
+     * Provide the seed a new simulation should use.
+     * @return The fixed seed, or a different one every time if 'useShared' is false.
+     */
+    public static long getSeed()
+    {
+        if(useShared) {
+            return SEED;
+        }
+        else {
+            return System.nanoTime();
+        }
+    }
+
+    /**
+     * Provide a new random stream, split from the shared one.
+     * @return A new random stream.
+     */
+    public static synchronized RandomStream splitStream()
+    {
+        return stream.split();
+    }
+
     /**
      * Reset the randomization.
      * This will have no effect if randomization is not through
      * a shared Random generator.
      */
-    public static void reset()
+    public static synchronized void reset()
     {
         if(useShared) {
             rand.setSeed(SEED);
+            stream = new RandomStream(SEED);
         }
     }
 }
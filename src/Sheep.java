@@ -1,6 +1,5 @@
 import java.util.List;
 import java.util.Iterator;
-import java.util.Random;
 
 /**
  * A simple model of a sheep.
@@ -24,8 +23,6 @@ public class Sheep extends Creature
     // In fact, it's the number of hours he can survive without eating before dying.
     private static final int MAX_FOOD_LEVEL = 5;
 
-    // A shared Random object, if required.
-    private Random rand = new Random();
 
     /**
      * Create a new sheep. A sheep may be created with age
@@ -37,7 +34,20 @@ public class Sheep extends Creature
      */
     public Sheep(boolean randomAge, Field field, Location location)
     {
-        super(field, location,(randomAge)?(int)(Math.random()*MAX_AGE)+1:0);
+        this(randomAge, field, field.cellOf(location), Randomizer.splitStream());
+    }
+
+    /**
+     * Create a new sheep drawing from its own random stream.
+     *
+     * @param randomAge If true, the sheep will have a random age.
+     * @param field The field currently occupied.
+     * @param cell The index of the cell within the field.
+     * @param rand The sheep's own random stream.
+     */
+    public Sheep(boolean randomAge, Field field, int cell, RandomStream rand)
+    {
+        super(field, cell, (randomAge)?rand.nextInt(MAX_AGE)+1:0, rand);
         if(randomAge) {
             setFoodLevel(rand.nextInt(MAX_FOOD_LEVEL));
         }
@@ -84,43 +94,15 @@ public class Sheep extends Creature
         return FOOD_VALUE;
     }
 
-    /**
-     * Look for food adjacent to the current location.
-     * Only the first live species is eaten.
-     * @return Where food was found, or null if it wasn't.
-     */
-    protected boolean findSpecificFood(Object species)
-    {
-        // sheeps only eat plants
-        if(species instanceof Plant) {
-            if(species instanceof Wheat){
-                Wheat wheat = (Wheat) species;
-                if(wheat.isActive()) {
-                    setFoodLevel(getFoodLevel() + wheat.getFoodValue());
-                    wheat.setDead();
-                    foodLevelCheck();
-                    return true;
-                }
-            }else if (species instanceof PoisonBerry){
-                PoisonBerry berry = (PoisonBerry) species;
-                if(berry.isActive()) {
-                    berry.setDead();
-                    return true;
-                }
-            }
-        }
-        return false;
-    }
-
     /**
      * Generate and return a new Sheep in the field and location specified.
      * @param field The field where it has to appear.
-     * @param location The location where it has to appear.
+     * @param cell The cell where it has to appear.
      * @return A new instance of Sheep.
      */
-    public Sheep giveBirthUnique(Field field,Location loc)
+    public Sheep giveBirthUnique(Field field, int cell)
     {
-        return new Sheep(false, field, loc);
+        return new Sheep(false, field, cell, getRandom().split());
     }
 
     @Override
@@ -147,4 +129,9 @@ public class Sheep extends Creature
     protected int getMaxFoodLevel(){
         return MAX_FOOD_LEVEL;
     }
+
+    @Override
+    public int getTypeId(){
+        return SpeciesRegistry.SHEEP;
+    }
 }
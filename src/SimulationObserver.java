@@ -0,0 +1,13 @@
+/**
+ * An interface for anything that wants to follow a running simulation.
+ * The graphical view is just one observer among others; a headless run
+ * may have no observers at all.
+ */
+public interface SimulationObserver
+{
+    /**
+     * Called by the simulator after it has been reset and after every step.
+     * @param simulator The simulator whose state has just changed.
+     */
+    void stepCompleted(Simulator simulator);
+}
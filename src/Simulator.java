@@ -1,9 +1,9 @@
-import java.util.Random;
 import java.util.List;
 import java.util.ArrayList;
-import java.util.Iterator;
 import java.awt.Color;
 import java.util.HashSet;
+import java.util.Map;
+import java.io.IOException;
 
 /**
  * A simple predator-prey simulator, based on a rectangular field
@@ -31,17 +31,38 @@ public class Simulator
     private final static double POISON_BERRY_CREATION_PROBABILITY = 0.08;
     // The probability that a hedgehog will be created in any given grid position.
     private final static double HEDGEHOG_CREATION_PROBABILITY = 0.03;
+    // The species a location may get when the field is populated, in the order they are drawn.
+    private static final int[] CREATION_ORDER = {
+        SpeciesRegistry.POISON_BERRY, SpeciesRegistry.WHITE_WALKER, SpeciesRegistry.DRAGON, SpeciesRegistry.SHEEP,
+        SpeciesRegistry.WHEAT, SpeciesRegistry.HUMAN, SpeciesRegistry.HEDGEHOG
+    };
     // The day starts at this hour.
     private static final int FIRST_HOUR = 8;
+    // The probability that a creature gets infected at random, each hour.
+    private static final double INFECTION_PROBABILITY = 0.1;
+    // The probability that a creature sleeping through the night got infected at random:
+    // it is not visited while asleep, so the FIRST_HOUR chances are drawn at once when it wakes,
+    // and a sleeper infected that way only starts spreading the virus then.
+    private static final double NIGHT_INFECTION_PROBABILITY = 1 - Math.pow(1 - INFECTION_PROBABILITY, FIRST_HOUR);
+    // The pause between two steps when the simulation is shown in a view, in milliseconds.
+    private static final int VIEW_STEP_DELAY = 20;
 
-    // List of species in the field.
-    private List<Species> species;
+    // The species in the field, in one bucket per activity class.
+    private ActivityBuckets species;
+    // The size of each bucket at the start of the step.
+    private final int[] stepSizes = new int[ActivityBuckets.BUCKETS];
     // The current state of the field.
     private Field field;
     // The current step of the simulation.
     private int step;
-    // A graphical view of the simulation.
+    // A graphical view of the simulation, or null when running headless.
     private SimulatorView view;
+    // Everything that wants to be told about a new step, the view included.
+    private List<SimulationObserver> observers;
+    // Statistics used to decide whether the simulation is still viable.
+    private FieldStats stats;
+    // The pause between two steps, in milliseconds; zero runs as fast as possible.
+    private int stepDelay;
     // Day time.
     private int time;
     // it's the time the compiler has to wait before changing weather(that may be the same as the previous)
@@ -49,6 +70,28 @@ public class Simulator
 
     private Virus virus;
     private Weather weather;
+    // The seed every random number of the simulation derives from.
+    private long seed;
+    // The stream populating the field; every species gets a stream split from it.
+    private RandomStream rand;
+    // The stream deciding the weather.
+    private RandomStream weatherRand;
+    // Runs the act phase on several cores, or null to act on the calling thread.
+    private TiledStepEngine engine;
+    // Keeps the species as arrays of primitives instead of objects, or null.
+    private EntityStore store;
+    // Keeps the water levels of the plants and makes them act, or null.
+    private PlantLedger ledger;
+    // The log the events of every step are recorded in, or null.
+    private EventLog events;
+    // How much more likely than by default each species is to be created in a location.
+    private double density = 1;
+    // The probability of creating each species of the simulation in a location, by type id.
+    private final double[] creationProbabilities = defaultCreationProbabilities();
+    // The time of each phase of the steps, or null if they are not timed.
+    private StepMetrics metrics;
+    // The flight recorder events of the steps.
+    private final FlightEvents flight = new FlightEvents();
 
     /**
      * Construct a simulation field with default size.
@@ -56,16 +99,63 @@ public class Simulator
     public Simulator()
     {
         this(DEFAULT_DEPTH, DEFAULT_WIDTH);
-        view.showStatus(weather.getName(), time, field);
     }
 
     /**
-     * Create a simulation field with the given size.
+     * Create a simulation field with the given size, shown in a view.
      * @param depth Depth of the field. Must be greater than zero.
      * @param width Width of the field. Must be greater than zero.
      */
     public Simulator(int depth, int width)
     {
+        this(depth, width, false);
+    }
+
+    /**
+     * Create a simulation field with the given size.
+     * A headless simulator creates no view and does not pause between steps,
+     * observers can still be added with addObserver.
+     * @param depth Depth of the field. Must be greater than zero.
+     * @param width Width of the field. Must be greater than zero.
+     * @param headless True to run without a graphical view.
+     */
+    public Simulator(int depth, int width, boolean headless)
+    {
+        this(depth, width, headless, Randomizer.getSeed());
+    }
+
+    /**
+     * Create a simulation field with the given size and seed.
+     * The same seed always gives the same run, whatever the number of
+     * threads set with setParallelism.
+     * @param depth Depth of the field. Must be greater than zero.
+     * @param width Width of the field. Must be greater than zero.
+     * @param headless True to run without a graphical view.
+     * @param seed The seed of the simulation.
+     */
+    public Simulator(int depth, int width, boolean headless, long seed)
+    {
+        this(depth, width, headless, seed, 1);
+    }
+
+    /**
+     * Create a simulation field with the given size, seed and density.
+     * A very large sparse field is only populated once, at the density
+     * given, rather than first at the default one.
+     * @param depth Depth of the field. Must be greater than zero.
+     * @param width Width of the field. Must be greater than zero.
+     * @param headless True to run without a graphical view.
+     * @param seed The seed of the simulation.
+     * @param density 1 for the default population, see setDensity.
+     */
+    public Simulator(int depth, int width, boolean headless, long seed, double density)
+    {
+        if(density <= 0) {
+            System.out.println("The density must be greater than zero.");
+            System.out.println("Using the default value.");
+            density = 1;
+        }
+        this.density = density;
         if(width <= 0 || depth <= 0) {
             System.out.println("The dimensions must be greater than zero.");
             System.out.println("Using default values.");
@@ -73,17 +163,54 @@ public class Simulator
             width = DEFAULT_WIDTH;
         }
 
-        virus = new Virus();
-        time = FIRST_HOUR; // the simulation will start at that hour
-        this.weather = Weather.getRandomWeather();
-        this.waitTime = weather.getHours();
-        species = new ArrayList<>();
-        field = new Field(depth, width);
+        this.seed = seed;
+        species = new ActivityBuckets();
+        if(Field.fitsDense(depth, width)) {
+            field = new Field(depth, width);
+        }
+        else {
+            field = new SparseField(depth, width);
+            if(!headless) {
+                System.out.println("A field this big cannot be shown in a view.");
+                System.out.println("Running headless.");
+                headless = true;
+            }
+        }
+        observers = new ArrayList<>();
+        stats = new FieldStats();
+
+        if(!headless) {
+            createView(depth, width);
+            stepDelay = VIEW_STEP_DELAY;
+        }
+
+        // Setup a valid starting point.
+        reset();
+    }
+
+    /**
+     * Create a view of the state of each location in the field,
+     * and register a publisher of snapshots for it as an observer.
+     * @param depth Depth of the field.
+     * @param width Width of the field.
+     */
+    private void createView(int depth, int width)
+    {
+        view = newView(depth, width);
+        observers.add(new SnapshotPublisher(view));
+    }
 
-        // Create a view of the state of each location in the field.
+    /**
+     * Create a view of a field, with the colour of each species.
+     * @param depth Depth of the field.
+     * @param width Width of the field.
+     * @return The view.
+     */
+    static SimulatorView newView(int depth, int width)
+    {
         Color PURPLE = new Color(138, 43, 226); //creating colour Purple
 
-        view = new SimulatorView(depth, width);
+        SimulatorView view = new SimulatorView(depth, width);
         view.setColor(Human.class, Color.PINK);
         view.setColor(WhiteWalker.class, Color.BLUE);
         view.setColor(Dragon.class, Color.BLACK);
@@ -91,11 +218,234 @@ public class Simulator
         view.setColor(Wheat.class, Color.YELLOW);
         view.setColor(PoisonBerry.class, PURPLE);
         view.setColor(Hedgehog.class, Color.LIGHT_GRAY);
+        return view;
+    }
 
-        // Setup a valid starting point.
+    /**
+     * Add an observer that will be told about every new step.
+     * @param observer The observer to add.
+     */
+    public void addObserver(SimulationObserver observer)
+    {
+        observers.add(observer);
+    }
+
+    /**
+     * Remove an observer previously added.
+     * @param observer The observer to remove.
+     */
+    public void removeObserver(SimulationObserver observer)
+    {
+        observers.remove(observer);
+    }
+
+    /**
+     * Set the pause between two steps of simulate().
+     * @param millisec The pause in milliseconds, zero for no pause at all.
+     */
+    public void setStepDelay(int millisec)
+    {
+        stepDelay = Math.max(0, millisec);
+    }
+
+    /**
+     * Choose how many threads make the species act.
+     * With one or more threads the field is split into tiles acting in
+     * a checkerboard order, see TiledStepEngine; the result of a step is
+     * the same whatever the number of threads.
+     * @param threads The number of threads, 0 to act in list order on the calling thread.
+     */
+    public void setParallelism(int threads)
+    {
+        if(engine != null) {
+            engine.shutdown();
+        }
+        if(threads > 0) {
+            engine = new TiledStepEngine(threads);
+        }
+        else {
+            engine = null;
+        }
+    }
+
+    /**
+     * Choose whether every species of a step reads the field as it was
+     * at the start of the step, and writes into the next generation.
+     * @param doubleBuffered True to use a double-buffered field.
+     */
+    public void setDoubleBuffered(boolean doubleBuffered)
+    {
+        field.setDoubleBuffered(doubleBuffered);
+    }
+
+    /**
+     * Choose which cells are adjacent to a cell, for moving, eating,
+     * breeding and spreading the virus. The default is Neighbourhood.MOORE.
+     * The entity store always uses the 8 cells around.
+     * @param neighbourhood The neighbourhood to use.
+     */
+    public void setNeighbourhood(Neighbourhood neighbourhood)
+    {
+        field.setNeighbourhood(neighbourhood);
+    }
+
+    /**
+     * Make the field more or less crowded when it is populated, by scaling
+     * the probability of creating each species in a location, and start
+     * again from the seed.
+     * @param density 1 for the default population, less for an emptier field, more for a fuller one.
+     */
+    public void setDensity(double density)
+    {
+        if(density <= 0) {
+            System.out.println("The density must be greater than zero.");
+            System.out.println("Using the default value.");
+            density = 1;
+        }
+        this.density = density;
         reset();
     }
 
+    /**
+     * Change the probability of creating some species in a location when the
+     * field is populated, and start again from the seed. The density scales
+     * these probabilities too.
+     * @param probabilities The probabilities, from 0 to 1, by species class;
+     *                      the species left out keep theirs.
+     */
+    public void setCreationProbabilities(Map<Class<? extends Species>, Double> probabilities)
+    {
+        for(Map.Entry<Class<? extends Species>, Double> entry : probabilities.entrySet()) {
+            int type = SpeciesRegistry.idOf(entry.getKey());
+            double probability = entry.getValue();
+            if(type < 0 || type >= creationProbabilities.length) {
+                System.out.println(entry.getKey().getSimpleName() + " is not created when the field is populated.");
+            }
+            else if(probability < 0 || probability > 1) {
+                System.out.println("The probability of creating a " + entry.getKey().getSimpleName()
+                                   + " must be between 0 and 1.");
+                System.out.println("Using the default value.");
+                creationProbabilities[type] = defaultCreationProbabilities()[type];
+            }
+            else {
+                creationProbabilities[type] = probability;
+            }
+        }
+        reset();
+    }
+
+    /**
+     * @param speciesClass A species of the simulation.
+     * @return The probability of creating it in a location, before the density, or 0.
+     */
+    public double getCreationProbability(Class<? extends Species> speciesClass)
+    {
+        int type = SpeciesRegistry.idOf(speciesClass);
+        return type < 0 || type >= creationProbabilities.length ? 0 : creationProbabilities[type];
+    }
+
+    /**
+     * @return The default probability of creating each species in a location, by type id.
+     */
+    private static double[] defaultCreationProbabilities()
+    {
+        double[] probabilities = new double[SpeciesRegistry.POISON_BERRY + 1];
+        probabilities[SpeciesRegistry.WHITE_WALKER] = WHITEWALKER_CREATION_PROBABILITY;
+        probabilities[SpeciesRegistry.DRAGON] = DRAGON_CREATION_PROBABILITY;
+        probabilities[SpeciesRegistry.HUMAN] = HUMAN_CREATION_PROBABILITY;
+        probabilities[SpeciesRegistry.SHEEP] = SHEEP_CREATION_PROBABILITY;
+        probabilities[SpeciesRegistry.HEDGEHOG] = HEDGEHOG_CREATION_PROBABILITY;
+        probabilities[SpeciesRegistry.WHEAT] = WHEAT_CREATION_PROBABILITY;
+        probabilities[SpeciesRegistry.POISON_BERRY] = POISON_BERRY_CREATION_PROBABILITY;
+        return probabilities;
+    }
+
+    /**
+     * Keep the species in a SparseField from now on, whose memory follows
+     * the species rather than the area of the field, and start again from
+     * the seed. Fields too big to be dense are always sparse. A sparse field
+     * cannot be shown in a view, and is never double-buffered.
+     */
+    public void useSparseField()
+    {
+        if(field instanceof SparseField) {
+            return;
+        }
+        if(view != null) {
+            System.out.println("A sparse field cannot be shown in a view.");
+            return;
+        }
+        replaceField(new SparseField(field.getDepth(), field.getWidth()));
+    }
+
+    /**
+     * Keep the field off the heap from now on, in an OffHeapField, so that
+     * a very large grid does not lengthen garbage collections, and start
+     * again from the seed. An off-heap field is never double-buffered.
+     */
+    public void useOffHeapField()
+    {
+        if(!(field instanceof OffHeapField)) {
+            replaceField(new OffHeapField(field.getDepth(), field.getWidth()));
+        }
+    }
+
+    /**
+     * Use another field of the same size and neighbourhood, and start again from the seed.
+     */
+    private void replaceField(Field newField)
+    {
+        newField.setNeighbourhood(field.getNeighbourhood());
+        field = newField;
+        if(events != null) {
+            events.attach(field);
+        }
+        reset();
+    }
+
+    /**
+     * Move all the species into a compact EntityStore, where they are kept
+     * as arrays of primitives from now on, also after a reset.
+     * Observers still work: the store is shown in the field before they are
+     * told about a step, which costs a pass over the field, so the store is
+     * meant for headless runs. The virus does not act on the store.
+     */
+    public void useEntityStore()
+    {
+        if(store == null) {
+            if(events != null) {
+                System.out.println("The events of an entity store are not recorded.");
+                stopRecording();
+            }
+            loadStore();
+        }
+    }
+
+    /**
+     * Let a PlantLedger keep the water levels of the plants, so that the
+     * weather costs the same whatever the number of plants, and only the
+     * plants reproducing are visited. Plants act after all the creatures,
+     * grouped by water level. It stays in use after a reset.
+     */
+    public void usePlantLedger()
+    {
+        if(ledger == null) {
+            ledger = new PlantLedger();
+            species.setPlantLedger(ledger);
+        }
+    }
+
+    /**
+     * Move the species of the list into a new store.
+     */
+    private void loadStore()
+    {
+        store = new EntityStore(field.getDepth(), field.getWidth(), rand.split());
+        store.load(species);
+        species.clear();
+        field.clear();
+    }
+
     /**
      * Run the simulation from its current state for a reasonably long period,
      * (4000 steps).
@@ -112,10 +462,35 @@ public class Simulator
      */
     public void simulate(int numSteps)
     {
-        for(int step = 1; step <= numSteps && view.isViable(field); step++) {
+        for(int step = 1; step <= numSteps && isViable(); step++) {
             simulateOneStep();
-            delay(20);   // change the delay here to either speed up or slow down the animation
+            if(stepDelay > 0) {
+                delay(stepDelay);   // change the delay with setStepDelay to either speed up or slow down the animation
+            }
+        }
+        flushView();
+    }
+
+    /**
+     * Determine whether the simulation should continue to run.
+     * No view is needed: the field is counted directly.
+     * @return true If there is more than one species alive.
+     */
+    public boolean isViable()
+    {
+        if(store != null) {
+            return store.isViable();
+        }
+        StepMetrics metrics = this.metrics;
+        if(metrics != null && metrics.isEnabled()) {
+            long start = System.nanoTime();
+            stats.reset();
+            boolean viable = stats.isViable(field);
+            metrics.lap(StepMetrics.Phase.STATS, start);
+            return viable;
         }
+        stats.reset();
+        return stats.isViable(field);
     }
 
     /**
@@ -127,114 +502,610 @@ public class Simulator
      */
     public void simulateOneStep()
     {
+        // With the metrics on, the clock is read at the edges of each phase.
+        StepMetrics metrics = this.metrics;
+        boolean timed = metrics != null && metrics.isEnabled();
+        long start = timed ? System.nanoTime() : 0;
+        long mark = start;
+        flight.stepStarted(this, engine);
+
         step++;
         time = ++time%24;
         if(waitTime-- == 0){
-            weather = Weather.getRandomWeather();
+            weather = Weather.getRandomWeather(weatherRand);
             waitTime = weather.getHours();
         }
-
-        // Provide space for newborn species.
-        List<Species> newSpecies = new ArrayList<>();
-        // Let all rabbits act.
-
-        for(Iterator<Species> it = species.iterator(); it.hasNext(); ) {
-            Species species = it.next();
-
-            //during the night creatures sleep, but white walkers.
-            if(!(species instanceof Creature && time<8) || species instanceof WhiteWalker){
-                species.act(newSpecies,time,weather);
+        if(timed) {
+            mark = metrics.lap(StepMetrics.Phase.WEATHER, mark);
+        }
+        if(store != null) {
+            store.step(time, weather);
+            if(timed) {
+                mark = metrics.add(StepMetrics.Phase.ACT, mark);
             }
-
-            if(Math.random()>0.9 && species instanceof Creature){
-                Creature creature = (Creature) species;
-                virus.infect(creature);
+            notifyObservers();
+            flight.stepEnded(this, engine);
+            if(timed) {
+                endTiming(metrics, start, mark);
             }
+            return;
+        }
+        // With a double-buffered field, read generation N and write N+1.
+        field.beginGeneration();
 
-            if(! species.isActive()) {
-                it.remove();
+        // Only the buckets awake at this hour are visited. Newborns are added
+        // at the end of their bucket and do not act in this step.
+        boolean night = time < FIRST_HOUR;
+        int[] awake = species.awakeBuckets(night);
+        for(int b : awake) {
+            stepSizes[b] = species.bucket(b).size();
+        }
+        if(time == FIRST_HOUR) {
+            infectSleepers();
+            if(timed) {
+                mark = metrics.add(StepMetrics.Phase.RANDOM_INFECTION, mark);
             }
+        }
 
-            // virus spreads infecting ONE random creature adjacent to those already infected
-            if(virus.getInfectedCreatures().contains(species)){
-                Location loc = species.getLocation();
-                Field field = species.getField();
-                if(loc != null){
-                    Location location = field.randomAdjacentLocation(loc); // getting a random adjacent location
-                    Object obj = field.getObjectAt(location);
-                    if(obj instanceof Creature){
-                        Species speciesToInfect = (Species) obj; //getting the species belonging to that location
-                        Creature creatureToInfect = (Creature) species;
-                        virus.infect(creatureToInfect);
+        if(engine != null) {
+            // All the species act first, tile by tile, then the virus spreads.
+            if(timed) {
+                countActs(metrics, awake);
+            }
+            engine.act(species.awake(night), field, species, time, weather);
+            if(timed) {
+                mark = metrics.add(StepMetrics.Phase.ACT, mark);
+            }
+            for(int b : awake) {
+                EntityList bucket = species.bucket(b);
+                for(int i = 0; i < stepSizes[b]; i++) {
+                    Species species = bucket.get(i);
+                    if(! species.isActive()) {
+                        continue;
+                    }
+                    if(timed && i % StepMetrics.SAMPLE == 0) {
+                        long sampled = System.nanoTime();
+                        infectRandomly(species);
+                        sampled = metrics.sample(StepMetrics.Phase.RANDOM_INFECTION, sampled);
+                        spreadFrom(species);
+                        metrics.sample(StepMetrics.Phase.VIRUS_SPREAD, sampled);
+                    }
+                    else {
+                        spreadVirus(species);
                     }
                 }
             }
+            if(timed) {
+                long now = System.nanoTime();
+                metrics.apportion(now - mark, StepMetrics.Phase.VIRUS_SPREAD);
+                mark = now;
+            }
+        }
+        else {
+            for(int b : awake) {
+                EntityList bucket = species.bucket(b);
+                for(int i = 0; i < stepSizes[b]; i++) {
+                    Species species = bucket.get(i);
+                    // Species eaten earlier in the step are skipped.
+                    if(! species.isActive()) {
+                        continue;
+                    }
+                    if(timed) {
+                        metrics.countAct(species.getTypeId());
+                    }
+                    if(timed && i % StepMetrics.SAMPLE == 0) {
+                        long sampled = System.nanoTime();
+                        species.act(this.species,time,weather);
+                        sampled = metrics.sample(StepMetrics.Phase.ACT, sampled);
+                        infectRandomly(species);
+                        sampled = metrics.sample(StepMetrics.Phase.RANDOM_INFECTION, sampled);
+                        spreadFrom(species);
+                        metrics.sample(StepMetrics.Phase.VIRUS_SPREAD, sampled);
+                    }
+                    else {
+                        species.act(this.species,time,weather);
+                        spreadVirus(species);
+                    }
+                }
+            }
+            if(timed) {
+                long now = System.nanoTime();
+                metrics.apportion(now - mark, StepMetrics.Phase.ACT);
+                mark = now;
+            }
+        }
+
+        // Sleepers do not act, but the infected ones still spread the virus.
+        if(night) {
+            spreadFromSleepers();
+            if(timed) {
+                mark = metrics.add(StepMetrics.Phase.VIRUS_SPREAD, mark);
+            }
+        }
+
+        // With a ledger, the plants act after all the creatures.
+        if(ledger != null) {
+            ledger.step(weather, species);
+            if(timed) {
+                mark = metrics.add(StepMetrics.Phase.ACT, mark);
+            }
         }
 
         // virus acting.
         virus.givePain(time);
+        if(timed) {
+            mark = metrics.lap(StepMetrics.Phase.GIVE_PAIN, mark);
+        }
+
+        // Drop the species that died during the step, in a single pass.
+        species.compact();
+
+        field.swapGenerations();
+        if(timed) {
+            mark = metrics.lap(StepMetrics.Phase.NEWBORN_MERGE, mark);
+        }
+        if(events != null) {
+            events.endStep(step, time, weather);
+        }
+        notifyObservers();
+        flight.stepEnded(this, engine);
+        if(timed) {
+            endTiming(metrics, start, mark);
+        }
+    }
+
+    /**
+     * Count the species about to act on the engine, which cannot count them itself.
+     * @param metrics The metrics counting them.
+     * @param awake The buckets acting.
+     */
+    private void countActs(StepMetrics metrics, int[] awake)
+    {
+        for(int b : awake) {
+            EntityList bucket = species.bucket(b);
+            for(int i = 0; i < stepSizes[b]; i++) {
+                Species species = bucket.get(i);
+                if(species.isActive()) {
+                    metrics.countAct(species.getTypeId());
+                }
+            }
+        }
+    }
+
+    /**
+     * Record the rendering and the whole step, and end the step of the metrics.
+     * @param metrics The metrics.
+     * @param start The clock when the step started.
+     * @param mark The clock when the rendering started.
+     */
+    private void endTiming(StepMetrics metrics, long start, long mark)
+    {
+        long now = metrics.lap(StepMetrics.Phase.RENDERING, mark);
+        metrics.record(StepMetrics.Phase.STEP, now - start);
+        metrics.endStep();
+    }
+
+    /**
+     * Check whether a species is awake at the given hour.
+     * During the night creatures sleep, but white walkers.
+     * @param species The species to check.
+     * @param time Day time.
+     * @return true if the species acts at that hour.
+     */
+    static boolean isAwake(Species species, int time)
+    {
+        return !(species instanceof Creature && time<8) || species instanceof WhiteWalker;
+    }
+
+    /**
+     * Give the creatures that slept through the night the chances of random
+     * infection they had while asleep, drawn at once when they wake. The
+     * sleepers already infected spread the virus every hour of the night,
+     * see spreadFromSleepers; those infected here only start in the morning.
+     */
+    private void infectSleepers()
+    {
+        EntityList sleepers = species.bucket(ActivityBuckets.DAY_ONLY);
+        for(int i = 0; i < sleepers.size(); i++) {
+            Species sleeper = sleepers.get(i);
+            if(sleeper.isActive() && sleeper.getRandom().nextDouble() < NIGHT_INFECTION_PROBABILITY) {
+                virus.infect((Creature) sleeper);
+            }
+        }
+    }
+
+    /**
+     * Let the infected creatures sleeping at this hour of the night spread the
+     * virus to a neighbour, as they did when every species was visited every
+     * hour. They are found among the infected creatures, in the order of
+     * infection, so the sleepers that are not infected cost nothing.
+     */
+    private void spreadFromSleepers()
+    {
+        // The creatures infected by this spreading do not spread in this hour.
+        int infected = virus.getInfectedCount();
+        for(int i = 0; i < infected; i++) {
+            Creature creature = virus.getInfected(i);
+            if(creature.isActive() && creature.isInfected() && !isAwake(creature, time)) {
+                spreadFrom(creature);
+            }
+        }
+    }
+
+    /**
+     * Randomly infect a creature, and let the virus spread from it if it is infected.
+     * @param species The species the virus may reach.
+     */
+    private void spreadVirus(Species species)
+    {
+        infectRandomly(species);
+        spreadFrom(species);
+    }
 
-        // Add the newly born foxes and rabbits to the main lists.
-        species.addAll(newSpecies);
+    /**
+     * Infect a creature at random.
+     * @param species The species the virus may reach.
+     */
+    private void infectRandomly(Species species)
+    {
+        if(species instanceof Creature && species.getRandom().nextDouble()>1 - INFECTION_PROBABILITY){
+            Creature creature = (Creature) species;
+            virus.infect(creature);
+        }
+    }
 
-        view.showStatus(weather.getName(), time, field);
+    /**
+     * Let the virus spread from a creature if it is infected.
+     * @param species The species the virus may spread from.
+     */
+    private void spreadFrom(Species species)
+    {
+        // virus spreads infecting ONE random creature adjacent to those already infected
+        if(species instanceof Creature && ((Creature) species).isInfected()){
+            int cell = species.getCell();
+            Field field = species.getField();
+            if(cell != Field.NO_CELL){
+                int target = field.randomAdjacentCell(cell, species.getRandom()); // getting a random adjacent cell
+                Object obj = target == Field.NO_CELL ? null : field.getObjectAt(target);
+                if(obj instanceof Creature){
+                    Creature creatureToInfect = (Creature) obj; //getting the creature belonging to that location
+                    virus.infect(creatureToInfect);
+                }
+            }
+        }
     }
 
     /**
      * Reset the simulation to a starting position.
+     * The random streams start again from the seed, so a reset
+     * simulation runs exactly like a new one.
      */
     public void reset()
     {
+        rand = new RandomStream(seed);
+        weatherRand = rand.split();
+        virus = new Virus(rand.split());
+        time = FIRST_HOUR; // the simulation will start at that hour
+        weather = Weather.getRandomWeather(weatherRand);
+        waitTime = weather.getHours();
         step = 0;
         species.clear();
+        if(events != null) {
+            events.fieldCleared();
+        }
         populate();
+        if(store != null) {
+            loadStore();
+        }
+        if(events != null) {
+            events.endStep(step, time, weather);
+        }
 
         // Show the starting state in the view.
-        view.showStatus(weather.getName(), time, field);
+        notifyObservers();
+        flushView();
+    }
+
+    /**
+     * Save the state of the simulation to a file, so that it can be resumed
+     * with restoreCheckpoint. It must be called between two steps. The
+     * species of an entity store are not saved.
+     * @param file The name of the file, replaced if it exists.
+     * @return True if the checkpoint was written.
+     */
+    public boolean saveCheckpoint(String file)
+    {
+        if(store != null) {
+            System.out.println("A simulation using an entity store cannot be saved.");
+            return false;
+        }
+        try {
+            new Checkpoint(field, species, ledger, virus, seed, step, time, waitTime,
+                           weather, rand, weatherRand).write(file);
+            return true;
+        }
+        catch(IOException e) {
+            System.out.println("Could not save the checkpoint: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Resume the simulation from a file written by saveCheckpoint, with the
+     * field, species, virus, weather, hour, step and random streams it had.
+     * From there it runs exactly as the simulation saved would have.
+     * @param file The name of the file.
+     * @return True if the checkpoint was read; otherwise nothing changes.
+     */
+    public boolean restoreCheckpoint(String file)
+    {
+        if(store != null) {
+            System.out.println("A simulation using an entity store cannot be restored.");
+            return false;
+        }
+        Checkpoint checkpoint;
+        try {
+            checkpoint = Checkpoint.read(file);
+        }
+        catch(IOException e) {
+            System.out.println("Could not restore the checkpoint: " + e.getMessage());
+            return false;
+        }
+        if(view != null && (checkpoint.field.getDepth() != field.getDepth()
+                            || checkpoint.field.getWidth() != field.getWidth())) {
+            System.out.println("The checkpoint does not have the size of the view.");
+            return false;
+        }
+        field = checkpoint.field;
+        species = checkpoint.species;
+        ledger = checkpoint.ledger;
+        virus = checkpoint.virus;
+        seed = checkpoint.seed;
+        step = checkpoint.step;
+        time = checkpoint.time;
+        waitTime = checkpoint.waitTime;
+        weather = checkpoint.weather;
+        rand = checkpoint.rand;
+        weatherRand = checkpoint.weatherRand;
+        if(events != null) {
+            if(events.getDepth() != field.getDepth() || events.getWidth() != field.getWidth()) {
+                System.out.println("The checkpoint does not have the size of the event log.");
+                stopRecording();
+            }
+            else {
+                events.attach(field);
+                events.keyframe(species);
+                events.endStep(step, time, weather);
+            }
+        }
+        notifyObservers();
+        flushView();
+        return true;
+    }
+
+    /**
+     * Record the events of every step in a file from now on, starting with
+     * the field as it is now, so that the run can be replayed with an
+     * EventReplay. A previous recording is stopped.
+     * @param file The name of the file, replaced if it exists.
+     * @return True if the events are recorded.
+     */
+    public boolean recordEvents(String file)
+    {
+        if(store != null) {
+            System.out.println("The events of an entity store cannot be recorded.");
+            return false;
+        }
+        stopRecording();
+        try {
+            events = new EventLog(file, field.getDepth(), field.getWidth());
+        }
+        catch(IOException e) {
+            System.out.println("Could not record the events: " + e.getMessage());
+            return false;
+        }
+        events.attach(field);
+        events.keyframe(species);
+        events.endStep(step, time, weather);
+        return true;
+    }
+
+    /**
+     * Stop recording events, and finish writing the file.
+     */
+    public void stopRecording()
+    {
+        if(events != null) {
+            try {
+                events.close();
+            }
+            catch(IOException e) {
+                System.out.println("Could not write all the events: " + e.getMessage());
+            }
+            events = null;
+        }
+    }
+
+    /**
+     * Time each phase of the steps from now on, and publish the times
+     * through JMX as a StepMetrics MXBean.
+     * @return The metrics, which can be turned off again.
+     */
+    public StepMetrics enableStepMetrics()
+    {
+        if(metrics == null) {
+            metrics = new StepMetrics();
+            metrics.register();
+        }
+        metrics.setEnabled(true);
+        return metrics;
+    }
+
+    /**
+     * @return The time of each phase of the steps, or null if they were never timed.
+     */
+    public StepMetrics getStepMetrics()
+    {
+        return metrics;
+    }
+
+    /**
+     * @return The flight recorder events of the steps, which also count
+     * the bytes each step allocates.
+     */
+    public FlightEvents getFlightEvents()
+    {
+        return flight;
+    }
+
+    /**
+     * Tell every observer that the state of the simulation has changed.
+     */
+    private void notifyObservers()
+    {
+        if(store != null && !observers.isEmpty()) {
+            store.writeTo(field);
+        }
+        for(SimulationObserver observer : observers) {
+            observer.stepCompleted(this);
+        }
+    }
+
+    /**
+     * Show the last step in the views even if it came within a frame of the
+     * step shown before, as no step may follow it.
+     */
+    private void flushView()
+    {
+        for(SimulationObserver observer : observers) {
+            if(observer instanceof SnapshotPublisher) {
+                ((SnapshotPublisher) observer).flush();
+            }
+        }
+    }
+
+    /**
+     * @return The field of the simulation.
+     */
+    public Field getField()
+    {
+        return field;
+    }
+
+    /**
+     * @return The current step of the simulation.
+     */
+    public int getStep()
+    {
+        return step;
+    }
+
+    /**
+     * @return The current hour of the day.
+     */
+    public int getTime()
+    {
+        return time;
+    }
+
+    /**
+     * @return The current weather.
+     */
+    public Weather getWeather()
+    {
+        return weather;
+    }
+
+    /**
+     * @return The virus spreading among the creatures.
+     */
+    public Virus getVirus()
+    {
+        return virus;
     }
 
     /**
      * Randomly populate the field with creatures and plants.
+     * The cell of a species is only asked for when the species is created,
+     * so a sparse field only gives slots to the chunks that get species.
      */
     private void populate()
     {
-        Random rand = Randomizer.getRandom();
         field.clear();
+        if(!Field.fitsDense(field.getDepth(), field.getWidth())) {
+            populateSampled();
+            return;
+        }
+        int created = 0;
         for(int row = 0; row < field.getDepth(); row++) {
             for(int col = 0; col < field.getWidth(); col++) {
-                if(rand.nextDouble() <= POISON_BERRY_CREATION_PROBABILITY) {
-                    Location location = new Location(row, col);
-                    PoisonBerry berry = new PoisonBerry(field, location);
-                    species.add(berry);
-                }else if(rand.nextDouble() <= WHITEWALKER_CREATION_PROBABILITY) {
-                    Location location = new Location(row, col);
-                    WhiteWalker whiteWalker = new WhiteWalker(true, field, location);
-                    species.add(whiteWalker);
-                }else if(rand.nextDouble() <= DRAGON_CREATION_PROBABILITY) {
-                    Location location = new Location(row, col);
-                    Dragon dragon = new Dragon(true, field, location);
-                    species.add(dragon);
-                }else if(rand.nextDouble() <= SHEEP_CREATION_PROBABILITY) {
-                    Location location = new Location(row, col);
-                    Sheep sheep = new Sheep(true, field, location);
-                    species.add(sheep);
-                }else if(rand.nextDouble() <= WHEAT_CREATION_PROBABILITY) {
-                    Location location = new Location(row, col);
-                    Wheat wheat = new Wheat(field, location);
-                    species.add(wheat);
-                }else if(rand.nextDouble() <= HUMAN_CREATION_PROBABILITY) {
-                    Location location = new Location(row, col);
-                    Human human = new Human(true, field, location);
-                    species.add(human);
-                }
-                else if(rand.nextDouble() <= HEDGEHOG_CREATION_PROBABILITY) {
-                    Location location = new Location(row, col);
-                    Hedgehog hedgehog = new Hedgehog(true, field, location);
-                    species.add(hedgehog);
+                for(int type : CREATION_ORDER) {
+                    if(rand.nextDouble() <= creationProbabilities[type] * density) {
+                        create(type, field.cellOf(row, col));
+                        created++;
+                        break;
+                    }
                 }
                 // else leave the location empty.
             }
         }
+        assert !(field instanceof SparseField) || ((SparseField) field).getChunkCount() <= created
+            : "populate gave slots to chunks with no species";
+    }
+
+    /**
+     * Populate a field too big to be dense without drawing for each of its
+     * cells: jump from an occupied cell to the next with a geometric draw,
+     * then draw the species of the cell. A cell holds each species with the
+     * same probability as in populate, but the random draws are not the same.
+     */
+    private void populateSampled()
+    {
+        // The probability that the draws of populate stop at each species, and that they do not stop.
+        double[] chosen = new double[CREATION_ORDER.length];
+        double empty = 1;
+        for(int i = 0; i < CREATION_ORDER.length; i++) {
+            double probability = Math.min(1, creationProbabilities[CREATION_ORDER[i]] * density);
+            chosen[i] = empty * probability;
+            empty *= 1 - probability;
+        }
+        double occupied = 1 - empty;
+        if(occupied <= 0) {
+            return;
+        }
+        long cells = (long) field.getDepth() * field.getWidth();
+        double logEmpty = Math.log(empty);
+        int created = 0;
+        long position = -1;
+        while(true) {
+            // The number of empty cells before the next occupied one.
+            double skip = empty <= 0 ? 0 : Math.floor(Math.log(1 - rand.nextDouble()) / logEmpty);
+            if(skip >= cells - 1 - position) {
+                break;
+            }
+            position += (long) skip + 1;
+            double pick = rand.nextDouble() * occupied;
+            int i = 0;
+            while(i < chosen.length - 1 && pick >= chosen[i]) {
+                pick -= chosen[i];
+                i++;
+            }
+            create(CREATION_ORDER[i], field.cellOf((int) (position / field.getWidth()),
+                                                   (int) (position % field.getWidth())));
+            created++;
+        }
+        assert ((SparseField) field).getChunkCount() <= created
+            : "populate gave slots to chunks with no species";
+    }
+
+    /**
+     * Create a species of the simulation in a cell, and add it to the species.
+     * @param type The type id of the species.
+     * @param cell The cell.
+     */
+    private void create(int type, int cell)
+    {
+        species.add(SpeciesRegistry.factoryOf(type).create(true, field, cell, rand.split()));
     }
 
     /**
@@ -251,8 +1122,13 @@ public class Simulator
         }
     }
 
+    /**
+     * Run a long simulation. Pass "--headless" to run without a view,
+     * as fast as possible.
+     */
     public static void main(String args[]){
-        Simulator simulator = new Simulator();
+        boolean headless = args.length > 0 && args[0].equals("--headless");
+        Simulator simulator = new Simulator(DEFAULT_DEPTH, DEFAULT_WIDTH, headless);
         simulator.runLongSimulation();
     }
 }
@@ -1,8 +1,12 @@
 import java.awt.*;
 import java.awt.event.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
 import javax.swing.*;
+import java.util.Arrays;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.function.IntConsumer;
 
 /**
  * A graphical view of the simulation grid.
@@ -10,8 +14,16 @@ import java.util.Map;
  * representing its contents. It uses a default background color.
  * Colors for each type of species can be defined using the
  * setColor method.
+ *
+ * The field is drawn into an image with one pixel per cell, written
+ * straight into its int array, and only the cells the field marked as
+ * changed since the last step are written again. The image is scaled
+ * up when it is copied to the screen.
+ *
+ * The view can also be given snapshots of the field on the Swing thread,
+ * through a SnapshotPublisher, so that drawing never holds up the simulation.
  */
-public class SimulatorView extends JFrame
+public class SimulatorView extends JFrame implements SimulationObserver
 {
     // Colors used for empty locations.
     private static final Color EMPTY_COLOR = Color.white;
@@ -65,6 +77,7 @@ public class SimulatorView extends JFrame
     public void setColor(Class creatureClass, Color color)
     {
         colors.put(creatureClass, color);
+        fieldView.invalidateColors();
     }
 
     /**
@@ -83,6 +96,15 @@ public class SimulatorView extends JFrame
         }
     }
 
+    /**
+     * Show the state of the simulation after a step.
+     * @param simulator The simulator that has just stepped.
+     */
+    public void stepCompleted(Simulator simulator)
+    {
+        showStatus(simulator.getWeather().getName(), simulator.getTime(), simulator.getField());
+    }
+
     /**
      * Show the current status of the field.
      * @param weather Current weather.
@@ -98,23 +120,26 @@ public class SimulatorView extends JFrame
         timeLabel.setText(TIME_PREFIX + HOURS_PREFIX + time + ":00" + "              " + WEATHER_PREFIX + weatherCondition);
         stats.reset();
 
-        fieldView.preparePaint();
+        fieldView.update(field);
 
-        for(int row = 0; row < field.getDepth(); row++) {
-            for(int col = 0; col < field.getWidth(); col++) {
-                Object creature = field.getObjectAt(row, col);
-                if(creature != null) {
-                    stats.incrementCount(creature.getClass());
-                    fieldView.drawMark(col, row, getColor(creature.getClass()));
-                }
-                else {
-                    fieldView.drawMark(col, row, EMPTY_COLOR);
-                }
-            }
+        population.setText(POPULATION_PREFIX + stats.getPopulationDetails(field));
+        fieldView.repaint();
+    }
+
+    /**
+     * Show a snapshot of the field. It must be called on the Swing thread.
+     * @param snapshot The snapshot to show; it is only read during the call.
+     */
+    public void showSnapshot(FieldSnapshot snapshot)
+    {
+        if(!isVisible()) {
+            setVisible(true);
         }
-        stats.countFinished();
 
-        population.setText(POPULATION_PREFIX + stats.getPopulationDetails(field));
+        timeLabel.setText(TIME_PREFIX + HOURS_PREFIX + snapshot.getTime() + ":00" + "              " + WEATHER_PREFIX + snapshot.getWeather());
+        fieldView.draw(snapshot);
+
+        population.setText(POPULATION_PREFIX + snapshot.getPopulation());
         fieldView.repaint();
     }
 
@@ -140,10 +165,17 @@ public class SimulatorView extends JFrame
         private final int GRID_VIEW_SCALING_FACTOR = 6;
 
         private int gridWidth, gridHeight;
-        private int xScale, yScale;
-        Dimension size;
-        private Graphics g;
-        private Image fieldImage;
+        // One pixel per cell, and the array of its pixels.
+        private BufferedImage fieldImage;
+        private int[] pixels;
+        // The RGB value of each species type id.
+        private int[] typeRGB;
+        // The RGB value of each cell code of a snapshot.
+        private int[] codeRGB;
+        // The field drawn last time, to know if only its changes need drawing.
+        private Field drawn;
+        // Writes the pixel of a changed cell of the field being drawn.
+        private final IntConsumer drawCell = this::drawCell;
 
         /**
          * Create a new FieldView component.
@@ -152,7 +184,8 @@ public class SimulatorView extends JFrame
         {
             gridHeight = height;
             gridWidth = width;
-            size = new Dimension(0, 0);
+            fieldImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            pixels = ((DataBufferInt) fieldImage.getRaster().getDataBuffer()).getData();
         }
 
         /**
@@ -165,52 +198,102 @@ public class SimulatorView extends JFrame
         }
 
         /**
-         * Prepare for a new round of painting. Since the component
-         * may be resized, compute the scaling factor again.
+         * Make the next update redraw every cell, with the current colors.
          */
-        public void preparePaint()
+        public void invalidateColors()
         {
-            if(! size.equals(getSize())) {  // if the size has changed...
-                size = getSize();
-                fieldImage = fieldView.createImage(size.width, size.height);
-                g = fieldImage.getGraphics();
-
-                xScale = size.width / gridWidth;
-                if(xScale < 1) {
-                    xScale = GRID_VIEW_SCALING_FACTOR;
-                }
-                yScale = size.height / gridHeight;
-                if(yScale < 1) {
-                    yScale = GRID_VIEW_SCALING_FACTOR;
+            typeRGB = null;
+            codeRGB = null;
+            drawn = null;
+        }
+
+        /**
+         * Work out the RGB values of the species types and cell codes, if the colors changed.
+         */
+        private void prepareColors()
+        {
+            if(typeRGB != null) {
+                return;
+            }
+            typeRGB = new int[SpeciesRegistry.size()];
+            Arrays.fill(typeRGB, UNKNOWN_COLOR.getRGB());
+            for(Class<?> speciesClass : colors.keySet()) {
+                int type = SpeciesRegistry.idOf(speciesClass);
+                if(type >= 0) {
+                    typeRGB[type] = colors.get(speciesClass).getRGB();
                 }
             }
+            codeRGB = new int[FieldSnapshot.UNKNOWN + 1];
+            Arrays.fill(codeRGB, UNKNOWN_COLOR.getRGB());
+            codeRGB[0] = EMPTY_COLOR.getRGB();
+            for(int type = 0; type < typeRGB.length && type + 1 < FieldSnapshot.UNKNOWN; type++) {
+                codeRGB[type + 1] = typeRGB[type];
+            }
         }
 
         /**
-         * Paint on grid location on this field in a given color.
+         * Draw every cell of a snapshot. The next update of a field draws it all again.
          */
-        public void drawMark(int x, int y, Color color)
+        public void draw(FieldSnapshot snapshot)
         {
-            g.setColor(color);
-            g.fillRect(x * xScale, y * yScale, xScale-1, yScale-1);
+            prepareColors();
+            drawn = null;
+            byte[] cells = snapshot.getCells();
+            int count = Math.min(cells.length, pixels.length);
+            for(int cell = 0; cell < count; cell++) {
+                pixels[cell] = codeRGB[cells[cell] & 0xFF];
+            }
         }
 
         /**
-         * The field view component needs to be redisplayed. Copy the
-         * internal image to screen.
+         * Draw the cells of the field that changed since the last update,
+         * or all of them the first time a field is drawn.
          */
-        public void paintComponent(Graphics g)
+        public void update(Field field)
         {
-            if(fieldImage != null) {
-                Dimension currentSize = getSize();
-                if(size.equals(currentSize)) {
-                    g.drawImage(fieldImage, 0, 0, null);
-                }
-                else {
-                    // Rescale the previous image.
-                    g.drawImage(fieldImage, 0, 0, currentSize.width, currentSize.height, null);
+            prepareColors();
+            if(field != drawn || !field.isDirtyTracking()) {
+                // Draw everything, and from now on only what changes.
+                drawn = field;
+                field.setDirtyTracking(true);
+                for(int cell = 0; cell < pixels.length; cell++) {
+                    drawCell(cell);
                 }
+                field.drainDirtyCells(cell -> { });
+            }
+            else {
+                field.drainDirtyCells(drawCell);
+            }
+        }
+
+        /**
+         * Write the pixel of a cell of the field being drawn.
+         */
+        private void drawCell(int cell)
+        {
+            int type = drawn.getTypeIdAt(cell);
+            int rgb;
+            if(type == Field.EMPTY_TYPE) {
+                rgb = EMPTY_COLOR.getRGB();
             }
+            else if(type >= 0 && type < typeRGB.length) {
+                rgb = typeRGB[type];
+            }
+            else {
+                rgb = getColor(drawn.getObjectAt(cell).getClass()).getRGB();
+            }
+            pixels[cell] = rgb;
+        }
+
+        /**
+         * The field view component needs to be redisplayed. Scale the
+         * image of the field to the size of the component.
+         */
+        public void paintComponent(Graphics g)
+        {
+            super.paintComponent(g);
+            Dimension currentSize = getSize();
+            g.drawImage(fieldImage, 0, 0, currentSize.width, currentSize.height, null);
         }
     }
 }
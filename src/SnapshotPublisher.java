@@ -0,0 +1,183 @@
+import java.util.concurrent.atomic.AtomicReference;
+import javax.swing.Timer;
+
+/**
+ * Show a simulation in a view without making the simulation wait for it.
+ *
+ * After each step, on the simulation thread, the publisher brings its own
+ * copy of the cell codes up to date from the cells the field marked as
+ * changed, which costs what changed. At most once per frame it copies them
+ * into a FieldSnapshot and publishes it, replacing the previous snapshot if
+ * the view has not picked it up yet. On the Swing thread, a timer running
+ * at the frame rate shows the latest snapshot, if there is a new one.
+ * Steps between two frames are never shown, so the simulation runs at its
+ * own speed and the view at the frame rate. The last step of a run may come
+ * within a frame too: it is kept as pending, and flush publishes it when
+ * the run stops.
+ *
+ * Buffers of cell codes are handed back and forth instead of being
+ * allocated for every frame: a buffer is either being filled, published,
+ * or shown, never two of them at once.
+ */
+public class SnapshotPublisher implements SimulationObserver
+{
+    // The time between two frames, in milliseconds.
+    public static final int FRAME_MILLIS = 16;
+    private static final long FRAME_NANOS = FRAME_MILLIS * 1000000L;
+
+    // The view the snapshots are shown in.
+    private final SimulatorView view;
+    // Computes the population details of a snapshot.
+    private final FieldStats stats = new FieldStats();
+    // The latest snapshot not yet shown, or null.
+    private final AtomicReference<FieldSnapshot> latest = new AtomicReference<>();
+    // A buffer of cell codes free to be filled, or null.
+    private final AtomicReference<byte[]> spare = new AtomicReference<>();
+    // Shows the latest snapshot on the Swing thread.
+    private final Timer timer;
+
+    // The field followed, and the code of each of its cells.
+    private Field field;
+    private byte[] codes;
+    // When the last snapshot was published.
+    private long lastPublished;
+    // Whether a step came within a frame and was not published, and its step, hour and weather.
+    private boolean pending;
+    private int pendingStep, pendingTime;
+    private Weather pendingWeather;
+    // The number of steps not published, and of snapshots replaced before being shown.
+    private long skippedSteps, droppedFrames;
+
+    /**
+     * Create a publisher showing its snapshots in a view.
+     * It is started at once; add it to a simulator as an observer.
+     * @param view The view to show the snapshots in.
+     */
+    public SnapshotPublisher(SimulatorView view)
+    {
+        this.view = view;
+        timer = new Timer(FRAME_MILLIS, e -> showLatest());
+        timer.start();
+    }
+
+    /**
+     * Update the cell codes and publish a snapshot if a frame is due.
+     * @param simulator The simulator that has just stepped.
+     */
+    public void stepCompleted(Simulator simulator)
+    {
+        publish(simulator.getField(), simulator.getStep(), simulator.getTime(), simulator.getWeather());
+    }
+
+    /**
+     * Update the cell codes from a field and publish a snapshot if a frame
+     * is due. It is how something other than a simulator, such as an
+     * EventReplay, shows a field.
+     * @param stepped The field, after a step.
+     * @param step The step.
+     * @param time The hour of the day.
+     * @param weather The weather.
+     */
+    public void publish(Field stepped, int step, int time, Weather weather)
+    {
+        if(stepped != field || codes == null) {
+            field = stepped;
+            codes = new byte[field.getDepth() * field.getWidth()];
+            field.setDirtyTracking(true);
+            field.drainDirtyCells(cell -> { });
+            for(int cell = 0; cell < codes.length; cell++) {
+                codes[cell] = FieldSnapshot.codeOf(field.getTypeIdAt(cell));
+            }
+        }
+        else {
+            field.drainDirtyCells(cell -> codes[cell] = FieldSnapshot.codeOf(field.getTypeIdAt(cell)));
+        }
+
+        long now = System.nanoTime();
+        if(now - lastPublished < FRAME_NANOS) {
+            skippedSteps++;
+            pending = true;
+            pendingStep = step;
+            pendingTime = time;
+            pendingWeather = weather;
+            return;
+        }
+        lastPublished = now;
+        snapshot(step, time, weather);
+    }
+
+    /**
+     * Publish the last step if it came within a frame and was not
+     * published, so that the view does not stay on an older step when the
+     * run stops.
+     */
+    public void flush()
+    {
+        if(!pending) {
+            return;
+        }
+        field.drainDirtyCells(cell -> codes[cell] = FieldSnapshot.codeOf(field.getTypeIdAt(cell)));
+        lastPublished = System.nanoTime();
+        snapshot(pendingStep, pendingTime, pendingWeather);
+    }
+
+    /**
+     * Copy the cell codes into a snapshot and publish it, replacing the
+     * previous one if the view has not shown it yet.
+     */
+    private void snapshot(int step, int time, Weather weather)
+    {
+        pending = false;
+        byte[] cells = spare.getAndSet(null);
+        if(cells == null || cells.length != codes.length) {
+            cells = new byte[codes.length];
+        }
+        System.arraycopy(codes, 0, cells, 0, codes.length);
+        stats.reset();
+        FieldSnapshot snapshot = new FieldSnapshot(field.getDepth(), field.getWidth(), cells,
+                                                   step, time, weather == null ? "" : weather.getName(),
+                                                   stats.getPopulationDetails(field));
+        FieldSnapshot replaced = latest.getAndSet(snapshot);
+        if(replaced != null) {
+            droppedFrames++;
+            spare.set(replaced.getCells());
+        }
+    }
+
+    /**
+     * Show the latest snapshot, if there is a new one, and hand its buffer back.
+     * It runs on the Swing thread.
+     */
+    private void showLatest()
+    {
+        FieldSnapshot snapshot = latest.getAndSet(null);
+        if(snapshot != null) {
+            view.showSnapshot(snapshot);
+            spare.set(snapshot.getCells());
+        }
+    }
+
+    /**
+     * Stop showing snapshots.
+     */
+    public void stop()
+    {
+        timer.stop();
+    }
+
+    /**
+     * @return The number of steps that were not published, as they came within a frame.
+     */
+    public long getSkippedSteps()
+    {
+        return skippedSteps;
+    }
+
+    /**
+     * @return The number of published snapshots replaced before the view showed them.
+     */
+    public long getDroppedFrames()
+    {
+        return droppedFrames;
+    }
+}
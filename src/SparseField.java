@@ -0,0 +1,501 @@
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A field for very large, mostly empty worlds. The field is cut into
+ * square chunks, and only the chunks holding animals have a grid, so the
+ * memory used follows the animals rather than the area of the world.
+ *
+ * A cell index is a handle: the slot of its chunk, then its row and column
+ * within the chunk. Slots are given to chunks as their cells are asked for,
+ * so any world up to Integer.MAX_VALUE rows and columns can be used, as long
+ * as no more chunks are in use at once than there are slots. Handles are
+ * only meaningful to the field: cellOf, rowOf and colOf move between them
+ * and coordinates.
+ *
+ * Each chunk keeps the slots of the 8 chunks around it once they are found,
+ * and they keep its slot, so the neighbours of a cell on a chunk edge are found without a lookup;
+ * away from the edges they are at fixed offsets, as in a dense field. The
+ * neighbours are listed in the same order as in a dense field, so a
+ * simulation runs the same on both.
+ *
+ * Chunks that emptied lose their grid at the start of the next step, and
+ * their slot once no chunk linked to them holds animals. A sparse field is
+ * never double-buffered and does not track changed cells.
+ */
+public class SparseField extends Field
+{
+    // The default number of bits of a row or column within a chunk: 16 x 16 cells.
+    public static final int DEFAULT_CHUNK_BITS = 4;
+    // The largest number of bits of a row or column within a chunk.
+    private static final int MAX_CHUNK_BITS = 12;
+    // The link to a neighbouring chunk not looked up yet.
+    private static final int UNKNOWN = -1;
+
+    // The number of bits of a row or column within a chunk, and the side of a chunk.
+    private final int chunkBits, chunkSide;
+    // The largest number of chunks in use at once.
+    private final int maxSlots;
+    // The chunk of each slot, or null for a free slot.
+    private volatile Chunk[] chunks;
+    // The slot of each chunk in use, by chunk coordinates.
+    private final Map<Long, Chunk> chunksByKey;
+    // The free slots below the highest slot given out, and the number of them.
+    private int[] freeSlots;
+    private int freeCount;
+    // The slots given out so far, free or not.
+    private int usedSlots;
+    // The offsets of the neighbours of a cell away from the chunk edges.
+    private int[] innerOffsets;
+    // The adjacent offsets of cells on a chunk edge, one array per thread.
+    private final ThreadLocal<int[]> edgeOffsets;
+
+    /**
+     * Represent a sparse field of the given dimensions, with the default chunks.
+     * @param depth The depth of the field.
+     * @param width The width of the field.
+     */
+    public SparseField(int depth, int width)
+    {
+        this(depth, width, DEFAULT_CHUNK_BITS);
+    }
+
+    /**
+     * Represent a sparse field of the given dimensions.
+     * @param depth The depth of the field.
+     * @param width The width of the field.
+     * @param chunkBits The side of a chunk is 2 to this power, from 1 to 12.
+     */
+    public SparseField(int depth, int width, int chunkBits)
+    {
+        super(depth, width, false);
+        if(chunkBits < 1 || chunkBits > MAX_CHUNK_BITS) {
+            System.out.println("The chunk bits must be between 1 and " + MAX_CHUNK_BITS + ".");
+            System.out.println("Using the default value.");
+            chunkBits = DEFAULT_CHUNK_BITS;
+        }
+        this.chunkBits = chunkBits;
+        chunkSide = 1 << chunkBits;
+        maxSlots = 1 << (31 - 2 * chunkBits);
+        chunks = new Chunk[16];
+        chunksByKey = new HashMap<>();
+        freeSlots = new int[16];
+        edgeOffsets = ThreadLocal.withInitial(() -> new int[getNeighbourhood().size()]);
+        buildInnerOffsets();
+    }
+
+    /**
+     * Choose which cells are adjacent to a cell.
+     * @param neighbourhood The neighbourhood to use.
+     */
+    public void setNeighbourhood(Neighbourhood neighbourhood)
+    {
+        super.setNeighbourhood(neighbourhood);
+        // Called by the Field constructor before the chunk side is known.
+        if(chunkSide > 0) {
+            buildInnerOffsets();
+        }
+    }
+
+    /**
+     * Compute the offsets of the neighbours of a cell away from the chunk edges.
+     */
+    private void buildInnerOffsets()
+    {
+        Neighbourhood neighbourhood = getNeighbourhood();
+        innerOffsets = new int[neighbourhood.size()];
+        for(int k = 0; k < innerOffsets.length; k++) {
+            innerOffsets[k] = (neighbourhood.rowOffset(k) << chunkBits) + neighbourhood.colOffset(k);
+        }
+    }
+
+    /**
+     * A sparse field is never double-buffered.
+     * @param doubleBuffered True to read and write separate generations.
+     */
+    public void setDoubleBuffered(boolean doubleBuffered)
+    {
+        if(doubleBuffered) {
+            System.out.println("A sparse field cannot be double-buffered.");
+        }
+    }
+
+    /**
+     * Start a new step: drop the grids of the chunks that emptied, and the
+     * slots of the empty chunks with no animals around them.
+     */
+    public void beginGeneration()
+    {
+        Chunk[] all = chunks;
+        for(int slot = 0; slot < usedSlots; slot++) {
+            Chunk chunk = all[slot];
+            if(chunk != null && chunk.occupied.get() == 0) {
+                chunk.cells = null;
+            }
+        }
+        for(int slot = 0; slot < usedSlots; slot++) {
+            Chunk chunk = all[slot];
+            if(chunk != null && chunk.cells == null && !hasOccupiedNeighbour(chunk)) {
+                release(chunk);
+            }
+        }
+    }
+
+    /**
+     * A sparse field does not track changed cells.
+     * @param track True to mark the cells that change.
+     */
+    public void setDirtyTracking(boolean track)
+    {
+        if(track) {
+            System.out.println("A sparse field cannot track changed cells.");
+        }
+    }
+
+    /**
+     * Return the handle of a cell, giving a slot to its chunk if it has none.
+     * @param row The row of the cell.
+     * @param col The column of the cell.
+     * @return The handle of the cell.
+     */
+    public int cellOf(int row, int col)
+    {
+        Chunk chunk = chunkAt(row >> chunkBits, col >> chunkBits);
+        return handle(chunk.slot, row & (chunkSide - 1), col & (chunkSide - 1));
+    }
+
+    /**
+     * @param cell The handle of a cell.
+     * @return The row of the cell.
+     */
+    public int rowOf(int cell)
+    {
+        return (chunks[cell >>> (2 * chunkBits)].chunkRow << chunkBits) + ((cell >>> chunkBits) & (chunkSide - 1));
+    }
+
+    /**
+     * @param cell The handle of a cell.
+     * @return The column of the cell.
+     */
+    public int colOf(int cell)
+    {
+        return (chunks[cell >>> (2 * chunkBits)].chunkCol << chunkBits) + (cell & (chunkSide - 1));
+    }
+
+    /**
+     * Empty the field, and free every chunk.
+     */
+    public synchronized void clear()
+    {
+        chunks = new Chunk[16];
+        chunksByKey.clear();
+        freeCount = 0;
+        usedSlots = 0;
+        resetPopulation();
+    }
+
+    /**
+     * Clear the given cell.
+     * @param cell The handle of the cell to clear.
+     */
+    public void clear(int cell)
+    {
+        Chunk chunk = chunks[cell >>> (2 * chunkBits)];
+        Object[] cells = chunk.cells;
+        if(cells == null) {
+            return;
+        }
+        int local = cell & (chunkSide * chunkSide - 1);
+        Object old = cells[local];
+        if(old != null) {
+            cells[local] = null;
+            chunk.occupied.decrementAndGet();
+            count(old, -1);
+        }
+    }
+
+    /**
+     * Place an animal in the given cell.
+     * If there is already an animal in the cell it will
+     * be lost.
+     * @param animal The animal to be placed.
+     * @param cell The handle of the cell.
+     */
+    public void place(Object animal, int cell)
+    {
+        Chunk chunk = chunks[cell >>> (2 * chunkBits)];
+        Object[] cells = chunk.cells;
+        if(cells == null) {
+            cells = chunk.allocate(chunkSide * chunkSide);
+        }
+        int local = cell & (chunkSide * chunkSide - 1);
+        Object old = cells[local];
+        if(old != animal) {
+            cells[local] = animal;
+            if(old == null) {
+                chunk.occupied.incrementAndGet();
+            }
+            else if(animal == null) {
+                chunk.occupied.decrementAndGet();
+            }
+            count(old, -1);
+            count(animal, 1);
+        }
+    }
+
+    /**
+     * @param cell The handle of a cell.
+     * @return True if nothing is in the cell.
+     */
+    public boolean isFree(int cell)
+    {
+        return getObjectAt(cell) == null;
+    }
+
+    /**
+     * @param cell The handle of a cell.
+     * @return True if nothing is in the cell.
+     */
+    public boolean isVacant(int cell)
+    {
+        return getObjectAt(cell) == null;
+    }
+
+    /**
+     * Return the animal at the given location, if any. No slot is given
+     * to its chunk if it has none.
+     * @param row The desired row.
+     * @param col The desired column.
+     * @return The animal at the given location, or null if there is none.
+     */
+    public Object getObjectAt(int row, int col)
+    {
+        Chunk chunk;
+        synchronized(this) {
+            chunk = chunksByKey.get(key(row >> chunkBits, col >> chunkBits));
+        }
+        Object[] cells = chunk == null ? null : chunk.cells;
+        return cells == null ? null : cells[((row & (chunkSide - 1)) << chunkBits) + (col & (chunkSide - 1))];
+    }
+
+    /**
+     * Return the animal in the given cell, if any.
+     * @param cell The handle of the cell.
+     * @return The animal in the cell, or null if there is none.
+     */
+    public Object getObjectAt(int cell)
+    {
+        Object[] cells = chunks[cell >>> (2 * chunkBits)].cells;
+        return cells == null ? null : cells[cell & (chunkSide * chunkSide - 1)];
+    }
+
+    /**
+     * Return the offsets of the handles of the cells adjacent to a cell:
+     * the adjacent cells are cell + offsets[k] for every k, and all lie
+     * within the field. Away from the chunk edges the array is shared;
+     * on an edge it belongs to the calling thread and is overwritten by
+     * its next call. It must not be modified.
+     * @param cell The handle of the cell.
+     * @return The offsets of the handles of the adjacent cells.
+     */
+    public int[] adjacentOffsets(int cell)
+    {
+        int radius = getNeighbourhood().getRadius();
+        Chunk chunk = chunks[cell >>> (2 * chunkBits)];
+        int localRow = (cell >>> chunkBits) & (chunkSide - 1);
+        int localCol = cell & (chunkSide - 1);
+        if(localRow >= radius && localRow < chunk.rows - radius
+           && localCol >= radius && localCol < chunk.cols - radius) {
+            return innerOffsets;
+        }
+        return edgeOffsets(chunk, cell, localRow, localCol);
+    }
+
+    /**
+     * Find the neighbours of a cell near a chunk edge, in neighbourhood order.
+     */
+    private int[] edgeOffsets(Chunk chunk, int cell, int localRow, int localCol)
+    {
+        Neighbourhood neighbourhood = getNeighbourhood();
+        int row = (chunk.chunkRow << chunkBits) + localRow;
+        int col = (chunk.chunkCol << chunkBits) + localCol;
+        int[] offsets = edgeOffsets.get();
+        if(offsets.length != neighbourhood.size()) {
+            offsets = new int[neighbourhood.size()];
+            edgeOffsets.set(offsets);
+        }
+        int count = 0;
+        for(int k = 0; k < offsets.length; k++) {
+            int dr = neighbourhood.rowOffset(k);
+            int dc = neighbourhood.colOffset(k);
+            if(row + dr < 0 || row + dr >= getDepth() || col + dc < 0 || col + dc >= getWidth()) {
+                continue;
+            }
+            int r = localRow + dr;
+            int c = localCol + dc;
+            int chunkDr = r >> chunkBits;
+            int chunkDc = c >> chunkBits;
+            int slot;
+            if(chunkDr == 0 && chunkDc == 0) {
+                slot = chunk.slot;
+            }
+            else if(chunkDr >= -1 && chunkDr <= 1 && chunkDc >= -1 && chunkDc <= 1) {
+                slot = linkedSlot(chunk, chunkDr, chunkDc);
+            }
+            else {
+                slot = chunkAt(chunk.chunkRow + chunkDr, chunk.chunkCol + chunkDc).slot;
+            }
+            offsets[count++] = handle(slot, r & (chunkSide - 1), c & (chunkSide - 1)) - cell;
+        }
+        return count == offsets.length ? offsets : Arrays.copyOf(offsets, count);
+    }
+
+    /**
+     * @return The slot of the chunk next to a chunk, looked up the first time only.
+     */
+    private int linkedSlot(Chunk chunk, int chunkDr, int chunkDc)
+    {
+        int link = (chunkDr + 1) * 3 + (chunkDc + 1);
+        int slot = chunk.links[link];
+        if(slot < 0) {
+            Chunk around = chunkAt(chunk.chunkRow + chunkDr, chunk.chunkCol + chunkDc);
+            slot = around.slot;
+            // Links go both ways, so a released chunk can unlink itself.
+            around.links[8 - link] = chunk.slot;
+            chunk.links[link] = slot;
+        }
+        return slot;
+    }
+
+    /**
+     * @return The chunk at the given chunk coordinates, given a slot if it has none.
+     */
+    private synchronized Chunk chunkAt(int chunkRow, int chunkCol)
+    {
+        Long key = key(chunkRow, chunkCol);
+        Chunk chunk = chunksByKey.get(key);
+        if(chunk != null) {
+            return chunk;
+        }
+        int slot;
+        if(freeCount > 0) {
+            slot = freeSlots[--freeCount];
+        }
+        else if(usedSlots < maxSlots) {
+            slot = usedSlots++;
+        }
+        else {
+            throw new IllegalStateException("More than " + maxSlots + " chunks of "
+                                            + chunkSide + " x " + chunkSide + " cells in use");
+        }
+        chunk = new Chunk(slot, chunkRow, chunkCol,
+                          (int) Math.min(chunkSide, getDepth() - ((long) chunkRow << chunkBits)),
+                          (int) Math.min(chunkSide, getWidth() - ((long) chunkCol << chunkBits)));
+        Chunk[] all = chunks;
+        if(slot >= all.length) {
+            all = Arrays.copyOf(all, Math.max(slot + 1, 2 * all.length));
+        }
+        all[slot] = chunk;
+        chunks = all;
+        chunksByKey.put(key, chunk);
+        return chunk;
+    }
+
+    /**
+     * @return True if a chunk linked to the given one has animals.
+     */
+    private boolean hasOccupiedNeighbour(Chunk chunk)
+    {
+        for(int link = 0; link < chunk.links.length; link++) {
+            int slot = chunk.links[link];
+            if(slot >= 0 && chunks[slot].cells != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Free the slot of an empty chunk, and forget the links to it.
+     */
+    private void release(Chunk chunk)
+    {
+        for(int link = 0; link < chunk.links.length; link++) {
+            int slot = chunk.links[link];
+            if(slot >= 0) {
+                chunks[slot].links[8 - link] = UNKNOWN;
+            }
+        }
+        chunksByKey.remove(key(chunk.chunkRow, chunk.chunkCol));
+        chunks[chunk.slot] = null;
+        if(freeCount == freeSlots.length) {
+            freeSlots = Arrays.copyOf(freeSlots, 2 * freeCount);
+        }
+        freeSlots[freeCount++] = chunk.slot;
+    }
+
+    /**
+     * @return The number of chunks with a slot, with or without animals.
+     */
+    public synchronized int getChunkCount()
+    {
+        return chunksByKey.size();
+    }
+
+    /**
+     * @return The handle of a cell of the chunk in a slot.
+     */
+    private int handle(int slot, int localRow, int localCol)
+    {
+        return (slot << (2 * chunkBits)) | (localRow << chunkBits) | localCol;
+    }
+
+    /**
+     * @return The key of a chunk in the map: its row and column in 64 bits.
+     */
+    private static long key(int chunkRow, int chunkCol)
+    {
+        return ((long) chunkRow << 32) | (chunkCol & 0xFFFFFFFFL);
+    }
+
+    /**
+     * A square of cells of the field.
+     */
+    private static class Chunk
+    {
+        // The slot of the chunk, and its row and column among the chunks.
+        final int slot, chunkRow, chunkCol;
+        // The number of rows and columns of the chunk within the field.
+        final int rows, cols;
+        // The slots of the chunks around it, UNKNOWN until looked up; the middle one is unused.
+        final int[] links = new int[9];
+        // The number of animals in the chunk.
+        final AtomicInteger occupied = new AtomicInteger();
+        // The animals of the chunk, or null while it has none.
+        volatile Object[] cells;
+
+        Chunk(int slot, int chunkRow, int chunkCol, int rows, int cols)
+        {
+            this.slot = slot;
+            this.chunkRow = chunkRow;
+            this.chunkCol = chunkCol;
+            this.rows = rows;
+            this.cols = cols;
+            Arrays.fill(links, UNKNOWN);
+        }
+
+        /**
+         * @return The grid of the chunk, made if it has none. Species of
+         *         several tiles can place animals in a chunk at the same time.
+         */
+        synchronized Object[] allocate(int size)
+        {
+            if(cells == null) {
+                cells = new Object[size];
+            }
+            return cells;
+        }
+    }
+}
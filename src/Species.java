@@ -18,12 +18,26 @@ public interface Species extends Comparable<Species>
     //it is supposed to kill a species and remove it from the field.
     void setDead();
 
+    //it is supposed to kill a species for the given cause,
+    // recording its death, and remove it from the field.
+    void setDead(DeathCause cause);
+
     //it is supposed to return the field containing the species.
     Field getField();
 
     //it is supposed to return the location containing the species.
     Location getLocation();
 
+    //it is supposed to return the index of the cell containing the species,
+    // or Field.NO_CELL, without creating a location.
+    int getCell();
+
+    //it is supposed to return the id of the species class in SpeciesRegistry.
+    int getTypeId();
+
+    //it is supposed to return the random stream the species draws from.
+    RandomStream getRandom();
+
     //it is supposed to return an int value indicating
     // whether two species are the same.
     int compareTo(Species s);
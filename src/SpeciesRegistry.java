@@ -0,0 +1,133 @@
+import java.util.Arrays;
+
+/**
+ * Give every species class a small integer id, from 0 up, so that what
+ * depends on the kind of a species (the diet matrix, the entity store,
+ * the counts of the view) can be looked up in arrays instead of being
+ * decided with instanceof.
+ *
+ * The species of the simulation are registered here with fixed ids.
+ * A new species is added with register, then given a diet in DietMatrix;
+ * no other species class needs to change.
+ */
+public class SpeciesRegistry
+{
+    /**
+     * Create a species of a registered class.
+     */
+    public interface Factory
+    {
+        //it is supposed to create a species in a cell of a field, drawing from rand;
+        // randomAge is ignored by species without an age.
+        Species create(boolean randomAge, Field field, int cell, RandomStream rand);
+    }
+
+    // The ids of the species of the simulation.
+    public static final int WHITE_WALKER = 0;
+    public static final int DRAGON = 1;
+    public static final int HUMAN = 2;
+    public static final int SHEEP = 3;
+    public static final int HEDGEHOG = 4;
+    public static final int WHEAT = 5;
+    public static final int POISON_BERRY = 6;
+
+    // The registered classes, factories, whether each needs a partner to breed, and prototypes.
+    private static Class<?>[] classes = new Class<?>[0];
+    private static Factory[] factories = new Factory[0];
+    private static boolean[] needsPartner = new boolean[0];
+    private static Species[] prototypes = new Species[0];
+
+    static {
+        register(WhiteWalker.class, (randomAge, field, cell, rand) -> new WhiteWalker(randomAge, field, cell, rand), false);
+        register(Dragon.class, (randomAge, field, cell, rand) -> new Dragon(randomAge, field, cell, rand), true);
+        register(Human.class, (randomAge, field, cell, rand) -> new Human(randomAge, field, cell, rand), true);
+        register(Sheep.class, (randomAge, field, cell, rand) -> new Sheep(randomAge, field, cell, rand), false);
+        register(Hedgehog.class, (randomAge, field, cell, rand) -> new Hedgehog(randomAge, field, cell, rand), false);
+        register(Wheat.class, (randomAge, field, cell, rand) -> new Wheat(field, cell, rand), false);
+        register(PoisonBerry.class, (randomAge, field, cell, rand) -> new PoisonBerry(field, cell, rand), false);
+    }
+
+    /**
+     * Register a species class. It must be done before any species of the
+     * class acts, and not while a simulation is running.
+     * @param speciesClass The class of the species.
+     * @param factory Creates species of the class.
+     * @param partner True if the species needs a partner to breed.
+     * @return The id of the species.
+     */
+    public static synchronized int register(Class<? extends Species> speciesClass, Factory factory, boolean partner)
+    {
+        int id = classes.length;
+        classes = Arrays.copyOf(classes, id + 1);
+        factories = Arrays.copyOf(factories, id + 1);
+        needsPartner = Arrays.copyOf(needsPartner, id + 1);
+        prototypes = Arrays.copyOf(prototypes, id + 1);
+        classes[id] = speciesClass;
+        factories[id] = factory;
+        needsPartner[id] = partner;
+        // A prototype lives on a field of its own, and never acts.
+        prototypes[id] = factory.create(false, new Field(1, 1), 0, new RandomStream(0));
+        return id;
+    }
+
+    /**
+     * @return The number of registered species.
+     */
+    public static int size()
+    {
+        return classes.length;
+    }
+
+    /**
+     * @param speciesClass A species class.
+     * @return The id of the class, or -1 if it is not registered.
+     */
+    public static int idOf(Class<?> speciesClass)
+    {
+        for(int id = 0; id < classes.length; id++) {
+            if(classes[id] == speciesClass) {
+                return id;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param id The id of a species.
+     * @return The class of the species.
+     */
+    public static Class<?> classOf(int id)
+    {
+        return classes[id];
+    }
+
+    /**
+     * @param id The id of a species.
+     * @return The factory creating species of that id.
+     */
+    public static Factory factoryOf(int id)
+    {
+        return factories[id];
+    }
+
+    /**
+     * @param id The id of a species.
+     * @return True if the species needs a partner to breed.
+     */
+    public static boolean needsPartner(int id)
+    {
+        return needsPartner[id];
+    }
+
+    /**
+     * A species of the given id that is not part of any simulation,
+     * to read its characteristics or to stand for it in a field.
+     * It must not be changed.
+     * @param id The id of a species.
+     * @return The prototype of the species.
+     */
+    public static Species prototypeOf(int id)
+    {
+        return prototypes[id];
+    }
+}
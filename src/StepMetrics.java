@@ -0,0 +1,337 @@
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.ToLongFunction;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * How long each phase of the steps of a simulator takes, and how often
+ * each species class acts, published as an MXBean.
+ *
+ * The simulator reads the clock at the edges of each phase and records
+ * the time of the phase in a step in a LatencyHistogram, so the mean,
+ * median, 99th percentile and maximum of each phase are known. The phases
+ * done species by species (acting, random infection, virus spread) would
+ * cost several clock reads per species if they were all timed: the loop
+ * over the species is timed as a whole, one species in SAMPLE is timed
+ * phase by phase, and the time of the loop is shared among the phases in
+ * proportion to the sample.
+ *
+ * Timing can be turned off through the MXBean; the simulator then reads
+ * the clock no more, and a step costs one more check of a flag.
+ */
+public class StepMetrics implements StepMetricsMXBean
+{
+    /**
+     * The phases of a step.
+     */
+    public enum Phase
+    {
+        // Changing the weather.
+        WEATHER,
+        // The species acting, including the plants of a ledger and the entity store.
+        ACT,
+        // Creatures catching the virus at random, sleepers included.
+        RANDOM_INFECTION,
+        // The virus spreading from infected creatures to adjacent ones.
+        VIRUS_SPREAD,
+        // The virus making its creatures hungry.
+        GIVE_PAIN,
+        // Dropping the dead from the species lists, where the newborns were added.
+        NEWBORN_MERGE,
+        // Counting the species to know whether the simulation is viable.
+        STATS,
+        // Telling the observers, the view among them.
+        RENDERING,
+        // The whole step, rendering included.
+        STEP
+    }
+
+    // One species in SAMPLE has its phases timed.
+    static final int SAMPLE = 16;
+    // The phases, in the order of their counters.
+    private static final Phase[] PHASES = Phase.values();
+    // The phases done species by species.
+    private static final Phase[] SPECIES_PHASES = { Phase.ACT, Phase.RANDOM_INFECTION, Phase.VIRUS_SPREAD };
+    // Tells the MXBeans of several simulators apart.
+    private static final AtomicInteger instances = new AtomicInteger();
+
+    // The time of each phase in each step.
+    private final LatencyHistogram[] histograms = new LatencyHistogram[PHASES.length];
+    // The times each type id acted, and the times in the current step.
+    private volatile AtomicLongArray acts = new AtomicLongArray(0);
+    private long[] stepActs = new long[0];
+    // The time of the phases done species by species in the current step,
+    // and the time of the species sampled since the loop started.
+    private final long[] stepNanos = new long[PHASES.length];
+    private final long[] sampledNanos = new long[PHASES.length];
+    // The number of steps timed.
+    private volatile long steps;
+    // Whether the steps are timed.
+    private volatile boolean enabled = true;
+    // The name of the MXBean, or null if it is not registered.
+    private ObjectName name;
+
+    /**
+     * Create the metrics of a simulator, timing from now on.
+     */
+    public StepMetrics()
+    {
+        for(Phase phase : PHASES) {
+            histograms[phase.ordinal()] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Publish the metrics in the platform MBean server, under
+     * WildSimulation:type=StepMetrics,id=N.
+     * @return True if they were published.
+     */
+    public boolean register()
+    {
+        if(name != null) {
+            return true;
+        }
+        try {
+            ObjectName candidate = new ObjectName("WildSimulation:type=StepMetrics,id=" + instances.incrementAndGet());
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, candidate);
+            name = candidate;
+            return true;
+        }
+        catch(JMException e) {
+            System.out.println("Could not publish the step metrics: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Remove the metrics from the platform MBean server.
+     */
+    public void unregister()
+    {
+        if(name != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+            }
+            catch(JMException e) {
+                // already gone
+            }
+            name = null;
+        }
+    }
+
+    /**
+     * Record the time of a phase, from a mark until now.
+     * @param phase The phase.
+     * @param since The clock when the phase started.
+     * @return The clock now, where the next phase starts.
+     */
+    long lap(Phase phase, long since)
+    {
+        long now = System.nanoTime();
+        histograms[phase.ordinal()].record(now - since);
+        return now;
+    }
+
+    /**
+     * Record the time of a phase in the step.
+     * @param phase The phase.
+     * @param nanos Its time.
+     */
+    void record(Phase phase, long nanos)
+    {
+        histograms[phase.ordinal()].record(nanos);
+    }
+
+    /**
+     * Add the time of a phase done species by species, from a mark until
+     * now, to its time in the current step.
+     * @param phase The phase.
+     * @param since The clock when the phase started.
+     * @return The clock now.
+     */
+    long add(Phase phase, long since)
+    {
+        long now = System.nanoTime();
+        stepNanos[phase.ordinal()] += now - since;
+        return now;
+    }
+
+    /**
+     * Add the time of a phase of a sampled species, from a mark until now,
+     * to the sample of the loop.
+     * @param phase The phase.
+     * @param since The clock when the phase started.
+     * @return The clock now.
+     */
+    long sample(Phase phase, long since)
+    {
+        long now = System.nanoTime();
+        sampledNanos[phase.ordinal()] += now - since;
+        return now;
+    }
+
+    /**
+     * Share the time of a loop over the species among the phases, in
+     * proportion to the sample, and start a new sample.
+     * @param nanos The time of the loop.
+     * @param otherwise The phase given the whole time if no species was sampled.
+     */
+    void apportion(long nanos, Phase otherwise)
+    {
+        long sampled = 0;
+        for(Phase phase : SPECIES_PHASES) {
+            sampled += sampledNanos[phase.ordinal()];
+        }
+        if(sampled <= 0) {
+            stepNanos[otherwise.ordinal()] += nanos;
+            return;
+        }
+        for(Phase phase : SPECIES_PHASES) {
+            stepNanos[phase.ordinal()] += (long) ((double) nanos * sampledNanos[phase.ordinal()] / sampled);
+            sampledNanos[phase.ordinal()] = 0;
+        }
+    }
+
+    /**
+     * Count a species acting in the current step.
+     * @param type The type id of the species.
+     */
+    void countAct(int type)
+    {
+        if(type >= stepActs.length) {
+            stepActs = Arrays.copyOf(stepActs, Math.max(type + 1, SpeciesRegistry.size()));
+        }
+        stepActs[type]++;
+    }
+
+    /**
+     * End a step timed: record the time of the phases done species by
+     * species, and add its act counts to the totals.
+     */
+    void endStep()
+    {
+        for(Phase phase : SPECIES_PHASES) {
+            histograms[phase.ordinal()].record(stepNanos[phase.ordinal()]);
+            stepNanos[phase.ordinal()] = 0;
+        }
+        AtomicLongArray totals = acts;
+        if(totals.length() < stepActs.length) {
+            AtomicLongArray grown = new AtomicLongArray(stepActs.length);
+            for(int type = 0; type < totals.length(); type++) {
+                grown.set(type, totals.get(type));
+            }
+            acts = totals = grown;
+        }
+        for(int type = 0; type < stepActs.length; type++) {
+            if(stepActs[type] != 0) {
+                totals.addAndGet(type, stepActs[type]);
+                stepActs[type] = 0;
+            }
+        }
+        steps++;
+    }
+
+    /**
+     * @param phase A phase.
+     * @return The histogram of the time of the phase in a step.
+     */
+    public LatencyHistogram getHistogram(Phase phase)
+    {
+        return histograms[phase.ordinal()];
+    }
+
+    public boolean isEnabled()
+    {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled)
+    {
+        this.enabled = enabled;
+    }
+
+    public long getSteps()
+    {
+        return steps;
+    }
+
+    public Map<String, Long> getTotalNanos()
+    {
+        return byPhase(LatencyHistogram::getTotal);
+    }
+
+    public Map<String, Long> getMeanNanos()
+    {
+        return byPhase(LatencyHistogram::getMean);
+    }
+
+    public Map<String, Long> getMedianNanos()
+    {
+        return byPhase(histogram -> histogram.getValueAtPercentile(50));
+    }
+
+    public Map<String, Long> getP99Nanos()
+    {
+        return byPhase(histogram -> histogram.getValueAtPercentile(99));
+    }
+
+    public Map<String, Long> getMaxNanos()
+    {
+        return byPhase(LatencyHistogram::getMax);
+    }
+
+    public Map<String, Long> getActCounts()
+    {
+        Map<String, Long> counts = new LinkedHashMap<>();
+        AtomicLongArray totals = acts;
+        for(int type = 0; type < totals.length() && type < SpeciesRegistry.size(); type++) {
+            counts.put(SpeciesRegistry.classOf(type).getSimpleName(), totals.get(type));
+        }
+        return counts;
+    }
+
+    public String getReport()
+    {
+        StringBuilder report = new StringBuilder();
+        report.append(String.format("%d steps%n", steps));
+        report.append(String.format("%-18s %14s %12s %12s %12s %12s%n",
+                                    "phase", "total ms", "mean us", "median us", "p99 us", "max us"));
+        for(Phase phase : PHASES) {
+            LatencyHistogram histogram = histograms[phase.ordinal()];
+            report.append(String.format("%-18s %14.1f %12.1f %12.1f %12.1f %12.1f%n", phase,
+                                        histogram.getTotal() / 1e6, histogram.getMean() / 1e3,
+                                        histogram.getValueAtPercentile(50) / 1e3,
+                                        histogram.getValueAtPercentile(99) / 1e3, histogram.getMax() / 1e3));
+        }
+        for(Map.Entry<String, Long> count : getActCounts().entrySet()) {
+            report.append(String.format("%-18s %14d acts%n", count.getKey(), count.getValue()));
+        }
+        return report.toString();
+    }
+
+    public void reset()
+    {
+        for(LatencyHistogram histogram : histograms) {
+            histogram.reset();
+        }
+        acts = new AtomicLongArray(acts.length());
+        steps = 0;
+    }
+
+    /**
+     * @return A value of the histogram of each phase, by phase name.
+     */
+    private Map<String, Long> byPhase(ToLongFunction<LatencyHistogram> value)
+    {
+        Map<String, Long> values = new LinkedHashMap<>();
+        for(Phase phase : PHASES) {
+            values.put(phase.name(), value.applyAsLong(histograms[phase.ordinal()]));
+        }
+        return values;
+    }
+}
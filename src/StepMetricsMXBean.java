@@ -0,0 +1,41 @@
+import java.util.Map;
+
+/**
+ * The management interface of StepMetrics, as shown by jconsole or read
+ * by a scraper. Durations are in nanoseconds, by phase of the step.
+ */
+public interface StepMetricsMXBean
+{
+    //it is supposed to return whether the steps are being timed.
+    boolean isEnabled();
+
+    //it is supposed to start or stop timing the steps.
+    void setEnabled(boolean enabled);
+
+    //it is supposed to return the number of steps timed.
+    long getSteps();
+
+    //it is supposed to return the time spent in each phase.
+    Map<String, Long> getTotalNanos();
+
+    //it is supposed to return the mean time of each phase in a step.
+    Map<String, Long> getMeanNanos();
+
+    //it is supposed to return the median time of each phase in a step.
+    Map<String, Long> getMedianNanos();
+
+    //it is supposed to return the 99th percentile of the time of each phase in a step.
+    Map<String, Long> getP99Nanos();
+
+    //it is supposed to return the longest time of each phase in a step.
+    Map<String, Long> getMaxNanos();
+
+    //it is supposed to return the number of times each species class acted.
+    Map<String, Long> getActCounts();
+
+    //it is supposed to return all the metrics as text.
+    String getReport();
+
+    //it is supposed to forget everything measured so far.
+    void reset();
+}
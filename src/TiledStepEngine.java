@@ -0,0 +1,369 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntConsumer;
+
+/**
+ * Run the act phase of a step on several cores.
+ * The field is split into square tiles coloured like a 2x2 checkerboard
+ * (four colours). All the tiles of one colour act in parallel, then the
+ * tiles of the next colour, and so on.
+ *
+ * A species only reads and writes the cells of the field's neighbourhood
+ * around its own location, so while a tile acts it touches at most the
+ * neighbourhood radius of cells beyond its edges. Two tiles of the same
+ * colour are always a whole tile apart, so with tiles at least twice the
+ * radius wide they never touch the same cells at the same time; smaller
+ * tile sizes are raised to that.
+ *
+ * Species crossing a tile edge are handled this way:
+ *  - every species acts once, in the phase of the tile holding it at the
+ *    start of the step, even if it moves into a tile that acts later;
+ *  - moving, eating and giving birth into a neighbouring tile is safe,
+ *    because that tile is never acting at the same time;
+ *  - newborns are collected per tile and added in tile order, so the
+ *    result does not depend on the number of threads; so are the events
+ *    recorded in the EventLog of the field, after each colour.
+ */
+public class TiledStepEngine
+{
+    // The default side of a tile, in cells.
+    public static final int DEFAULT_TILE_SIZE = 64;
+    // The smallest tile that keeps same coloured tiles apart: species reach one cell around them.
+    private static final int MIN_TILE_SIZE = 2;
+    // The number of colours of the checkerboard.
+    private static final int COLOURS = 4;
+
+    // The pool running the tiles.
+    private final ForkJoinPool pool;
+    // The threads the pool started, and the ids of those still alive.
+    private final List<Thread> workers = new ArrayList<>();
+    private volatile long[] workerIds = new long[0];
+    // The side of a tile, in cells.
+    private final int tileSize;
+
+    // The side of a tile for the field being stepped, at least twice its neighbourhood radius.
+    private int side;
+    // Number of tiles down and across the field being stepped.
+    private int tileRows, tileCols;
+    // The field being stepped.
+    private Field field;
+    // The species of the step, sorted by tile.
+    private Species[] sorted;
+    // Where the species of each tile start in sorted; tileStart[t+1] is where they end.
+    private int[] tileStart;
+    // The newborns of each tile.
+    private List<List<Species>> tileNewborns;
+    // The tiles of each colour.
+    private int[][] tilesByColour;
+    // The events of each tile, or null if the field has no event log.
+    private EventLog.Buffer[] tileEvents;
+    // The tile of each species of the step, and the counts of each chunk by
+    // tile, kept from step to step and grown when needed.
+    private int[] tileOfSpecies = new int[0];
+    private int[][] chunkCounts = new int[0][0];
+
+    /**
+     * Create an engine with the default tile size.
+     * @param parallelism The number of threads to use.
+     */
+    public TiledStepEngine(int parallelism)
+    {
+        this(parallelism, DEFAULT_TILE_SIZE);
+    }
+
+    /**
+     * Create an engine.
+     * @param parallelism The number of threads to use.
+     * @param tileSize The side of a tile in cells. Must be at least 2.
+     */
+    public TiledStepEngine(int parallelism, int tileSize)
+    {
+        if(tileSize < MIN_TILE_SIZE) {
+            System.out.println("The tile size must be at least " + MIN_TILE_SIZE + ".");
+            System.out.println("Using the default value.");
+            tileSize = DEFAULT_TILE_SIZE;
+        }
+        this.tileSize = tileSize;
+        pool = new ForkJoinPool(Math.max(1, parallelism), this::newWorker, null, false);
+        sorted = new Species[0];
+    }
+
+    /**
+     * @return The number of threads used.
+     */
+    public int getParallelism()
+    {
+        return pool.getParallelism();
+    }
+
+    /**
+     * Return the ids of the threads of the engine, for instance to read the
+     * bytes they allocated. The array is shared and must not be changed.
+     * @return The ids of the live threads of the engine.
+     */
+    public long[] getWorkerThreadIds()
+    {
+        return workerIds;
+    }
+
+    /**
+     * Start a thread of the pool, and note its id.
+     */
+    private ForkJoinWorkerThread newWorker(ForkJoinPool pool)
+    {
+        ForkJoinWorkerThread worker = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+        synchronized(workers) {
+            workers.removeIf(thread -> !thread.isAlive());
+            workers.add(worker);
+            long[] ids = new long[workers.size()];
+            for(int i = 0; i < ids.length; i++) {
+                ids[i] = workers.get(i).getId();
+            }
+            workerIds = ids;
+        }
+        return worker;
+    }
+
+    /**
+     * Stop the threads of the engine. It must not act any more.
+     */
+    public void shutdown()
+    {
+        pool.shutdown();
+    }
+
+    /**
+     * Make every awake species of the list act once.
+     * @param species The species to act, in the order of the simulation.
+     * @param field The field they live in.
+     * @param newSpecies A list to receive newly born species, added in tile order
+     *                   after all the species acted. It can be the species list itself.
+     * @param time Day time.
+     * @param weather The current weather.
+     */
+    public void act(List<Species> species, Field field, List<Species> newSpecies, int time, Weather weather)
+    {
+        prepareTiles(field);
+        sortByTile(species, field);
+        EventLog events = field.getEventLog();
+        if(events != null && tileEvents == null) {
+            tileEvents = new EventLog.Buffer[tileNewborns.size()];
+            for(int t = 0; t < tileEvents.length; t++) {
+                tileEvents[t] = new EventLog.Buffer();
+            }
+        }
+
+        for(int colour = 0; colour < COLOURS; colour++) {
+            int[] tiles = tilesByColour[colour];
+            forEach(tiles.length, i -> actTile(tiles[i], time, weather, events));
+            if(events != null) {
+                for(int tile : tiles) {
+                    events.append(tileEvents[tile]);
+                }
+            }
+        }
+
+        for(List<Species> newborns : tileNewborns) {
+            newSpecies.addAll(newborns);
+            newborns.clear();
+        }
+        // Do not keep dead species reachable until the next step.
+        Arrays.fill(sorted, 0, tileStart[tileStart.length - 1], null);
+    }
+
+    /**
+     * Make the species of one tile act.
+     * @param tile The tile.
+     * @param time Day time.
+     * @param weather The current weather.
+     * @param events The event log of the field, or null.
+     */
+    private void actTile(int tile, int time, Weather weather, EventLog events)
+    {
+        List<Species> newborns = tileNewborns.get(tile);
+        EventLog.Buffer previous = events == null ? null : events.select(tileEvents[tile]);
+        try {
+            for(int i = tileStart[tile]; i < tileStart[tile + 1]; i++) {
+                Species species = sorted[i];
+                if(Simulator.isAwake(species, time)) {
+                    species.act(newborns, time, weather);
+                }
+            }
+        }
+        finally {
+            if(events != null) {
+                events.select(previous);
+            }
+        }
+    }
+
+    /**
+     * Compute the tiles of the field, if its size changed.
+     * @param field The field to split.
+     */
+    private void prepareTiles(Field field)
+    {
+        this.field = field;
+        int reach = 2 * field.getNeighbourhood().getRadius();
+        int newSide = Math.max(tileSize, reach);
+        int rows = (field.getDepth() + newSide - 1) / newSide;
+        int cols = (field.getWidth() + newSide - 1) / newSide;
+        if(tilesByColour != null && newSide == side && rows == tileRows && cols == tileCols) {
+            return;
+        }
+        side = newSide;
+        tileRows = rows;
+        tileCols = cols;
+
+        int[] perColour = new int[COLOURS];
+        for(int r = 0; r < rows; r++) {
+            for(int c = 0; c < cols; c++) {
+                perColour[colourOf(r, c)]++;
+            }
+        }
+        tilesByColour = new int[COLOURS][];
+        for(int colour = 0; colour < COLOURS; colour++) {
+            tilesByColour[colour] = new int[perColour[colour]];
+            perColour[colour] = 0;
+        }
+        for(int r = 0; r < rows; r++) {
+            for(int c = 0; c < cols; c++) {
+                int colour = colourOf(r, c);
+                tilesByColour[colour][perColour[colour]++] = r * cols + c;
+            }
+        }
+
+        tileStart = new int[rows * cols + 1];
+        tileEvents = null;
+        tileNewborns = new ArrayList<>(rows * cols);
+        for(int t = 0; t < rows * cols; t++) {
+            tileNewborns.add(new ArrayList<>());
+        }
+    }
+
+    /**
+     * Sort the living species by tile, keeping their order within a tile.
+     * This is a counting sort run in parallel over chunks of the list, so it
+     * does not become the sequential part of the step on large fields.
+     * @param species The species to sort.
+     * @param field Their field.
+     */
+    private void sortByTile(List<Species> species, Field field)
+    {
+        int size = species.size();
+        int tiles = tileRows * tileCols;
+        int chunks = Math.max(1, Math.min(size / 4096, pool.getParallelism() * 4));
+        int chunkSize = (size + chunks - 1) / Math.max(1, chunks);
+        if(tileOfSpecies.length < size) {
+            tileOfSpecies = new int[Math.max(size, tileOfSpecies.length * 3 / 2)];
+        }
+        if(chunkCounts.length < chunks || chunkCounts[0].length < tiles) {
+            chunkCounts = new int[Math.max(chunks, chunkCounts.length)][tiles];
+        }
+        int[] tileOf = tileOfSpecies;
+        int[][] counts = chunkCounts;
+
+        forEach(chunks, c -> {
+            int[] count = counts[c];
+            Arrays.fill(count, 0, tiles, 0);
+            for(int i = c * chunkSize; i < Math.min(size, (c + 1) * chunkSize); i++) {
+                int tile = tileOf(species.get(i));
+                tileOf[i] = tile;
+                if(tile >= 0) {
+                    count[tile]++;
+                }
+            }
+        });
+
+        // Turn the counts into the position of each chunk within each tile.
+        int position = 0;
+        for(int t = 0; t < tiles; t++) {
+            tileStart[t] = position;
+            for(int c = 0; c < chunks; c++) {
+                int count = counts[c][t];
+                counts[c][t] = position;
+                position += count;
+            }
+        }
+        tileStart[tiles] = position;
+
+        if(sorted.length < position) {
+            sorted = new Species[position];
+        }
+        forEach(chunks, c -> {
+            int[] next = counts[c];
+            for(int i = c * chunkSize; i < Math.min(size, (c + 1) * chunkSize); i++) {
+                int tile = tileOf[i];
+                if(tile >= 0) {
+                    sorted[next[tile]++] = species.get(i);
+                }
+            }
+        });
+    }
+
+    /**
+     * @param species A species of the step.
+     * @return The tile holding the species, or -1 if it is no longer in the field.
+     */
+    private int tileOf(Species species)
+    {
+        int cell = species.getCell();
+        if(cell == Field.NO_CELL || !species.isActive()) {
+            return -1;
+        }
+        return (field.rowOf(cell) / side) * tileCols + field.colOf(cell) / side;
+    }
+
+    /**
+     * @return The colour of the tile at the given tile coordinates.
+     */
+    private static int colourOf(int tileRow, int tileCol)
+    {
+        return (tileRow & 1) * 2 + (tileCol & 1);
+    }
+
+    /**
+     * Run the body for every index from 0 to count-1 in the pool,
+     * and wait for all of them to finish.
+     */
+    private void forEach(int count, IntConsumer body)
+    {
+        if(count > 0) {
+            pool.invoke(new RangeTask(0, count, body));
+        }
+    }
+
+    /**
+     * A task running a body over a range of indices, split in halves
+     * until a single index is left.
+     */
+    private static class RangeTask extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final int from, to;
+        private final IntConsumer body;
+
+        RangeTask(int from, int to, IntConsumer body)
+        {
+            this.from = from;
+            this.to = to;
+            this.body = body;
+        }
+
+        protected void compute()
+        {
+            if(to - from == 1) {
+                body.accept(from);
+            }
+            else {
+                int middle = (from + to) >>> 1;
+                invokeAll(new RangeTask(from, middle, body), new RangeTask(middle, to, body));
+            }
+        }
+    }
+}
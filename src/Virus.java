@@ -1,35 +1,67 @@
-import java.util.HashSet;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 /**
  * Virus is a desease affecting creatures by incrementing their hunger.
  * It doesn't affect species costantly, but only at specific hours of the day.
  * Species can randomly get healed from the desease.
+ *
+ * Whether a creature is infected is kept in the creature itself, so checking
+ * it costs nothing. The infected creatures are also kept in an array, in
+ * the order they were infected, which is compacted in place each hour the
+ * virus gives pain: once the array has grown to the size of the epidemic,
+ * the virus allocates nothing.
  */
 public class Virus
 {
-    // Collection containing all the creatures affected by the virus.
-    // Being a set, the same creature cannot be present twice.
-    private HashSet<Creature> creatures;
+    // The initial room for infected creatures.
+    private static final int INITIAL_CAPACITY = 64;
+
+    // All the creatures affected by the virus, in the order of infection,
+    // so that healing is reproducible. A creature is in it at most once.
+    private Creature[] creatures;
+    // The number of creatures in the array.
+    private int size;
+    // The random stream deciding who heals.
+    private final RandomStream rand;
 
     /**
      * Public constructor initializing the collection.
      */
     public Virus(){
-        creatures = new HashSet<>();
+        this(Randomizer.splitStream());
+    }
+
+    /**
+     * Constructor initializing the collection, drawing from the given stream.
+     * @param rand The random stream deciding who heals.
+     */
+    public Virus(RandomStream rand){
+        this.rand = rand;
+        creatures = new Creature[INITIAL_CAPACITY];
     }
 
     /**
      * A new creature is infected.
-     * WhiteWalkers are immune.
+     * WhiteWalkers are immune, and an infected creature stays infected once.
      * @param creature The creature to infect.
      */
     public void infect(Creature creature)
     {
 
         //WhiteWalker are immune from the virus
-        if(!(creature instanceof WhiteWalker)){
-            creatures.add(creature);
+        if(!(creature instanceof WhiteWalker) && !creature.isInfected()){
+            creature.setInfected(true);
+            Field field = creature.getField();
+            EventLog events = field == null ? null : field.getEventLog();
+            if(events != null) {
+                events.infection(creature.getCell());
+            }
+            if(size == creatures.length) {
+                creatures = Arrays.copyOf(creatures, 2 * size);
+            }
+            creatures[size++] = creature;
         }
     }
 
@@ -37,32 +69,57 @@ public class Virus
          * Run over creatures. The creatures affected by virus can either die and/or heal
          * according to an arbitrary probability, and in that case they won't be considered for the
          * next iteration(the next hour); otherwise they are still affecetd by virus, so they suffer for that,
-         * and then are copied into a new collection that will substitute the current list creatures.
+         * and are moved down the array over the creatures that left it.
          */
         public void givePain(int time){
         if(time>= 8){
-            HashSet<Creature> copyList = new HashSet<>();
-            for(Creature creature : creatures){
+            int kept = 0;
+            for(int i = 0; i < size; i++){
+                Creature creature = creatures[i];
 
                 // check if the creature either heals or is dead
-                if(Math.random()>0.2 && creature.isActive()){
+                if(rand.nextDouble()>0.2 && creature.isActive()){
                     // make them suffer
-                    for(int i = 0 ; i<3 ; i++){
-                        creature.incrementHunger();
-                    }
-                    copyList.add(creature);
+                    creature.sicken(3);
+                    creatures[kept++] = creature;
+                }
+                else{
+                    creature.setInfected(false);
                 }
             }
 
-            creatures = copyList;
+            Arrays.fill(creatures, kept, size, null);
+            size = kept;
         }
     }
 
     /**
-     * Return a the collection storing all the infected creatures.
-     * @return creatures
+     * @return The random stream deciding who heals.
+     */
+    RandomStream getRandom(){
+        return rand;
+    }
+
+    /**
+     * @return The number of infected creatures, some of which may have died since the last pain.
+     */
+    public int getInfectedCount(){
+        return size;
+    }
+
+    /**
+     * @param index The position of an infected creature, from 0 to getInfectedCount().
+     * @return The creature infected in that position.
+     */
+    Creature getInfected(int index){
+        return creatures[index];
+    }
+
+    /**
+     * Return the infected creatures, in the order of infection.
+     * @return A read-only view of the creatures, valid until the virus changes.
      */
-    public HashSet<Creature> getInfectedCreatures(){
-        return creatures;
+    public List<Creature> getInfectedCreatures(){
+        return Collections.unmodifiableList(Arrays.asList(creatures).subList(0, size));
     }
 }
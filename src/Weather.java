@@ -36,7 +36,16 @@ public enum Weather
      * @return A random weather.
      */
     public static Weather getRandomWeather(){
-        double x = Math.random()*3;
+        return getRandomWeather(Randomizer.splitStream());
+    }
+
+    /**
+     * returns a random weather, drawn from the given stream.
+     * @param rand The random stream to draw from.
+     * @return A random weather.
+     */
+    public static Weather getRandomWeather(RandomStream rand){
+        double x = rand.nextDouble()*3;
         if(x<1){
             return RAINY;
         }else if(x<2){
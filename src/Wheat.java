@@ -20,18 +20,30 @@ public class Wheat extends Plant
      */
     public Wheat(Field field, Location location)
     {
-        super(field, location);
+        this(field, field.cellOf(location), Randomizer.splitStream());
+    }
+
+    /**
+     * Create a new wheat drawing from its own random stream.
+     *
+     * @param field The field currently occupied.
+     * @param cell The index of the cell within the field.
+     * @param rand The wheat's own random stream.
+     */
+    public Wheat(Field field, int cell, RandomStream rand)
+    {
+        super(field, cell, rand);
     }
 
     /**
      * Generate and return a new wheat in the field and location specified.
      * @param field The field where it has to appear.
-     * @param location The location where it has to appear.
+     * @param cell The cell where it has to appear.
      * @return A new instance of Wheat.
      */
-    protected Wheat giveBirthUnique(Field field, Location loc)
+    protected Wheat giveBirthUnique(Field field, int cell)
     {
-        return new Wheat(field, loc);
+        return new Wheat(field, cell, getRandom().split());
     }
 
     @Override
@@ -50,27 +62,43 @@ public class Wheat extends Plant
     public void act(List<Species> newWheat, int time, Weather weather)
     {
         // according to the weather. wheat reacts differently
-        switch(weather){
-            case RAINY:
-                setWaterLevel(getWaterLevel() + 1);
-                break;
-            default:
-                break;
-        }
-
+        setWaterLevel(getWaterLevel() + getWaterChange(weather));
 
         // When the max water level is reached it reproduces. In our simulation,
         // that level is reached since they born, so they always reproduce,
         // in order to balance the species.
         if(isActive() && getWaterLevel() >= MAX_WATER_LEVEL) {
             setWaterLevel(getWaterLevel() % MAX_WATER_LEVEL);
-            giveBirth(newWheat);
-
             // wheat can die by overcrowding
-            Location newLocation = getField().freeAdjacentLocation(getLocation());
-            if(newLocation == null){
-                setDead();
-            }
+            reproduce(newWheat);
         }
     }
+
+    /**
+     * Wheat only drinks when it rains.
+     * @Override
+     */
+    protected int getWaterChange(Weather weather){
+        switch(weather){
+            case RAINY:
+                return 1;
+            default:
+                return 0;
+        }
+    }
+
+    @Override
+    protected int getMaxWaterLevel(){
+        return MAX_WATER_LEVEL;
+    }
+
+    @Override
+    protected boolean diesOfOvercrowding(){
+        return true;
+    }
+
+    @Override
+    public int getTypeId(){
+        return SpeciesRegistry.WHEAT;
+    }
 }
@@ -31,7 +31,20 @@ public class WhiteWalker extends Creature
      */
     public WhiteWalker(boolean randomAge, Field field, Location location)
     {
-        super(field, location,0);
+        this(randomAge, field, field.cellOf(location), Randomizer.splitStream());
+    }
+
+    /**
+     * Create a whiteWalker drawing from its own random stream.
+     *
+     * @param randomAge No matter what it is, WhiteWalker doesn't have hunger level and/or age.
+     * @param field The field currently occupied.
+     * @param cell The index of the cell within the field.
+     * @param rand The whiteWalker's own random stream.
+     */
+    public WhiteWalker(boolean randomAge, Field field, int cell, RandomStream rand)
+    {
+        super(field, cell, 0, rand);
     }
 
     /**
@@ -46,33 +59,15 @@ public class WhiteWalker extends Creature
         super.act(newWhiteWalkers, time, weather);
     }
 
-    /**
-     * Check whether an objects fits to be eaten (right species that has to be alive), and, in case it fits, kill it.
-     * @param species Any object
-     * @return True if that species is edible, false otherwise.
-     * @Override
-     */
-    protected boolean findSpecificFood(Object species)
-    {
-        if(species instanceof Human) {
-            Human human = (Human) species;
-            if(human.isActive()) {
-                human.setDead();
-                return true;
-            }
-        }
-        return false;
-    }
-
     /**
      * Generate and return a new WhiteWalker in the field and location specified.
      * @param field The field where it has to appear.
-     * @param location The location where it has to appear.
+     * @param cell The cell where it has to appear.
      * @return A new instance of WhiteWalker.
      */
-    public WhiteWalker giveBirthUnique(Field field,Location loc)
+    public WhiteWalker giveBirthUnique(Field field, int cell)
     {
-        return new WhiteWalker(false, field, loc);
+        return new WhiteWalker(false, field, cell, getRandom().split());
     }
 
     @Override
@@ -111,4 +106,9 @@ public class WhiteWalker extends Creature
     protected int getMaxFoodLevel(){
         return 0;
     }
+
+    @Override
+    public int getTypeId(){
+        return SpeciesRegistry.WHITE_WALKER;
+    }
 }